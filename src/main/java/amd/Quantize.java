@@ -1,4 +1,12 @@
 package amd;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
 /**
  * (#)Quantize.java    0.90 9/19/00 Adam Doppelt
  * 
@@ -242,6 +250,9 @@ public class Quantize {
     static final int MAX_NODES = 266817;
     static final int MAX_TREE_DEPTH = 8;
 
+    // the minimum number of pixels a parallel task works on
+    static final int MIN_PARALLEL_PIXELS = 1 << 16;
+
     // these are precomputed in advance
     static int[] SQUARES;
     static int[] SHIFT;
@@ -269,21 +280,237 @@ public class Quantize {
      * @return The new color palette.
      */
     public static int[] quantizeImage(int[][] pixels, int maxColors) {
-        Cube cube = new Cube(pixels, maxColors);
-        cube.classification();
-        cube.reduction();
-        cube.assignment();
-        return cube.colormap;
+        int width = pixels.length;
+        int height = pixels[0].length;
+
+        int[] flat = new int[width * height];
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                flat[y * width + x] = pixels[x][y];
+            }
+        }
+
+        int[] colormap = quantizeImage(flat, 0, width, height, width, maxColors);
+
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                pixels[x][y] = flat[y * width + x];
+            }
+        }
+        return colormap;
+    }
+
+    /**
+     * Reduce the image to the given number of colors. The pixels are
+     * stored row by row, the pixel at (x, y) being at
+     * <code>offset + y * stride + x</code>, and are reduced in place.
+     * @return The new color palette.
+     */
+    public static int[] quantizeImage(int[] pixels, int offset, int width,
+        int height, int stride, int maxColors) {
+        return quantizeImage(pixels, offset, width, height, stride, maxColors, null);
+    }
+
+    /**
+     * Reduce the image to the given number of colors, running the
+     * classification and assignment phases on the provided pool. Bands
+     * of rows are classified into separate trees, which are then merged.
+     * The palette and pixels are the same as when quantizing on one
+     * thread. The pixels are stored row by row, the pixel at (x, y)
+     * being at <code>offset + y * stride + x</code>, and are reduced in
+     * place.
+     * @param pool the pool to use, <code>null</code> to quantize on the
+     * calling thread
+     * @return The new color palette.
+     */
+    public static int[] quantizeImage(int[] pixels, int offset, int width,
+        int height, int stride, int maxColors, ForkJoinPool pool) {
+        int bandHeight = pool != null
+            ? getParallelBandHeight(width, height, maxColors, pool) : height;
+        Cube cube;
+        if (bandHeight < height) {
+            cube = pool.invoke(new Classification(pixels, offset, width,
+                height, stride, maxColors, 0, height, bandHeight));
+            try {
+                cube.reduction();
+                cube.colormap();
+                pool.invoke(new Assignment(cube, 0, height, bandHeight));
+                return cube.colormap;
+            } finally {
+                Cube.release(cube);
+            }
+        } else {
+            cube = Cube.acquire(pixels, offset, width, height, stride, maxColors);
+            try {
+                cube.classification();
+                cube.reduction();
+                cube.assignment();
+                return cube.colormap;
+            } finally {
+                Cube.release(cube);
+            }
+        }
+    }
+
+    /**
+     * Returns the height of the bands of rows to quantize in parallel.
+     * The whole height is returned if the image is too small to benefit
+     * from parallel quantization, or if the tree could grow beyond
+     * MAX_NODES, in which case classification prunes the tree depending
+     * on the order of pixels.
+     */
+    static int getParallelBandHeight(int width, int height, int maxColors,
+        ForkJoinPool pool) {
+        long maxNodes = 0;
+        int depth = Cube.depth(maxColors);
+        for (int level = 1, levelNodes = 8; level <= depth; level++, levelNodes *= 8) {
+            maxNodes += levelNodes;
+        }
+        if (maxNodes > MAX_NODES || pool.getParallelism() < 2 || width == 0) {
+            return height;
+        }
+
+        long pixelCount = (long) width * height;
+        long bandPixels = Math.max(MIN_PARALLEL_PIXELS,
+            pixelCount / (pool.getParallelism() * 4));
+        return (int) Math.max(1, Math.min(height, bandPixels / width));
+    }
+
+    /**
+     * Classifies a band of rows into a separate cube, splitting the band
+     * in halves until it is small enough.
+     */
+    @SuppressWarnings("serial")
+    static class Classification extends RecursiveTask<Cube> {
+        final int[] pixels;
+        final int offset;
+        final int width;
+        final int height;
+        final int stride;
+        final int maxColors;
+        final int yFrom;
+        final int yTo;
+        final int bandHeight;
+
+        Classification(int[] pixels, int offset, int width, int height,
+            int stride, int maxColors, int yFrom, int yTo, int bandHeight) {
+            this.pixels = pixels;
+            this.offset = offset;
+            this.width = width;
+            this.height = height;
+            this.stride = stride;
+            this.maxColors = maxColors;
+            this.yFrom = yFrom;
+            this.yTo = yTo;
+            this.bandHeight = bandHeight;
+        }
+
+        @Override
+        protected Cube compute() {
+            if (yTo - yFrom <= bandHeight) {
+                Cube band = Cube.acquire(pixels, offset, width, height,
+                    stride, maxColors);
+                band.classification(yFrom, yTo);
+                return band;
+            }
+
+            int yMiddle = (yFrom + yTo) >>> 1;
+            Classification second = new Classification(pixels, offset,
+                width, height, stride, maxColors, yMiddle, yTo, bandHeight);
+            second.fork();
+            Cube first = new Classification(pixels, offset, width, height,
+                stride, maxColors, yFrom, yMiddle, bandHeight).compute();
+            Cube other = second.join();
+            first.merge(other);
+            Cube.release(other);
+            return first;
+        }
+    }
+
+    /**
+     * Assigns colors to a band of rows, splitting the band in halves
+     * until it is small enough.
+     */
+    @SuppressWarnings("serial")
+    static class Assignment extends RecursiveAction {
+        final Cube cube;
+        final int yFrom;
+        final int yTo;
+        final int bandHeight;
+
+        Assignment(Cube cube, int yFrom, int yTo, int bandHeight) {
+            this.cube = cube;
+            this.yFrom = yFrom;
+            this.yTo = yTo;
+            this.bandHeight = bandHeight;
+        }
+
+        @Override
+        protected void compute() {
+            if (yTo - yFrom <= bandHeight) {
+                cube.assignment(yFrom, yTo);
+                return;
+            }
+
+            int yMiddle = (yFrom + yTo) >>> 1;
+            invokeAll(new Assignment(cube, yFrom, yMiddle, bandHeight),
+                new Assignment(cube, yMiddle, yTo, bandHeight));
+        }
     }
     
+    /**
+     * The color description tree. The nodes live in a flat arena,
+     * <code>tree</code>, NODE_SIZE ints per node, and are referred to
+     * by their offsets in the arena. Released cubes are pooled and
+     * reset before quantizing the next image, so that the arena is
+     * allocated once rather than a node object for every tree node.
+     */
     static class Cube {
-        int[][] pixels;
+        // offsets of the node fields in the arena. the child
+        // offsets come first, at node + id.
+        static final int PARENT        = 8;
+        static final int NCHILD        = 9;
+        static final int ID            = 10;
+        static final int LEVEL         = 11;
+        static final int MID_RED       = 12;
+        static final int MID_GREEN     = 13;
+        static final int MID_BLUE      = 14;
+        static final int NUMBER_PIXELS = 15;
+        static final int UNIQUE        = 16;
+        static final int TOTAL_RED     = 17;
+        static final int TOTAL_GREEN   = 18;
+        static final int TOTAL_BLUE    = 19;
+        static final int COLOR_NUMBER  = 20;
+        static final int NODE_SIZE     = 21;
+
+        // the root is the first node in the arena. it is nobody's
+        // child, so its offset also marks a missing child.
+        static final int ROOT = 0;
+        static final int NONE = 0;
+
+        static final int INITIAL_NODES = 1024;
+
+        // released cubes, softly referenced so that large arenas can
+        // be reclaimed
+        static final ConcurrentLinkedQueue<SoftReference<Cube>> POOL =
+            new ConcurrentLinkedQueue<SoftReference<Cube>>();
+
+        int[] pixels;
+        int offset;
+        int width;
+        int height;
+        int stride;
         int maxColors;
         int[] colormap;
         
-        Node root;
         int depth;
 
+        // the node arena, its used length and the head of the list
+        // of pruned nodes, chained through their PARENT fields
+        int[] tree = new int[INITIAL_NODES * NODE_SIZE];
+        int size;
+        int free;
+
         // counter for the number of colors in the cube. this gets
         // recalculated often.
         int colors;
@@ -291,10 +518,33 @@ public class Quantize {
         // counter for the number of nodes in the tree
         int nodes;
 
-        Cube(int[][] pixels, int maxColors) {
-            this.pixels = pixels;
-            this.maxColors = maxColors;
+        /**
+         * Returns a cube with an empty tree for the given image, reusing
+         * a released cube if there is one.
+         */
+        static Cube acquire(int[] pixels, int offset, int width, int height,
+            int stride, int maxColors) {
+            Cube cube = null;
+            for (SoftReference<Cube> ref; cube == null && (ref = POOL.poll()) != null; ) {
+                cube = ref.get();
+            }
+            if (cube == null) {
+                cube = new Cube();
+            }
+            cube.reset(pixels, offset, width, height, stride, maxColors);
+            return cube;
+        }
+
+        /**
+         * Returns the cube to the pool.
+         */
+        static void release(Cube cube) {
+            cube.pixels = null;
+            POOL.offer(new SoftReference<Cube>(cube));
+        }
 
+        static int depth(int maxColors) {
+            int depth;
             int i = maxColors;
             // tree_depth = log max_colors
             //                 4
@@ -309,8 +559,75 @@ public class Quantize {
             } else if (depth < 2) {
                 depth = 2;
             }
-            
-            root = new Node(this);
+            return depth;
+        }
+
+        /**
+         * Empties the arena, leaving just the root, and sets up the
+         * cube for the given image.
+         */
+        void reset(int[] pixels, int offset, int width, int height,
+            int stride, int maxColors) {
+            this.pixels = pixels;
+            this.offset = offset;
+            this.width = width;
+            this.height = height;
+            this.stride = stride;
+            this.maxColors = maxColors;
+            this.colormap = null;
+            this.depth = depth(maxColors);
+            this.colors = 0;
+            this.nodes = 0;
+
+            Arrays.fill(tree, ROOT, ROOT + NODE_SIZE, 0);
+            tree[ROOT + PARENT] = ROOT;
+            tree[ROOT + NUMBER_PIXELS] = Integer.MAX_VALUE;
+            tree[ROOT + MID_RED]   = (MAX_RGB + 1) >> 1;
+            tree[ROOT + MID_GREEN] = (MAX_RGB + 1) >> 1;
+            tree[ROOT + MID_BLUE]  = (MAX_RGB + 1) >> 1;
+            size = ROOT + NODE_SIZE;
+            free = NONE;
+        }
+
+        /**
+         * Adds a child node to the tree, taking a pruned node or
+         * growing the arena.
+         * @return the offset of the new node
+         */
+        int newNode(int parent, int id, int level) {
+            int node;
+            if (free != NONE) {
+                node = free;
+                free = tree[node + PARENT];
+            } else {
+                node = size;
+                size += NODE_SIZE;
+                if (size > tree.length) {
+                    tree = Arrays.copyOf(tree, tree.length * 2);
+                }
+            }
+            int[] tree = this.tree;
+            Arrays.fill(tree, node, node + NODE_SIZE, 0);
+            tree[node + PARENT] = parent;
+            tree[node + ID] = id;
+            tree[node + LEVEL] = level;
+
+            // add to the cube
+            ++nodes;
+            if (level == depth) {
+                ++colors;
+            }
+
+            // add to the parent
+            ++tree[parent + NCHILD];
+            tree[parent + id] = node;
+
+            // figure out our midpoint
+            int bi = (1 << (MAX_TREE_DEPTH - level)) >> 1;
+            tree[node + MID_RED]   = tree[parent + MID_RED]   + ((id & 1) > 0 ? bi : -bi);
+            tree[node + MID_GREEN] = tree[parent + MID_GREEN] + ((id & 2) > 0 ? bi : -bi);
+            tree[node + MID_BLUE]  = tree[parent + MID_BLUE]  + ((id & 4) > 0 ? bi : -bi);
+            return node;
         }
 
         /**
@@ -352,15 +669,22 @@ public class Quantize {
          *   represented by this node.
          */
         void classification() {
-            int[][] pixels = this.pixels;
+            classification(0, height);
+        }
 
-            int width = pixels.length;
-            int height = pixels[0].length;
+        /**
+         * Classifies the rows from <code>yFrom</code> (inclusive) to
+         * <code>yTo</code> (exclusive).
+         */
+        void classification(int yFrom, int yTo) {
+            int[] pixels = this.pixels;
+            int[] tree = this.tree;
 
             // convert to indexed color
-            for (int x = width; x-- > 0; ) {
-                for (int y = height; y-- > 0; ) {
-                    int pixel = pixels[x][y];
+            for (int y = yFrom; y < yTo; y++) {
+                int rowEnd = offset + y * stride + width;
+                for (int i = rowEnd - width; i < rowEnd; i++) {
+                    int pixel = pixels[i];
                     int red   = (pixel >> 16) & 0xFF;
                     int green = (pixel >>  8) & 0xFF;
                     int blue  = (pixel >>  0) & 0xFF;
@@ -368,28 +692,66 @@ public class Quantize {
                     // a hard limit on the number of nodes in the tree
                     if (nodes > MAX_NODES) {
                         System.out.println("pruning");
-                        root.pruneLevel();
+                        pruneLevel(ROOT);
                         --depth;
                     }
 
                     // walk the tree to depth, increasing the
                     // number_pixels count for each node
-                    Node node = root;
+                    int node = ROOT;
                     for (int level = 1; level <= depth; ++level) {
-                        int id = (((red   > node.midRed   ? 1 : 0) << 0) |
-                                  ((green > node.midGreen ? 1 : 0) << 1) |
-                                  ((blue  > node.midBlue  ? 1 : 0) << 2));
-                        if (node.child[id] == null) {
-                            new Node(node, id, level);
+                        int id = (((red   > tree[node + MID_RED]   ? 1 : 0) << 0) |
+                                  ((green > tree[node + MID_GREEN] ? 1 : 0) << 1) |
+                                  ((blue  > tree[node + MID_BLUE]  ? 1 : 0) << 2));
+                        int child = tree[node + id];
+                        if (child == NONE) {
+                            child = newNode(node, id, level);
+                            tree = this.tree;
                         }
-                        node = node.child[id];
-                        node.numberPixels += SHIFT[level];
+                        node = child;
+                        tree[node + NUMBER_PIXELS] += SHIFT[level];
                     }
 
-                    ++node.unique;
-                    node.totalRed   += red;
-                    node.totalGreen += green;
-                    node.totalBlue  += blue;
+                    ++tree[node + UNIQUE];
+                    tree[node + TOTAL_RED]   += red;
+                    tree[node + TOTAL_GREEN] += green;
+                    tree[node + TOTAL_BLUE]  += blue;
+                }
+            }
+        }
+
+        /**
+         * Adds the statistics of the other cube's tree to this cube's
+         * tree. The trees must not have been pruned.
+         */
+        void merge(Cube other) {
+            merge(ROOT, other, ROOT);
+        }
+
+        /**
+         * Add the statistics of the corresponding node of another
+         * tree, creating the missing child nodes.
+         */
+        void merge(int node, Cube other, int otherNode) {
+            int[] from = other.tree;
+            if (node != ROOT) {
+                tree[node + NUMBER_PIXELS] += from[otherNode + NUMBER_PIXELS];
+            }
+            tree[node + UNIQUE]      += from[otherNode + UNIQUE];
+            tree[node + TOTAL_RED]   += from[otherNode + TOTAL_RED];
+            tree[node + TOTAL_GREEN] += from[otherNode + TOTAL_GREEN];
+            tree[node + TOTAL_BLUE]  += from[otherNode + TOTAL_BLUE];
+
+            if (from[otherNode + NCHILD] != 0) {
+                for (int i = 0; i < 8; i++) {
+                    int otherChild = from[otherNode + i];
+                    if (otherChild != NONE) {
+                        int child = tree[node + i];
+                        if (child == NONE) {
+                            child = newNode(node, i, tree[node + LEVEL] + 1);
+                        }
+                        merge(child, other, otherChild);
+                    }
                 }
             }
         }
@@ -410,7 +772,7 @@ public class Quantize {
             int threshold = 1;
             while (colors > maxColors) {
                 colors = 0;
-                threshold = root.reduce(threshold, Integer.MAX_VALUE);
+                threshold = reduce(ROOT, threshold, Integer.MAX_VALUE);
             }
         }
 
@@ -443,262 +805,192 @@ public class Quantize {
          * the index of this node's mean color in the color map.
          */
         void assignment() {
+            colormap();
+            assignment(0, height);
+        }
+
+        /**
+         * Establishes the color map from the pruned tree.
+         */
+        void colormap() {
             colormap = new int[colors];
 
             colors = 0;
-            root.colormap();
-  
-            int[][] pixels = this.pixels;
+            colormap(ROOT);
+        }
 
-            int width = pixels.length;
-            int height = pixels[0].length;
+        /**
+         * Assigns colors to the rows from <code>yFrom</code> (inclusive)
+         * to <code>yTo</code> (exclusive). Only reads the tree, so bands
+         * of rows can be assigned concurrently.
+         */
+        void assignment(int yFrom, int yTo) {
+            int[] pixels = this.pixels;
+            int[] tree = this.tree;
 
             Search search = new Search();
             
             // convert to indexed color
-            for (int x = width; x-- > 0; ) {
-                for (int y = height; y-- > 0; ) {
-                    int pixel = pixels[x][y];
+            for (int y = yFrom; y < yTo; y++) {
+                int rowEnd = offset + y * stride + width;
+                for (int i = rowEnd - width; i < rowEnd; i++) {
+                    int pixel = pixels[i];
                     int red   = (pixel >> 16) & 0xFF;
                     int green = (pixel >>  8) & 0xFF;
                     int blue  = (pixel >>  0) & 0xFF;
 
                     // walk the tree to find the cube containing that color
-                    Node node = root;
+                    int node = ROOT;
                     for ( ; ; ) {
-                        int id = (((red   > node.midRed   ? 1 : 0) << 0) |
-                                  ((green > node.midGreen ? 1 : 0) << 1) |
-                                  ((blue  > node.midBlue  ? 1 : 0) << 2)  );
-                        if (node.child[id] == null) {
+                        int id = (((red   > tree[node + MID_RED]   ? 1 : 0) << 0) |
+                                  ((green > tree[node + MID_GREEN] ? 1 : 0) << 1) |
+                                  ((blue  > tree[node + MID_BLUE]  ? 1 : 0) << 2)  );
+                        if (tree[node + id] == NONE) {
                             break;
                         }
-                        node = node.child[id];
+                        node = tree[node + id];
                     }
 
                     if (QUICK) {
                         // if QUICK is set, just use that
                         // node. Strictly speaking, this isn't
                         // necessarily best match.
-                        pixels[x][y] = node.colorNumber;
+                        pixels[i] = tree[node + COLOR_NUMBER];
                     } else {
                         // Find the closest color.
                         search.distance = Integer.MAX_VALUE;
-                        node.parent.closestColor(red, green, blue, search);
-                        pixels[x][y] = search.colorNumber;
+                        closestColor(tree[node + PARENT], red, green, blue, search);
+                        pixels[i] = search.colorNumber;
                     }
                 }
             }
         }
 
         /**
-         * A single Node in the tree.
+         * Remove this child node, and make sure our parent
+         * absorbs our pixel statistics. The node goes to the list
+         * of pruned nodes.
          */
-        static class Node {
-            Cube cube;
-
-            // parent node
-            Node parent;
-
-            // child nodes
-            Node[] child;
-            int nchild;
-
-            // our index within our parent
-            int id;
-            // our level within the tree
-            int level;
-            // our color midpoint
-            int midRed;
-            int midGreen;
-            int midBlue;
-
-            // the pixel count for this node and all children
-            int numberPixels;
-            
-            // the pixel count for this node
-            int unique;
-            // the sum of all pixels contained in this node
-            int totalRed;
-            int totalGreen;
-            int totalBlue;
-
-            // used to build the colormap
-            int colorNumber;
-
-            Node(Cube cube) {
-                this.cube = cube;
-                this.parent = this;
-                this.child = new Node[8];
-                this.id = 0;
-                this.level = 0;
+        void pruneChild(int node) {
+            int[] tree = this.tree;
+            int parent = tree[node + PARENT];
+            --tree[parent + NCHILD];
+            tree[parent + UNIQUE]      += tree[node + UNIQUE];
+            tree[parent + TOTAL_RED]   += tree[node + TOTAL_RED];
+            tree[parent + TOTAL_GREEN] += tree[node + TOTAL_GREEN];
+            tree[parent + TOTAL_BLUE]  += tree[node + TOTAL_BLUE];
+            tree[parent + tree[node + ID]] = NONE;
+            --nodes;
+            tree[node + PARENT] = free;
+            free = node;
+        }
 
-                this.numberPixels = Integer.MAX_VALUE;
-            
-                this.midRed   = (MAX_RGB + 1) >> 1;
-                this.midGreen = (MAX_RGB + 1) >> 1;
-                this.midBlue  = (MAX_RGB + 1) >> 1;
-            }
-        
-            Node(Node parent, int id, int level) {
-                this.cube = parent.cube;
-                this.parent = parent;
-                this.child = new Node[8];
-                this.id = id;
-                this.level = level;
-
-                // add to the cube
-                ++cube.nodes;
-                if (level == cube.depth) {
-                    ++cube.colors;
+        /**
+         * Prune the lowest layer of the tree.
+         */
+        void pruneLevel(int node) {
+            int[] tree = this.tree;
+            if (tree[node + NCHILD] != 0) {
+                for (int i = 0; i < 8; i++) {
+                    if (tree[node + i] != NONE) {
+                        pruneLevel(tree[node + i]);
+                    }
                 }
-
-                // add to the parent
-                ++parent.nchild;
-                parent.child[id] = this;
-
-                // figure out our midpoint
-                int bi = (1 << (MAX_TREE_DEPTH - level)) >> 1;
-                midRed   = parent.midRed   + ((id & 1) > 0 ? bi : -bi);
-                midGreen = parent.midGreen + ((id & 2) > 0 ? bi : -bi);
-                midBlue  = parent.midBlue  + ((id & 4) > 0 ? bi : -bi);
             }
-
-            /**
-             * Remove this child node, and make sure our parent
-             * absorbs our pixel statistics.
-             */
-            void pruneChild() {
-                --parent.nchild;
-                parent.unique += unique;
-                parent.totalRed     += totalRed;
-                parent.totalGreen   += totalGreen;
-                parent.totalBlue    += totalBlue;
-                parent.child[id] = null;
-                --cube.nodes;
-                cube = null;
-                parent = null;
+            if (tree[node + LEVEL] == depth) {
+                pruneChild(node);
             }
+        }
 
-            /**
-             * Prune the lowest layer of the tree.
-             */
-            void pruneLevel() {
-                if (nchild != 0) {
-                    for (int i = 0; i < 8; i++) {
-                        if (child[i] != null) {
-                            child[i].pruneLevel();
-                        }
+        /**
+         * Remove any nodes that have fewer than threshold
+         * pixels. Also, as long as we're walking the tree:
+         *
+         *  - figure out the color with the fewest pixels
+         *  - recalculate the total number of colors in the tree
+         */
+        int reduce(int node, int threshold, int nextThreshold) {
+            int[] tree = this.tree;
+            if (tree[node + NCHILD] != 0) {
+                for (int i = 0; i < 8; i++) {
+                    if (tree[node + i] != NONE) {
+                        nextThreshold = reduce(tree[node + i], threshold, nextThreshold);
                     }
                 }
-                if (level == cube.depth) {
-                    pruneChild();
-                }
             }
-
-            /**
-             * Remove any nodes that have fewer than threshold
-             * pixels. Also, as long as we're walking the tree:
-             *
-             *  - figure out the color with the fewest pixels
-             *  - recalculate the total number of colors in the tree
-             */
-            int reduce(int threshold, int nextThreshold) {
-                if (nchild != 0) {
-                    for (int i = 0; i < 8; i++) {
-                        if (child[i] != null) {
-                            nextThreshold = child[i].reduce(threshold, nextThreshold);
-                        }
-                    }
+            int numberPixels = tree[node + NUMBER_PIXELS];
+            if (numberPixels <= threshold) {
+                pruneChild(node);
+            } else {
+                if (tree[node + UNIQUE] != 0) {
+                    colors++;
                 }
-                if (numberPixels <= threshold) {
-                    pruneChild();
-                } else {
-                    if (unique != 0) {
-                        cube.colors++;
-                    }
-                    if (numberPixels < nextThreshold) {
-                        nextThreshold = numberPixels;
-                    }
+                if (numberPixels < nextThreshold) {
+                    nextThreshold = numberPixels;
                 }
-                return nextThreshold;
             }
+            return nextThreshold;
+        }
 
-            /*
-             * colormap traverses the color cube tree and notes each
-             * colormap entry. A colormap entry is any node in the
-             * color cube tree where the number of unique colors is
-             * not zero.
-             */
-            void colormap() {
-                if (nchild != 0) {
-                    for (int i = 0; i < 8; i++) {
-                        if (child[i] != null) {
-                            child[i].colormap();
-                        }
+        /*
+         * colormap traverses the color cube tree and notes each
+         * colormap entry. A colormap entry is any node in the
+         * color cube tree where the number of unique colors is
+         * not zero.
+         */
+        void colormap(int node) {
+            int[] tree = this.tree;
+            if (tree[node + NCHILD] != 0) {
+                for (int i = 0; i < 8; i++) {
+                    if (tree[node + i] != NONE) {
+                        colormap(tree[node + i]);
                     }
                 }
-                if (unique != 0) {
-                    int r = ((totalRed   + (unique >> 1)) / unique);
-                    int g = ((totalGreen + (unique >> 1)) / unique);
-                    int b = ((totalBlue  + (unique >> 1)) / unique);
-                    cube.colormap[cube.colors] = (((    0xFF) << 24) |
-                                                  ((r & 0xFF) << 16) |
-                                                  ((g & 0xFF) <<  8) |
-                                                  ((b & 0xFF) <<  0));
-                    colorNumber = cube.colors++;
-                }
             }
+            int unique = tree[node + UNIQUE];
+            if (unique != 0) {
+                int r = ((tree[node + TOTAL_RED]   + (unique >> 1)) / unique);
+                int g = ((tree[node + TOTAL_GREEN] + (unique >> 1)) / unique);
+                int b = ((tree[node + TOTAL_BLUE]  + (unique >> 1)) / unique);
+                colormap[colors] = (((    0xFF) << 24) |
+                                    ((r & 0xFF) << 16) |
+                                    ((g & 0xFF) <<  8) |
+                                    ((b & 0xFF) <<  0));
+                tree[node + COLOR_NUMBER] = colors++;
+            }
+        }
 
-            /* ClosestColor traverses the color cube tree at a
-             * particular node and determines which colormap entry
-             * best represents the input color.
-             */
-            void closestColor(int red, int green, int blue, Search search) {
-                if (nchild != 0) {
-                    for (int i = 0; i < 8; i++) {
-                        if (child[i] != null) {
-                            child[i].closestColor(red, green, blue, search);
-                        }
-                    }
-                }
-
-                if (unique != 0) {
-                    int color = cube.colormap[colorNumber];
-                    int distance = distance(color, red, green, blue);
-                    if (distance < search.distance) {
-                        search.distance = distance;
-                        search.colorNumber = colorNumber;
+        /* ClosestColor traverses the color cube tree at a
+         * particular node and determines which colormap entry
+         * best represents the input color.
+         */
+        void closestColor(int node, int red, int green, int blue, Search search) {
+            int[] tree = this.tree;
+            if (tree[node + NCHILD] != 0) {
+                for (int i = 0; i < 8; i++) {
+                    if (tree[node + i] != NONE) {
+                        closestColor(tree[node + i], red, green, blue, search);
                     }
                 }
             }
 
-            /**
-             * Figure out the distance between this node and som color.
-             */
-            static final int distance(int color, int r, int g, int b) {
-                return (SQUARES[((color >> 16) & 0xFF) - r + MAX_RGB] +
-                        SQUARES[((color >>  8) & 0xFF) - g + MAX_RGB] +
-                        SQUARES[((color >>  0) & 0xFF) - b + MAX_RGB]);
-            }
-
-            public String toString() {
-                StringBuilder buf = new StringBuilder();
-                if (parent == this) {
-                    buf.append("root");
-                } else {
-                    buf.append("node");
+            if (tree[node + UNIQUE] != 0) {
+                int colorNumber = tree[node + COLOR_NUMBER];
+                int distance = distance(colormap[colorNumber], red, green, blue);
+                if (distance < search.distance) {
+                    search.distance = distance;
+                    search.colorNumber = colorNumber;
                 }
-                buf.append(' ');
-                buf.append(level);
-                buf.append(" [");
-                buf.append(midRed);
-                buf.append(',');
-                buf.append(midGreen);
-                buf.append(',');
-                buf.append(midBlue);
-                buf.append(']');
-                return new String(buf);
             }
         }
+
+        /**
+         * Figure out the distance between this node and som color.
+         */
+        static final int distance(int color, int r, int g, int b) {
+            return (SQUARES[((color >> 16) & 0xFF) - r + MAX_RGB] +
+                    SQUARES[((color >>  8) & 0xFF) - g + MAX_RGB] +
+                    SQUARES[((color >>  0) & 0xFF) - b + MAX_RGB]);
+        }
     }
 }
@@ -0,0 +1,206 @@
+package org.carrot2.labs.smartsprites;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+import org.carrot2.labs.smartsprites.resource.ResourceHandler;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.CharStreams;
+import com.google.common.io.Closeables;
+import com.google.common.primitives.Ints;
+
+/**
+ * An in-memory model of a single CSS file. The file is read and split into lines
+ * exactly once, and the lines containing sprite image and sprite reference directives
+ * are indexed up front, so that both directive collection phases and CSS rewriting can
+ * work off the same document without going back to the {@link ResourceHandler}.
+ */
+public final class CssDocument
+{
+    /** Path of the CSS file this document was read from */
+    public final String cssFile;
+
+    /** Lines of the document, without line terminators */
+    private final String [] lines;
+
+    /** Numbers of lines containing sprite image directives, in ascending order */
+    private final int [] spriteImageDirectiveLines;
+
+    /** Sprite image directive strings, parallel to {@link #spriteImageDirectiveLines} */
+    private final String [] spriteImageDirectives;
+
+    /** Numbers of lines containing sprite reference directives, in ascending order */
+    private final int [] spriteReferenceDirectiveLines;
+
+    /**
+     * Sprite reference directive strings, parallel to
+     * {@link #spriteReferenceDirectiveLines}
+     */
+    private final String [] spriteReferenceDirectives;
+
+    /**
+     * Creates a {@link CssDocument} from the provided CSS content.
+     */
+    CssDocument(String cssFile, CharSequence content)
+    {
+        this.cssFile = cssFile;
+        this.lines = splitLines(content);
+
+        final List<Integer> imageLines = Lists.newArrayList();
+        final List<String> imageDirectives = Lists.newArrayList();
+        final List<Integer> referenceLines = Lists.newArrayList();
+        final List<String> referenceDirectives = Lists.newArrayList();
+        for (int i = 0; i < lines.length; i++)
+        {
+            // Both directive patterns require the "sprite" prefix, so the cheap check
+            // will rule out the vast majority of lines before we run the regexps.
+            if (lines[i].indexOf("sprite") < 0)
+            {
+                continue;
+            }
+
+            final String spriteImageDirective = SpriteDirectiveOccurrenceCollector
+                .extractSpriteImageDirectiveString(lines[i]);
+            if (spriteImageDirective != null)
+            {
+                imageLines.add(i);
+                imageDirectives.add(spriteImageDirective);
+            }
+
+            final String spriteReferenceDirective = SpriteDirectiveOccurrenceCollector
+                .extractSpriteReferenceDirectiveString(lines[i]);
+            if (spriteReferenceDirective != null)
+            {
+                referenceLines.add(i);
+                referenceDirectives.add(spriteReferenceDirective);
+            }
+        }
+
+        this.spriteImageDirectiveLines = Ints.toArray(imageLines);
+        this.spriteImageDirectives = imageDirectives.toArray(new String [imageDirectives
+            .size()]);
+        this.spriteReferenceDirectiveLines = Ints.toArray(referenceLines);
+        this.spriteReferenceDirectives = referenceDirectives
+            .toArray(new String [referenceDirectives.size()]);
+    }
+
+    /**
+     * Reads a {@link CssDocument} using the provided {@link ResourceHandler}.
+     */
+    static CssDocument read(String cssFile, ResourceHandler resourceHandler)
+        throws IOException
+    {
+        final Reader reader = resourceHandler.getResourceAsReader(cssFile);
+        try
+        {
+            return new CssDocument(cssFile, CharStreams.toString(reader));
+        }
+        finally
+        {
+            Closeables.close(reader, true);
+        }
+    }
+
+    /**
+     * Returns the number of lines in this document.
+     */
+    public int getLineCount()
+    {
+        return lines.length;
+    }
+
+    /**
+     * Returns the line with the provided (0-based) number, without the line terminator.
+     */
+    public String getLine(int line)
+    {
+        return lines[line];
+    }
+
+    /**
+     * Returns the number of sprite image directives in this document.
+     */
+    int getSpriteImageDirectiveCount()
+    {
+        return spriteImageDirectiveLines.length;
+    }
+
+    /**
+     * Returns the line number of the <code>index</code>-th sprite image directive.
+     */
+    int getSpriteImageDirectiveLine(int index)
+    {
+        return spriteImageDirectiveLines[index];
+    }
+
+    /**
+     * Returns the <code>index</code>-th sprite image directive string.
+     */
+    String getSpriteImageDirective(int index)
+    {
+        return spriteImageDirectives[index];
+    }
+
+    /**
+     * Returns the number of sprite reference directives in this document.
+     */
+    int getSpriteReferenceDirectiveCount()
+    {
+        return spriteReferenceDirectiveLines.length;
+    }
+
+    /**
+     * Returns the line number of the <code>index</code>-th sprite reference directive.
+     */
+    int getSpriteReferenceDirectiveLine(int index)
+    {
+        return spriteReferenceDirectiveLines[index];
+    }
+
+    /**
+     * Returns the <code>index</code>-th sprite reference directive string.
+     */
+    String getSpriteReferenceDirective(int index)
+    {
+        return spriteReferenceDirectives[index];
+    }
+
+    /**
+     * Splits the content into lines the same way {@link java.io.BufferedReader#readLine()}
+     * does: a line is terminated by '\n', '\r' or "\r\n", and a trailing terminator does
+     * not start a new, empty line.
+     */
+    static String [] splitLines(CharSequence content)
+    {
+        final List<String> lines = Lists.newArrayList();
+        final int length = content.length();
+        int start = 0;
+        int i = 0;
+        while (i < length)
+        {
+            final char c = content.charAt(i);
+            if (c == '\n' || c == '\r')
+            {
+                lines.add(content.subSequence(start, i).toString());
+                if (c == '\r' && i + 1 < length && content.charAt(i + 1) == '\n')
+                {
+                    i++;
+                }
+                start = ++i;
+            }
+            else
+            {
+                i++;
+            }
+        }
+
+        if (start < length)
+        {
+            lines.add(content.subSequence(start, length).toString());
+        }
+
+        return lines.toArray(new String [lines.size()]);
+    }
+}
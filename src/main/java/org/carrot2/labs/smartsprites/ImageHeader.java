@@ -0,0 +1,88 @@
+package org.carrot2.labs.smartsprites;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+
+/**
+ * Dimensions and file size of a source image, read from the image header without
+ * decoding the pixels.
+ */
+final class ImageHeader
+{
+    /** Width of the image in pixels */
+    final int width;
+
+    /** Height of the image in pixels */
+    final int height;
+
+    /** Size of the image file in bytes, -1 if not determined */
+    final long length;
+
+    ImageHeader(int width, int height, long length)
+    {
+        this.width = width;
+        this.height = height;
+        this.length = length;
+    }
+
+    /**
+     * Reads the image header from the provided stream. Returns <code>null</code> if there
+     * is no reader for the image format. If <code>readLength</code> is
+     * <code>true</code>, the stream is read to its end to determine the file size. The
+     * stream is not closed.
+     */
+    static ImageHeader read(InputStream is, boolean readLength) throws IOException
+    {
+        final CountingInputStream countingInputStream = new CountingInputStream(is);
+        final ImageInputStream imageInputStream = ImageIO
+            .createImageInputStream(countingInputStream);
+        if (imageInputStream == null)
+        {
+            throw new IIOException("Can't create an ImageInputStream!");
+        }
+
+        final int width;
+        final int height;
+        try
+        {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+            if (!readers.hasNext())
+            {
+                return null;
+            }
+
+            final ImageReader reader = readers.next();
+            try
+            {
+                reader.setInput(imageInputStream, true, true);
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+            }
+            finally
+            {
+                reader.dispose();
+            }
+        }
+        finally
+        {
+            imageInputStream.close();
+        }
+
+        if (!readLength)
+        {
+            return new ImageHeader(width, height, -1);
+        }
+
+        ByteStreams.exhaust(countingInputStream);
+        return new ImageHeader(width, height, countingInputStream.getCount());
+    }
+}
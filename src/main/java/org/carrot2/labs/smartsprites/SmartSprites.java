@@ -45,7 +45,21 @@ public class SmartSprites
         // Get parameters form system properties
         final MessageLog messageLog = new MessageLog(new PrintStreamMessageSink(
             System.out, parameters.getLogLevel()));
-        new SpriteBuilder(parameters, messageLog).buildSprites();
+        if (parameters.isWatch() && !parameters.isPlan())
+        {
+            try
+            {
+                new SpriteBuildWatcher(parameters, messageLog).watch();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        else
+        {
+            new SpriteBuilder(parameters, messageLog).buildSprites();
+        }
     }
 
     private static void printUsage(final CmdLineParser parser)
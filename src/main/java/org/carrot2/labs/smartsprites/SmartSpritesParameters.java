@@ -3,15 +3,24 @@ package org.carrot2.labs.smartsprites;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.carrot2.labs.smartsprites.message.MessageLog;
 import org.carrot2.labs.smartsprites.message.Message.MessageLevel;
 import org.carrot2.labs.smartsprites.message.Message.MessageType;
 import org.carrot2.util.FileUtils;
+import org.carrot2.util.KMeansQuantizer;
+import org.carrot2.util.MedianCutQuantizer;
+import org.carrot2.util.OctreeQuantizer;
+import org.carrot2.util.PngEncoder;
+import org.carrot2.util.PngOptimizer;
+import org.carrot2.util.Quantizer;
 import org.carrot2.util.StringUtils;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
 
+import com.google.common.collect.Lists;
+
 /**
  * Contains invocation parameters for SmartSprites, provides methods for validating the
  * parameters.
@@ -108,6 +117,127 @@ public final class SmartSpritesParameters
     @Option(name = "--mark-sprite-images")
     private boolean markSpriteImages;
 
+    /**
+     * The number of threads to use for building sprite images. Sprite images are
+     * independent of each other, so they can be built concurrently; the results are the
+     * same as with a single thread. If zero or negative, one thread per available
+     * processor will be used. The same number of threads is shared by all sprites for
+     * octree quantization, parallel PNG deflating and PNG optimization trials; sprite
+     * building threads wait while their sprite is processed on the shared threads. With
+     * one thread, everything runs on the calling thread.
+     */
+    @Option(name = "--threads", metaVar = "N")
+    private int threads;
+
+    /**
+     * The number of threads to use for decoding source images. Images of one sprite are
+     * decoded concurrently, but their layout in the sprite does not depend on the order
+     * in which decoding completes. If zero or negative, one thread per available
+     * processor will be used.
+     */
+    @Option(name = "--image-decode-threads", metaVar = "N")
+    private int imageDecodeThreads;
+
+    /**
+     * The maximum amount of memory, in megabytes, to be taken by source images while
+     * they are being decoded concurrently. The memory needed for an image is estimated
+     * from its dimensions before decoding. Decoded images are not counted, the memory
+     * they take while a sprite is built can be limited with
+     * {@link #getSpriteMemoryLimit()}. If zero or negative, there is no limit. Applies
+     * only when more than one image decoding thread is used.
+     */
+    @Option(name = "--in-flight-decode-memory-limit", metaVar = "MB")
+    private int inFlightDecodeMemoryLimit;
+
+    /**
+     * If <code>true</code>, SmartSprites will record the inputs and outputs of each
+     * sprite in a build manifest stored in the output directory (or root directory if
+     * there is no output directory), and will reuse the previously built sprite images
+     * whose inputs have not changed.
+     */
+    @Option(name = "--incremental")
+    private boolean incremental;
+
+    /**
+     * If <code>true</code>, after building the sprites SmartSprites will keep running
+     * and watch the root directory and the document root directory for changes,
+     * rebuilding only the sprites affected by each change. Applies only to the command
+     * line interface.
+     */
+    @Option(name = "--watch")
+    private boolean watch;
+
+    /**
+     * If <code>true</code>, generated CSS files and sprite images are written only if
+     * their content differs from the content of the existing files. Files with the same
+     * content are left intact, including their modification time.
+     */
+    @Option(name = "--write-if-changed")
+    private boolean writeIfChanged;
+
+    /**
+     * If <code>true</code>, SmartSprites will only print the planned dimensions, number
+     * of images, estimated canvas memory and estimated output size of each sprite. Only
+     * the headers of source images are read, nothing is rendered or written.
+     */
+    @Option(name = "--plan")
+    private boolean plan;
+
+    /**
+     * The maximum amount of memory, in megabytes, to be taken by the decoded source
+     * images of one sprite. Sprites whose source images would take more memory, as
+     * estimated from image headers, are composed one image at a time: each image is
+     * decoded, drawn into the sprite and released before the next one is decoded. Images
+     * with identical content, but different files, are then not merged. If zero or
+     * negative, all source images of a sprite are decoded up front.
+     */
+    @Option(name = "--sprite-memory-limit", metaVar = "MB")
+    private int spriteMemoryLimit;
+
+    /**
+     * The color quantizer to use for indexed color sprites that do not specify the
+     * sprite-quantizer property: FAST for quick, lower quality results, e.g. in
+     * development builds, OCTREE for a balance of speed and quality or KMEANS for the best
+     * quality at the cost of extra processing time.
+     */
+    @Option(name = "--sprite-quantizer")
+    private SpriteQuantizer spriteQuantizer;
+
+    /**
+     * The deflate level, from 0 (fastest) to 9 (smallest files), of PNG sprites that do
+     * not specify the sprite-png-compression property. If -1, the default level is used.
+     */
+    @Option(name = "--sprite-png-compression", metaVar = "LEVEL")
+    private int spritePngCompression;
+
+    /**
+     * The row filter of PNG sprites that do not specify the sprite-png-filter property:
+     * NONE, SUB, UP, AVERAGE, PAETH or ADAPTIVE to choose the filter for each row. If
+     * neither the filter nor the compression level are specified, PNG sprites are
+     * written by the standard Java image writer.
+     */
+    @Option(name = "--sprite-png-filter")
+    private SpritePngFilter spritePngFilter;
+
+    /**
+     * If <code>true</code>, large PNG sprites with a compression level or row filter
+     * specified are filtered and deflated in blocks on multiple threads, as many as
+     * {@link #getThreads()}. The sprite files can be slightly larger than when deflated
+     * on one thread.
+     */
+    @Option(name = "--sprite-png-parallel")
+    private boolean spritePngParallel;
+
+    /**
+     * If greater than 0, each PNG sprite is encoded in a number of lossless ways, with
+     * different row filters, palette orders and deflate settings, and the smallest
+     * encoding is written. Higher levels, up to 3, try more encodings, on as many
+     * threads as {@link #getThreads()}. Overrides the PNG compression level and row
+     * filter.
+     */
+    @Option(name = "--optimize-level", metaVar = "LEVEL")
+    private int optimizeLevel;
+
     /** The default suffix to be added to the generated CSS files. */
     public static final String DEFAULT_CSS_FILE_SUFFIX = "-sprite";
 
@@ -126,11 +256,145 @@ public final class SmartSpritesParameters
     /** By default, we don't generate sprite directive in output css */
     public static final boolean DEFAULT_MARK_SPRITE_IMAGES = false;
 
+    /** By default, we build sprite images one after another */
+    public static final int DEFAULT_THREADS = 1;
+
+    /** By default, we decode source images one after another */
+    public static final int DEFAULT_IMAGE_DECODE_THREADS = 1;
+
+    /** By default, images in the middle of concurrent decoding can take up to 256 MB */
+    public static final int DEFAULT_IN_FLIGHT_DECODE_MEMORY_LIMIT = 256;
+
+    /** By default, we build all sprites on each run */
+    public static final boolean DEFAULT_INCREMENTAL = false;
+
+    /** By default, we exit after building the sprites */
+    public static final boolean DEFAULT_WATCH = false;
+
+    /** By default, we write all generated files */
+    public static final boolean DEFAULT_WRITE_IF_CHANGED = false;
+
+    /** By default, we build the sprites rather than just plan them */
+    public static final boolean DEFAULT_PLAN = false;
+
+    /** By default, we decode all source images of a sprite up front */
+    public static final int DEFAULT_SPRITE_MEMORY_LIMIT = 0;
+
+    /** By default, we use the octree color quantizer */
+    public static final SpriteQuantizer DEFAULT_SPRITE_QUANTIZER = SpriteQuantizer.OCTREE;
+
+    /** By default, we use the default deflate level */
+    public static final int DEFAULT_SPRITE_PNG_COMPRESSION = PngEncoder.DEFAULT_COMPRESSION;
+
+    /** By default, we let the standard image writer choose the PNG row filters */
+    public static final SpritePngFilter DEFAULT_SPRITE_PNG_FILTER = null;
+
+    /** By default, we deflate PNG sprites on one thread */
+    public static final boolean DEFAULT_SPRITE_PNG_PARALLEL = false;
+
+    /** By default, we encode PNG sprites once */
+    public static final int DEFAULT_OPTIMIZE_LEVEL = 0;
+
     public enum PngDepth
     {
         AUTO, INDEXED, DIRECT;
     }
 
+    /**
+     * Defines the available color quantizers.
+     */
+    public enum SpriteQuantizer
+    {
+        /** Median cut quantization, fast, but of lower quality */
+        FAST,
+
+        /** Octree quantization, a balance of speed and quality */
+        OCTREE,
+
+        /** Median cut quantization refined with k-means, slow, but of best quality */
+        KMEANS;
+
+        private String value;
+
+        private SpriteQuantizer()
+        {
+            this.value = name().toLowerCase();
+        }
+
+        /**
+         * Returns a new instance of this quantizer.
+         */
+        public Quantizer createQuantizer()
+        {
+            switch (this)
+            {
+                case FAST:
+                    return new MedianCutQuantizer();
+                case KMEANS:
+                    return new KMeansQuantizer();
+                default:
+                    return new OctreeQuantizer();
+            }
+        }
+
+        /**
+         * Returns a new instance of this quantizer that quantizes large images on the
+         * provided pool, if it can, or on the calling thread if the pool is
+         * <code>null</code>.
+         */
+        public Quantizer createQuantizer(ForkJoinPool pool)
+        {
+            return this == OCTREE ? new OctreeQuantizer(pool) : createQuantizer();
+        }
+
+        @Override
+        public String toString()
+        {
+            return value;
+        }
+
+        public static String valuesAsString()
+        {
+            final String list = Lists.newArrayList(values()).toString();
+            return list.substring(1, list.length() - 1);
+        }
+    }
+
+    /**
+     * Defines the available PNG row filters.
+     */
+    public enum SpritePngFilter
+    {
+        NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE;
+
+        private String value;
+
+        private SpritePngFilter()
+        {
+            this.value = name().toLowerCase();
+        }
+
+        /**
+         * Returns the corresponding {@link PngEncoder} filter.
+         */
+        public PngEncoder.Filter getFilter()
+        {
+            return PngEncoder.Filter.valueOf(name());
+        }
+
+        @Override
+        public String toString()
+        {
+            return value;
+        }
+
+        public static String valuesAsString()
+        {
+            final String list = Lists.newArrayList(values()).toString();
+            return list.substring(1, list.length() - 1);
+        }
+    }
+
     /**
      * Creates the parameters with default options and null root dir, before root dir is
      * set, the parameters are invalid.
@@ -180,6 +444,19 @@ public final class SmartSpritesParameters
         this.spritePngDepth = spritePngDepth;
         this.spritePngIe6 = spritePngIe6;
         this.markSpriteImages = markSpriteImages;
+        this.threads = DEFAULT_THREADS;
+        this.imageDecodeThreads = DEFAULT_IMAGE_DECODE_THREADS;
+        this.inFlightDecodeMemoryLimit = DEFAULT_IN_FLIGHT_DECODE_MEMORY_LIMIT;
+        this.incremental = DEFAULT_INCREMENTAL;
+        this.watch = DEFAULT_WATCH;
+        this.writeIfChanged = DEFAULT_WRITE_IF_CHANGED;
+        this.plan = DEFAULT_PLAN;
+        this.spriteMemoryLimit = DEFAULT_SPRITE_MEMORY_LIMIT;
+        this.spriteQuantizer = DEFAULT_SPRITE_QUANTIZER;
+        this.spritePngCompression = DEFAULT_SPRITE_PNG_COMPRESSION;
+        this.spritePngFilter = DEFAULT_SPRITE_PNG_FILTER;
+        this.spritePngParallel = DEFAULT_SPRITE_PNG_PARALLEL;
+        this.optimizeLevel = DEFAULT_OPTIMIZE_LEVEL;
     }
 
     /**
@@ -255,6 +532,21 @@ public final class SmartSpritesParameters
             }
         }
 
+        if (spritePngCompression != PngEncoder.DEFAULT_COMPRESSION
+            && (spritePngCompression < 0 || spritePngCompression > 9))
+        {
+            log.error(MessageType.UNSUPPORTED_PNG_COMPRESSION,
+                Integer.toString(spritePngCompression));
+            valid = false;
+        }
+
+        if (optimizeLevel < 0 || optimizeLevel > PngOptimizer.MAX_LEVEL)
+        {
+            log.error(MessageType.UNSUPPORTED_OPTIMIZE_LEVEL,
+                Integer.toString(optimizeLevel));
+            valid = false;
+        }
+
         return valid;
     }
 
@@ -354,4 +646,180 @@ public final class SmartSpritesParameters
     {
         return cssFileEncoding;
     }
-}
\ No newline at end of file
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * Sets the number of threads to use for building sprite images, see
+     * {@link #getThreads()}.
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+    public int getImageDecodeThreads()
+    {
+        return imageDecodeThreads;
+    }
+
+    /**
+     * Sets the number of threads to use for decoding source images, see
+     * {@link #getImageDecodeThreads()}.
+     */
+    public void setImageDecodeThreads(int imageDecodeThreads)
+    {
+        this.imageDecodeThreads = imageDecodeThreads;
+    }
+
+    public int getInFlightDecodeMemoryLimit()
+    {
+        return inFlightDecodeMemoryLimit;
+    }
+
+    /**
+     * Sets the memory limit for source images in the middle of concurrent decoding, see
+     * {@link #getInFlightDecodeMemoryLimit()}.
+     */
+    public void setInFlightDecodeMemoryLimit(int inFlightDecodeMemoryLimit)
+    {
+        this.inFlightDecodeMemoryLimit = inFlightDecodeMemoryLimit;
+    }
+
+    public boolean isIncremental()
+    {
+        return incremental;
+    }
+
+    /**
+     * Enables or disables incremental builds, see {@link #isIncremental()}.
+     */
+    public void setIncremental(boolean incremental)
+    {
+        this.incremental = incremental;
+    }
+
+    public boolean isWatch()
+    {
+        return watch;
+    }
+
+    /**
+     * Enables or disables watching for changes, see {@link #isWatch()}.
+     */
+    public void setWatch(boolean watch)
+    {
+        this.watch = watch;
+    }
+
+    public boolean isWriteIfChanged()
+    {
+        return writeIfChanged;
+    }
+
+    /**
+     * Enables or disables writing only the changed files, see
+     * {@link #isWriteIfChanged()}.
+     */
+    public void setWriteIfChanged(boolean writeIfChanged)
+    {
+        this.writeIfChanged = writeIfChanged;
+    }
+
+    public boolean isPlan()
+    {
+        return plan;
+    }
+
+    /**
+     * Enables or disables planning instead of building sprites, see {@link #isPlan()}.
+     */
+    public void setPlan(boolean plan)
+    {
+        this.plan = plan;
+    }
+
+    public int getSpriteMemoryLimit()
+    {
+        return spriteMemoryLimit;
+    }
+
+    /**
+     * Sets the memory limit for decoded source images of one sprite, see
+     * {@link #getSpriteMemoryLimit()}.
+     */
+    public void setSpriteMemoryLimit(int spriteMemoryLimit)
+    {
+        this.spriteMemoryLimit = spriteMemoryLimit;
+    }
+
+    public SpriteQuantizer getSpriteQuantizer()
+    {
+        return spriteQuantizer;
+    }
+
+    /**
+     * Sets the default color quantizer, see {@link #getSpriteQuantizer()}.
+     */
+    public void setSpriteQuantizer(SpriteQuantizer spriteQuantizer)
+    {
+        this.spriteQuantizer = spriteQuantizer;
+    }
+
+    public int getSpritePngCompression()
+    {
+        return spritePngCompression;
+    }
+
+    /**
+     * Sets the default deflate level of PNG sprites, see
+     * {@link #getSpritePngCompression()}.
+     */
+    public void setSpritePngCompression(int spritePngCompression)
+    {
+        this.spritePngCompression = spritePngCompression;
+    }
+
+    public SpritePngFilter getSpritePngFilter()
+    {
+        return spritePngFilter;
+    }
+
+    /**
+     * Sets the default row filter of PNG sprites, see {@link #getSpritePngFilter()}.
+     */
+    public void setSpritePngFilter(SpritePngFilter spritePngFilter)
+    {
+        this.spritePngFilter = spritePngFilter;
+    }
+
+    public boolean isSpritePngParallel()
+    {
+        return spritePngParallel;
+    }
+
+    /**
+     * Enables or disables deflating PNG sprites on multiple threads, see
+     * {@link #isSpritePngParallel()}.
+     */
+    public void setSpritePngParallel(boolean spritePngParallel)
+    {
+        this.spritePngParallel = spritePngParallel;
+    }
+
+    public int getOptimizeLevel()
+    {
+        return optimizeLevel;
+    }
+
+    /**
+     * Sets the PNG sprite optimization level, see {@link #getOptimizeLevel()}.
+     */
+    public void setOptimizeLevel(int optimizeLevel)
+    {
+        this.optimizeLevel = optimizeLevel;
+    }
+}
@@ -0,0 +1,140 @@
+package org.carrot2.labs.smartsprites;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+import org.carrot2.util.FileUtils;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+/**
+ * Keeps decoded source images between builds, together with the ids of the sprites
+ * each source image was used in. Images are keyed by their canonical file paths, a
+ * cached image is used only as long as the length and modification time of its file
+ * do not change. This class is thread-safe.
+ */
+class SourceImageCache
+{
+    /** Cached images by canonical file path */
+    private final Map<String, CachedImage> imagesByFile = Maps.newHashMap();
+
+    /** Ids of sprites built from each source image, by canonical file path */
+    private final SetMultimap<String, String> spriteIdsByFile = HashMultimap.create();
+
+    /** Canonical paths of source images of each sprite */
+    private final SetMultimap<String, String> filesBySpriteId = HashMultimap.create();
+
+    /**
+     * Returns the cached image for the provided path or <code>null</code> if the image
+     * is not cached or its file has changed since it was cached.
+     */
+    BufferedImage get(String realImagePath)
+    {
+        final File file = FileUtils.getCanonicalOrAbsoluteFile(realImagePath);
+        final CachedImage cachedImage;
+        synchronized (this)
+        {
+            cachedImage = imagesByFile.get(file.getPath());
+        }
+
+        if (cachedImage == null || cachedImage.length != file.length()
+            || cachedImage.lastModified != file.lastModified())
+        {
+            return null;
+        }
+        return cachedImage.image;
+    }
+
+    /**
+     * Caches an image decoded from the provided path.
+     */
+    void put(String realImagePath, BufferedImage image)
+    {
+        final File file = FileUtils.getCanonicalOrAbsoluteFile(realImagePath);
+        final CachedImage cachedImage = new CachedImage(image, file.length(),
+            file.lastModified());
+        synchronized (this)
+        {
+            imagesByFile.put(file.getPath(), cachedImage);
+        }
+    }
+
+    /**
+     * Replaces the source images the provided sprite depends on. Paths may be
+     * <code>null</code> for images that could not be resolved.
+     */
+    void setDependencies(String spriteId, Collection<String> realImagePaths)
+    {
+        final Set<String> files = Sets.newHashSet();
+        for (String realImagePath : realImagePaths)
+        {
+            if (realImagePath != null)
+            {
+                files.add(FileUtils.getCanonicalOrAbsoluteFile(realImagePath).getPath());
+            }
+        }
+
+        synchronized (this)
+        {
+            removeDependencies(spriteId);
+            for (String file : files)
+            {
+                filesBySpriteId.put(spriteId, file);
+                spriteIdsByFile.put(file, spriteId);
+            }
+        }
+    }
+
+    /**
+     * Removes the source image dependencies of the provided sprite, e.g. when the sprite
+     * is no longer declared.
+     */
+    synchronized void removeDependencies(String spriteId)
+    {
+        for (String file : filesBySpriteId.removeAll(spriteId))
+        {
+            spriteIdsByFile.remove(file, spriteId);
+        }
+    }
+
+    /**
+     * Returns the canonical paths of all source images of all sprites.
+     */
+    synchronized Set<String> getSourceImages()
+    {
+        return Sets.newHashSet(spriteIdsByFile.keySet());
+    }
+
+    /**
+     * Evicts the image with the provided canonical path from the cache and returns the
+     * ids of the sprites built from it.
+     */
+    synchronized Set<String> invalidate(String canonicalPath)
+    {
+        imagesByFile.remove(canonicalPath);
+        return Sets.newHashSet(spriteIdsByFile.get(canonicalPath));
+    }
+
+    /**
+     * A decoded image along with the state of its file at the time of decoding.
+     */
+    private static final class CachedImage
+    {
+        final BufferedImage image;
+        final long length;
+        final long lastModified;
+
+        CachedImage(BufferedImage image, long length, long lastModified)
+        {
+            this.image = image;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+}
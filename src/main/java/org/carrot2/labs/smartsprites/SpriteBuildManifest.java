@@ -0,0 +1,609 @@
+package org.carrot2.labs.smartsprites;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.carrot2.labs.smartsprites.SpriteImageDirective.SpriteImageLayout;
+import org.carrot2.labs.smartsprites.message.Message.MessageType;
+import org.carrot2.labs.smartsprites.message.MessageLog;
+import org.carrot2.labs.smartsprites.resource.ResourceHandler;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Closeables;
+import com.google.common.primitives.Ints;
+
+/**
+ * Records the inputs and outputs of the sprite images built in a run, so that the next
+ * run can reuse the sprite images whose inputs have not changed. For each sprite, the
+ * manifest stores a hash of the sprite image directive, the ordered sprite reference
+ * occurrences with their layout properties and the contents of the source images,
+ * together with the paths and dimensions of the written sprite images and the offsets
+ * of the individual images.
+ * <p>
+ * Instances of this class are thread-safe.
+ */
+class SpriteBuildManifest
+{
+    /** Name of the manifest file */
+    static final String FILE_NAME = ".smartsprites-manifest";
+
+    /** First line of the manifest file, identifies the format */
+    private static final String HEADER = "# SmartSprites build manifest 1";
+
+    /** Field separator in the manifest file */
+    private static final char SEPARATOR = '\t';
+
+    /** Path to the manifest */
+    private final String path;
+
+    /** The resource handler to read and write the manifest and the source images */
+    private final ResourceHandler resourceHandler;
+
+    /** Parameters that affect the sprite images, part of each sprite's inputs */
+    private final String parametersDescription;
+
+    /** Sprites recorded in the previous run, by sprite id */
+    private final Map<String, Entry> previousEntries = Maps.newHashMap();
+
+    /** Source images recorded in the previous run, by path */
+    private final Map<String, SourceImage> previousSourceImages = Maps.newHashMap();
+
+    /** Sprites built or reused in this run, by sprite id */
+    private final Map<String, Entry> entries = Maps.newTreeMap();
+
+    /**
+     * Creates an empty manifest to be stored at the provided path.
+     */
+    SpriteBuildManifest(String path, SmartSpritesParameters parameters,
+        ResourceHandler resourceHandler)
+    {
+        this.path = path;
+        this.resourceHandler = resourceHandler;
+        this.parametersDescription = describeParameters(parameters);
+    }
+
+    /**
+     * Reads the manifest stored at the provided path. If there is no manifest, or the
+     * manifest cannot be read, an empty manifest is returned, so that all sprite images
+     * are built.
+     */
+    static SpriteBuildManifest read(String path, SmartSpritesParameters parameters,
+        ResourceHandler resourceHandler, MessageLog messageLog)
+    {
+        final SpriteBuildManifest manifest = new SpriteBuildManifest(path, parameters,
+            resourceHandler);
+
+        BufferedReader reader = null;
+        try
+        {
+            reader = new BufferedReader(resourceHandler.getResourceAsReader(path));
+            manifest.parse(reader);
+            messageLog.info(MessageType.READING_BUILD_MANIFEST, path);
+        }
+        catch (FileNotFoundException e)
+        {
+            // No manifest yet, build everything
+        }
+        catch (IOException | RuntimeException e)
+        {
+            manifest.previousEntries.clear();
+            manifest.previousSourceImages.clear();
+            messageLog.info(MessageType.IGNORING_MALFORMED_BUILD_MANIFEST, path);
+        }
+        finally
+        {
+            try
+            {
+                Closeables.close(reader, true);
+            }
+            catch (IOException e)
+            {
+                // Not thrown
+            }
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Computes the inputs of a sprite: a hash of the sprite's directive, the references
+     * and the contents of the source images. Returns <code>null</code> if any of the
+     * source images cannot be read, in which case the sprite is neither reused nor
+     * recorded.
+     */
+    Inputs getInputs(SpriteImageOccurrence spriteImageOccurrence,
+        Collection<SpriteReferenceOccurrence> spriteReferenceOccurrences,
+        List<String> realImagePaths)
+    {
+        final SpriteImageDirective directive = spriteImageOccurrence.spriteImageDirective;
+        final StringBuilder description = new StringBuilder();
+        description.append(parametersDescription).append('\n');
+        description.append(spriteImageOccurrence.cssFile).append('|');
+        description.append(directive.spriteId).append('|');
+        description.append(directive.imagePath).append('|');
+        description.append(directive.layout).append('|');
+        description.append(directive.format).append('|');
+        description.append(directive.uidType).append('|');
+        description.append(directive.ie6Mode).append('|');
+        description.append(
+            directive.matteColor != null ? Integer.toHexString(directive.matteColor
+                .getRGB()) : "").append('|');
+        description.append(directive.scaleRatio).append('|');
+        description.append(directive.quantizer != null ? directive.quantizer : "")
+            .append('|');
+        description.append(
+            directive.pngCompression != null ? directive.pngCompression : "").append('|');
+        description.append(directive.pngFilter != null ? directive.pngFilter : "")
+            .append('|');
+        describe(description, directive.spriteLayoutProperties);
+        description.append('\n');
+
+        final List<SourceImage> sourceImages = Lists.newArrayList();
+        int i = 0;
+        for (SpriteReferenceOccurrence occurrence : spriteReferenceOccurrences)
+        {
+            final String realImagePath = realImagePaths.get(i++);
+            final SourceImage sourceImage = getSourceImage(realImagePath);
+            if (sourceImage == null)
+            {
+                return null;
+            }
+            sourceImages.add(sourceImage);
+
+            description.append(realImagePath).append('|');
+            description.append(sourceImage.hash).append('|');
+            describe(description,
+                occurrence.spriteReferenceDirective.spriteLayoutProperties);
+            description.append('\n');
+        }
+
+        return new Inputs(hash(description.toString()), sourceImages);
+    }
+
+    /**
+     * Returns the sprite replacements of a sprite recorded in the previous run, if the
+     * sprite's inputs have not changed and its sprite images still exist. Otherwise,
+     * returns <code>null</code>.
+     */
+    Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> reuse(
+        SpriteImageOccurrence spriteImageOccurrence,
+        Collection<SpriteReferenceOccurrence> spriteReferenceOccurrences, Inputs inputs,
+        MessageLog messageLog)
+    {
+        final SpriteImageDirective directive = spriteImageOccurrence.spriteImageDirective;
+        final Entry previous = previousEntries.get(directive.spriteId);
+        if (previous == null || !previous.inputsHash.equals(inputs.hash))
+        {
+            return null;
+        }
+
+        for (String outputFile : previous.outputFiles)
+        {
+            if (!exists(outputFile))
+            {
+                return null;
+            }
+        }
+
+        final List<SpriteReferenceOccurrence> occurrences = Lists
+            .newArrayList(spriteReferenceOccurrences);
+        final Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> replacements = Maps
+            .newLinkedHashMap();
+        for (int i = 0; i < previous.replacementIndexes.length; i++)
+        {
+            final SpriteReferenceOccurrence occurrence = occurrences
+                .get(previous.replacementIndexes[i]);
+            replacements.put(occurrence, occurrence.buildReplacement(directive.layout,
+                previous.replacementOffsets[i]));
+        }
+
+        final SpriteImage spriteImage = new SpriteImage(null, spriteImageOccurrence,
+            replacements, previous.spriteWidth, previous.spriteHeight,
+            previous.scaleRatio);
+        spriteImage.resolvedPath = previous.resolvedPath;
+        spriteImage.resolvedPathIe6 = previous.resolvedPathIe6;
+        spriteImage.hasReducedForIe6 = previous.resolvedPathIe6 != null;
+
+        messageLog.info(MessageType.REUSING_SPRITE_IMAGE, directive.spriteId,
+            previous.outputFiles.get(0));
+        put(new Entry(previous, inputs.sourceImages));
+
+        return replacements;
+    }
+
+    /**
+     * Records a sprite image built in this run.
+     */
+    void record(SpriteImage spriteImage,
+        Collection<SpriteReferenceOccurrence> spriteReferenceOccurrences, Inputs inputs,
+        List<String> outputFiles)
+    {
+        final SpriteImageLayout layout = spriteImage.spriteImageOccurrence.spriteImageDirective.layout;
+        final int [] indexes = new int [spriteImage.spriteReferenceReplacements.size()];
+        final int [] offsets = new int [indexes.length];
+        int i = 0;
+        int index = 0;
+        for (SpriteReferenceOccurrence occurrence : spriteReferenceOccurrences)
+        {
+            final SpriteReferenceReplacement replacement = spriteImage.spriteReferenceReplacements
+                .get(occurrence);
+            if (replacement != null)
+            {
+                indexes[i] = index;
+                offsets[i] = SpriteImageLayout.VERTICAL.equals(layout) ? replacement.verticalPosition
+                    : replacement.horizontalPosition;
+                i++;
+            }
+            index++;
+        }
+
+        put(new Entry(spriteImage.spriteImageOccurrence.spriteImageDirective.spriteId,
+            inputs.hash, spriteImage.resolvedPath,
+            spriteImage.hasReducedForIe6 ? spriteImage.resolvedPathIe6 : null,
+            spriteImage.spriteWidth, spriteImage.spriteHeight, spriteImage.scaleRatio,
+            outputFiles, indexes, offsets, inputs.sourceImages));
+    }
+
+    /**
+     * Writes the sprites recorded in this run to the manifest file.
+     */
+    synchronized void write(MessageLog messageLog) throws IOException
+    {
+        messageLog.info(MessageType.WRITING_BUILD_MANIFEST, path);
+        final BufferedWriter writer = new BufferedWriter(resourceHandler
+            .getResourceAsWriter(path));
+        try
+        {
+            writer.write(HEADER + "\n");
+            for (Entry entry : entries.values())
+            {
+                writeLine(writer, "sprite", entry.spriteId, entry.inputsHash,
+                    entry.resolvedPath, entry.resolvedPathIe6 != null ? entry.resolvedPathIe6
+                        : "", entry.spriteWidth, entry.spriteHeight, entry.scaleRatio);
+                for (String outputFile : entry.outputFiles)
+                {
+                    writeLine(writer, "output", outputFile);
+                }
+                for (int i = 0; i < entry.replacementIndexes.length; i++)
+                {
+                    writeLine(writer, "replacement", entry.replacementIndexes[i],
+                        entry.replacementOffsets[i]);
+                }
+                for (SourceImage sourceImage : entry.sourceImages)
+                {
+                    writeLine(writer, "source", sourceImage.path, sourceImage.length,
+                        sourceImage.lastModified, sourceImage.hash);
+                }
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    private synchronized void put(Entry entry)
+    {
+        entries.put(entry.spriteId, entry);
+    }
+
+    /**
+     * Parses the previous manifest.
+     */
+    private void parse(BufferedReader reader) throws IOException
+    {
+        if (!HEADER.equals(reader.readLine()))
+        {
+            throw new IOException("Unknown manifest format");
+        }
+
+        final Splitter splitter = Splitter.on(SEPARATOR);
+        List<String> sprite = null;
+        final List<String> outputFiles = Lists.newArrayList();
+        final List<Integer> indexes = Lists.newArrayList();
+        final List<Integer> offsets = Lists.newArrayList();
+        final List<SourceImage> sourceImages = Lists.newArrayList();
+
+        String line;
+        while (true)
+        {
+            line = reader.readLine();
+            final List<String> fields = line != null ? splitter.splitToList(line) : null;
+            if (line == null || fields.get(0).equals("sprite"))
+            {
+                if (sprite != null)
+                {
+                    final Entry entry = new Entry(sprite.get(1), sprite.get(2),
+                        sprite.get(3), sprite.get(4).isEmpty() ? null : sprite.get(4),
+                        Integer.parseInt(sprite.get(5)), Integer.parseInt(sprite.get(6)),
+                        Float.parseFloat(sprite.get(7)), Lists.newArrayList(outputFiles),
+                        Ints.toArray(indexes), Ints.toArray(offsets), Lists
+                            .newArrayList(sourceImages));
+                    previousEntries.put(entry.spriteId, entry);
+                    for (SourceImage sourceImage : sourceImages)
+                    {
+                        previousSourceImages.put(sourceImage.path, sourceImage);
+                    }
+                }
+
+                if (line == null)
+                {
+                    break;
+                }
+
+                checkFieldCount(fields, 8);
+                sprite = fields;
+                outputFiles.clear();
+                indexes.clear();
+                offsets.clear();
+                sourceImages.clear();
+            }
+            else if (sprite == null)
+            {
+                throw new IOException("Sprite expected");
+            }
+            else if (fields.get(0).equals("output"))
+            {
+                checkFieldCount(fields, 2);
+                outputFiles.add(fields.get(1));
+            }
+            else if (fields.get(0).equals("replacement"))
+            {
+                checkFieldCount(fields, 3);
+                indexes.add(Integer.parseInt(fields.get(1)));
+                offsets.add(Integer.parseInt(fields.get(2)));
+            }
+            else if (fields.get(0).equals("source"))
+            {
+                checkFieldCount(fields, 5);
+                sourceImages.add(new SourceImage(fields.get(1), Long.parseLong(fields
+                    .get(2)), Long.parseLong(fields.get(3)), fields.get(4)));
+            }
+            else
+            {
+                throw new IOException("Unknown entry: " + fields.get(0));
+            }
+        }
+    }
+
+    /**
+     * Returns the length, modification time and content hash of a source image. The
+     * content is hashed only if the length or modification time is different from what
+     * was recorded in the previous run. Returns <code>null</code> if the image cannot be
+     * read.
+     */
+    private SourceImage getSourceImage(String realImagePath)
+    {
+        final File file = new File(realImagePath);
+        final long length = file.isFile() ? file.length() : -1;
+        final long lastModified = file.isFile() ? file.lastModified() : -1;
+
+        final SourceImage previous = previousSourceImages.get(realImagePath);
+        if (previous != null && length >= 0 && previous.length == length
+            && previous.lastModified == lastModified)
+        {
+            return previous;
+        }
+
+        InputStream is = null;
+        try
+        {
+            is = resourceHandler.getResourceAsInputStream(realImagePath);
+            if (is == null)
+            {
+                return null;
+            }
+
+            final MessageDigest digest = newDigest();
+            final byte [] buffer = new byte [8192];
+            int read;
+            while ((read = is.read(buffer)) >= 0)
+            {
+                digest.update(buffer, 0, read);
+            }
+            return new SourceImage(realImagePath, length, lastModified, BaseEncoding
+                .base16().lowerCase().encode(digest.digest()));
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        finally
+        {
+            try
+            {
+                Closeables.close(is, true);
+            }
+            catch (IOException e)
+            {
+                // Not thrown
+            }
+        }
+    }
+
+    /**
+     * Checks whether a previously written sprite image still exists.
+     */
+    private boolean exists(String outputFile)
+    {
+        try
+        {
+            final InputStream is = resourceHandler.getResourceAsInputStream(outputFile);
+            if (is == null)
+            {
+                return false;
+            }
+            is.close();
+            return true;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Describes the parameters that affect the rendered sprite images.
+     */
+    private static String describeParameters(SmartSpritesParameters parameters)
+    {
+        return parameters.getSpritePngDepth() + "|" + parameters.isSpritePngIe6() + "|"
+            + parameters.getSpriteMemoryLimit() + "|" + parameters.getSpriteQuantizer()
+            + "|" + parameters.getSpritePngCompression() + "|"
+            + parameters.getSpritePngFilter() + "|" + parameters.isSpritePngParallel()
+            + "|" + parameters.getOptimizeLevel();
+    }
+
+    private static void describe(StringBuilder description,
+        SpriteLayoutProperties properties)
+    {
+        description.append(properties.alignment).append('|');
+        description.append(properties.marginLeft).append('|');
+        description.append(properties.marginRight).append('|');
+        description.append(properties.marginTop).append('|');
+        description.append(properties.marginBottom);
+    }
+
+    private static String hash(String description)
+    {
+        try
+        {
+            return BaseEncoding.base16().lowerCase().encode(
+                newDigest().digest(description.getBytes("UTF-8")));
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void writeLine(BufferedWriter writer, String type, Object... fields)
+        throws IOException
+    {
+        writer.write(type);
+        for (Object field : fields)
+        {
+            writer.write(SEPARATOR);
+            writer.write(String.valueOf(field));
+        }
+        writer.write('\n');
+    }
+
+    private static void checkFieldCount(List<String> fields, int count)
+        throws IOException
+    {
+        if (fields.size() != count)
+        {
+            throw new IOException("Malformed entry: " + fields.get(0));
+        }
+    }
+
+    /**
+     * Inputs of a single sprite.
+     */
+    static final class Inputs
+    {
+        /** Hash of all inputs of the sprite */
+        final String hash;
+
+        /** Source images of the sprite, in the order of references */
+        final List<SourceImage> sourceImages;
+
+        Inputs(String hash, List<SourceImage> sourceImages)
+        {
+            this.hash = hash;
+            this.sourceImages = sourceImages;
+        }
+    }
+
+    /**
+     * A source image file recorded in the manifest.
+     */
+    static final class SourceImage
+    {
+        final String path;
+        final long length;
+        final long lastModified;
+        final String hash;
+
+        SourceImage(String path, long length, long lastModified, String hash)
+        {
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * A sprite recorded in the manifest.
+     */
+    private static final class Entry
+    {
+        final String spriteId;
+        final String inputsHash;
+        final String resolvedPath;
+        final String resolvedPathIe6;
+        final int spriteWidth;
+        final int spriteHeight;
+        final float scaleRatio;
+        final List<String> outputFiles;
+        final int [] replacementIndexes;
+        final int [] replacementOffsets;
+        final List<SourceImage> sourceImages;
+
+        Entry(String spriteId, String inputsHash, String resolvedPath,
+            String resolvedPathIe6, int spriteWidth, int spriteHeight, float scaleRatio,
+            List<String> outputFiles, int [] replacementIndexes,
+            int [] replacementOffsets, List<SourceImage> sourceImages)
+        {
+            this.spriteId = spriteId;
+            this.inputsHash = inputsHash;
+            this.resolvedPath = resolvedPath;
+            this.resolvedPathIe6 = resolvedPathIe6;
+            this.spriteWidth = spriteWidth;
+            this.spriteHeight = spriteHeight;
+            this.scaleRatio = scaleRatio;
+            this.outputFiles = outputFiles;
+            this.replacementIndexes = replacementIndexes;
+            this.replacementOffsets = replacementOffsets;
+            this.sourceImages = sourceImages;
+        }
+
+        /**
+         * Copies a previous entry, with updated source images.
+         */
+        Entry(Entry previous, List<SourceImage> sourceImages)
+        {
+            this(previous.spriteId, previous.inputsHash, previous.resolvedPath,
+                previous.resolvedPathIe6, previous.spriteWidth, previous.spriteHeight,
+                previous.scaleRatio, previous.outputFiles, previous.replacementIndexes,
+                previous.replacementOffsets, sourceImages);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.carrot2.labs.smartsprites;
+
+import java.util.Map;
+
+import org.carrot2.labs.smartsprites.resource.InMemoryResourceHandler;
+
+import com.google.common.collect.Multimap;
+
+/**
+ * The outcome of building sprites in memory, see
+ * {@link SpriteBuilder#buildSpritesInMemory(java.util.Collection)}.
+ */
+public class SpriteBuildResult
+{
+    /**
+     * Content of the generated sprite images, by their paths normalized by
+     * {@link InMemoryResourceHandler#normalize(String)}, in the order of writing.
+     */
+    public final Map<String, byte []> spriteImages;
+
+    /**
+     * Content of the generated CSS files, by the paths of the original CSS files.
+     */
+    public final Map<String, String> processedCss;
+
+    /**
+     * {@link SpriteReferenceReplacement}s made in the generated CSS files, by the paths
+     * of the original CSS files.
+     */
+    public final Multimap<String, SpriteReferenceReplacement> spriteReferenceReplacements;
+
+    public SpriteBuildResult(Map<String, byte []> spriteImages,
+        Map<String, String> processedCss,
+        Multimap<String, SpriteReferenceReplacement> spriteReferenceReplacements)
+    {
+        this.spriteImages = spriteImages;
+        this.processedCss = processedCss;
+        this.spriteReferenceReplacements = spriteReferenceReplacements;
+    }
+}
@@ -0,0 +1,613 @@
+package org.carrot2.labs.smartsprites;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.carrot2.labs.smartsprites.SpriteBuilder.SpriteDirectiveOccurrences;
+import org.carrot2.labs.smartsprites.message.LevelCounterMessageSink;
+import org.carrot2.labs.smartsprites.message.Message.MessageType;
+import org.carrot2.labs.smartsprites.message.MessageLog;
+import org.carrot2.util.FileUtils;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+/**
+ * Builds sprites and then watches the root directory and the document root directory
+ * for changes. After each change, only the sprites declared in or referenced from the
+ * changed CSS files and the sprites built from the changed images are rebuilt, and only
+ * the CSS files referring to them are rewritten. Parsed CSS files and decoded source
+ * images are kept in memory between builds. This class is not thread-safe.
+ */
+public class SpriteBuildWatcher
+{
+    /** Time to wait for further changes before rebuilding, in milliseconds */
+    private static final long QUIET_PERIOD_MILLIS = 100;
+
+    /** This watcher's configuration */
+    public final SmartSpritesParameters parameters;
+
+    /** This watcher's message log */
+    private final MessageLog messageLog;
+
+    /** Builder used for all processing stages */
+    private final SpriteBuilder spriteBuilder;
+
+    /** Decoded source images and their dependent sprites */
+    private final SourceImageCache sourceImageCache = new SourceImageCache();
+
+    /** Counts warnings so that each build can report its own */
+    private final LevelCounterMessageSink levelCounter = new LevelCounterMessageSink();
+
+    /** Paths of the CSS files being processed, in processing order */
+    private final List<String> cssFiles = Lists.newArrayList();
+
+    /** CSS files being processed by their canonical paths */
+    private final Map<String, String> cssFilesByCanonicalPath = Maps.newHashMap();
+
+    /** Canonical paths of the CSS files generated from the processed ones */
+    private final Set<String> processedCssFiles = Sets.newHashSet();
+
+    /** Parsed CSS files */
+    private final Map<String, CssDocument> cssDocumentsByFile = Maps.newHashMap();
+
+    /** Ids of sprites declared in or referenced from each CSS file */
+    private final SetMultimap<String, String> spriteIdsByCssFile = HashMultimap.create();
+
+    /** Current replacements of all sprites, by the path of the referring CSS file */
+    private final Multimap<String, SpriteReferenceReplacement> spriteReplacementsByFile = LinkedListMultimap
+        .create();
+
+    /** The watch service, available while watching */
+    private WatchService watchService;
+
+    /** Directories being watched */
+    private final Set<Path> watchedDirectories = Sets.newHashSet();
+
+    /** Directories whose newly created subdirectories should also be watched */
+    private final Set<Path> recursivelyWatchedDirectories = Sets.newHashSet();
+
+    /**
+     * Creates a {@link SpriteBuildWatcher} with the provided parameters and log. All paths
+     * are resolved against the local file system.
+     */
+    public SpriteBuildWatcher(SmartSpritesParameters parameters, MessageLog messageLog)
+    {
+        this.parameters = parameters;
+        this.messageLog = messageLog;
+        this.spriteBuilder = new SpriteBuilder(parameters, messageLog);
+        spriteBuilder.getSpriteImageBuilder().setSourceImageCache(sourceImageCache);
+        messageLog.addMessageSink(levelCounter);
+    }
+
+    /**
+     * Builds all sprites and then rebuilds the affected ones after each change until the
+     * current thread is interrupted.
+     */
+    public void watch() throws IOException, InterruptedException
+    {
+        if (!parameters.validate(messageLog))
+        {
+            return;
+        }
+
+        watchService = FileSystems.getDefault().newWatchService();
+        try
+        {
+            buildSprites();
+            watchDirectories();
+
+            while (true)
+            {
+                rebuildSprites(takeChanges());
+                watchSourceImageDirectories();
+            }
+        }
+        finally
+        {
+            watchService.close();
+            watchService = null;
+            watchedDirectories.clear();
+            recursivelyWatchedDirectories.clear();
+        }
+    }
+
+    /**
+     * Builds all sprites from scratch.
+     */
+    void buildSprites() throws IOException
+    {
+        cssFiles.clear();
+        cssFilesByCanonicalPath.clear();
+        processedCssFiles.clear();
+        cssDocumentsByFile.clear();
+        spriteIdsByCssFile.clear();
+        spriteReplacementsByFile.clear();
+        spriteBuilder.invalidateResourceCache();
+
+        final Collection<String> cssFilePaths = spriteBuilder.getCssFilePaths();
+        for (String cssFile : cssFilePaths)
+        {
+            addCssFile(cssFile);
+        }
+
+        // When processing all CSS files from the root directory, files generated in the
+        // previous runs must not be processed again
+        for (String cssFile : Lists.newArrayList(cssFiles))
+        {
+            if (processedCssFiles.contains(getCanonicalPath(cssFile)))
+            {
+                removeCssFile(cssFile);
+            }
+        }
+
+        build(Sets.newLinkedHashSet(cssFiles), Sets.<String> newHashSet(), 0);
+    }
+
+    /**
+     * Rebuilds the sprites affected by changes of the provided files. Files that are
+     * neither processed CSS files, nor new CSS files in the root directory, nor source
+     * images of any sprite are ignored.
+     */
+    void rebuildSprites(Collection<Path> changedFiles) throws IOException
+    {
+        final Set<String> changedCssFiles = Sets.newLinkedHashSet();
+        final Set<String> affectedSpriteIds = Sets.newHashSet();
+        int changedFileCount = 0;
+        for (Path changedFile : changedFiles)
+        {
+            final String canonicalPath = getCanonicalPath(changedFile.toString());
+            final Set<String> spriteIds = sourceImageCache.invalidate(canonicalPath);
+            String cssFile = cssFilesByCanonicalPath.get(canonicalPath);
+            if (cssFile == null && isNewCssFile(changedFile, canonicalPath))
+            {
+                cssFile = getRootDirRelativePath(canonicalPath);
+                addCssFile(cssFile);
+            }
+
+            if (cssFile != null)
+            {
+                changedCssFiles.add(cssFile);
+            }
+            affectedSpriteIds.addAll(spriteIds);
+            if (cssFile != null || !spriteIds.isEmpty())
+            {
+                changedFileCount++;
+            }
+        }
+
+        if (changedFileCount > 0)
+        {
+            build(changedCssFiles, affectedSpriteIds, changedFileCount);
+        }
+    }
+
+    /**
+     * Rebuilds the provided sprites, the sprites declared in or referenced from the
+     * changed CSS files and rewrites the CSS files referring to them.
+     */
+    private void build(Set<String> changedCssFiles, Set<String> affectedSpriteIds,
+        int changedFileCount) throws IOException
+    {
+        final long start = System.currentTimeMillis();
+        final int warnCount = levelCounter.getWarnCount();
+        final int unchangedFileCount = spriteBuilder.getUnchangedFileCount();
+        spriteBuilder.invalidateResourceCache();
+
+        // Sprites declared or referenced in the changed files before the change
+        for (String cssFile : changedCssFiles)
+        {
+            affectedSpriteIds.addAll(spriteIdsByCssFile.get(cssFile));
+        }
+
+        // Parse the changed files again, the unchanged ones are already in memory
+        final List<String> cssFilesToRead = Lists.newArrayList();
+        for (String cssFile : changedCssFiles)
+        {
+            if (new File(cssFile).isFile())
+            {
+                cssFilesToRead.add(cssFile);
+            }
+            else
+            {
+                removeCssFile(cssFile);
+            }
+        }
+        for (CssDocument cssDocument : spriteBuilder
+            .getSpriteDirectiveOccurrenceCollector().readCssDocuments(cssFilesToRead))
+        {
+            cssDocumentsByFile.put(cssDocument.cssFile, cssDocument);
+        }
+
+        final List<CssDocument> cssDocuments = Lists.newArrayList();
+        for (String cssFile : cssFiles)
+        {
+            cssDocuments.add(cssDocumentsByFile.get(cssFile));
+        }
+        final SpriteDirectiveOccurrences occurrences = spriteBuilder
+            .collectSpriteDirectiveOccurrences(cssDocuments);
+
+        // Update the CSS file dependencies and add the sprites declared or referenced
+        // in the changed files after the change
+        spriteIdsByCssFile.clear();
+        for (Map.Entry<String, SpriteImageOccurrence> entry : occurrences.spriteImageOccurrencesByFile
+            .entries())
+        {
+            spriteIdsByCssFile.put(entry.getKey(),
+                entry.getValue().spriteImageDirective.spriteId);
+        }
+        for (Map.Entry<String, SpriteReferenceOccurrence> entry : occurrences.spriteReferenceOccurrencesByFile
+            .entries())
+        {
+            spriteIdsByCssFile.put(entry.getKey(),
+                entry.getValue().spriteReferenceDirective.spriteRef);
+        }
+        for (String cssFile : changedCssFiles)
+        {
+            affectedSpriteIds.addAll(spriteIdsByCssFile.get(cssFile));
+        }
+
+        if (changedFileCount > 0)
+        {
+            messageLog.setCssFile(null);
+            messageLog.info(MessageType.REBUILDING_AFTER_CHANGES, changedFileCount,
+                affectedSpriteIds.size());
+        }
+
+        // Drop the replacements of the affected sprites, the files containing them
+        // will need rewriting
+        final Set<String> cssFilesToRewrite = Sets.newHashSet(changedCssFiles);
+        for (Iterator<Map.Entry<String, SpriteReferenceReplacement>> it = spriteReplacementsByFile
+            .entries().iterator(); it.hasNext();)
+        {
+            final Map.Entry<String, SpriteReferenceReplacement> entry = it.next();
+            if (changedCssFiles.contains(entry.getKey())
+                || affectedSpriteIds.contains(entry.getValue().spriteReferenceOccurrence.spriteReferenceDirective.spriteRef))
+            {
+                cssFilesToRewrite.add(entry.getKey());
+                it.remove();
+            }
+        }
+
+        // Rebuild the affected sprites
+        final Map<String, SpriteImageOccurrence> spriteImageOccurrencesBySpriteId = Maps
+            .newLinkedHashMap();
+        for (Map.Entry<String, SpriteImageOccurrence> entry : occurrences.spriteImageOccurrencesBySpriteId
+            .entrySet())
+        {
+            if (affectedSpriteIds.contains(entry.getKey()))
+            {
+                spriteImageOccurrencesBySpriteId.put(entry.getKey(), entry.getValue());
+            }
+        }
+        final Multimap<String, SpriteReferenceOccurrence> spriteReferenceOccurrencesBySpriteId = LinkedListMultimap
+            .create();
+        for (Map.Entry<String, SpriteReferenceOccurrence> entry : occurrences.spriteReferenceOccurrencesBySpriteId
+            .entries())
+        {
+            if (affectedSpriteIds.contains(entry.getKey()))
+            {
+                spriteReferenceOccurrencesBySpriteId.put(entry.getKey(),
+                    entry.getValue());
+            }
+        }
+        for (String spriteId : affectedSpriteIds)
+        {
+            if (!spriteReferenceOccurrencesBySpriteId.containsKey(spriteId))
+            {
+                sourceImageCache.removeDependencies(spriteId);
+            }
+        }
+
+        messageLog.setCssFile(null);
+        final Multimap<String, SpriteReferenceReplacement> rebuiltReplacementsByFile = spriteBuilder
+            .getSpriteImageBuilder().buildSpriteImages(spriteImageOccurrencesBySpriteId,
+                spriteReferenceOccurrencesBySpriteId);
+        spriteReplacementsByFile.putAll(rebuiltReplacementsByFile);
+        cssFilesToRewrite.addAll(rebuiltReplacementsByFile.keySet());
+        cssFilesToRewrite.retainAll(cssDocumentsByFile.keySet());
+
+        // Rewrite the affected CSS files
+        spriteBuilder.rewriteCssFiles(cssDocumentsByFile,
+            occurrences.spriteImageOccurrencesByFile, spriteReplacementsByFile,
+            cssFilesToRewrite);
+        spriteBuilder.logUnchangedFiles(unchangedFileCount);
+
+        final long stop = System.currentTimeMillis();
+        final int warnings = levelCounter.getWarnCount() - warnCount;
+        if (warnings > 0)
+        {
+            messageLog.status(MessageType.PROCESSING_COMPLETED_WITH_WARNINGS,
+                (stop - start), warnings);
+        }
+        else
+        {
+            messageLog.status(MessageType.PROCESSING_COMPLETED, (stop - start));
+        }
+    }
+
+    /**
+     * Waits for changes and returns the changed files. Changes following each other
+     * within a short period of time are returned together.
+     */
+    private Set<Path> takeChanges() throws IOException, InterruptedException
+    {
+        final Set<Path> changedFiles = Sets.newLinkedHashSet();
+        boolean overflow = false;
+        WatchKey key = watchService.take();
+        while (key != null)
+        {
+            final Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents())
+            {
+                if (event.kind() == OVERFLOW)
+                {
+                    overflow = true;
+                    continue;
+                }
+
+                final Path file = directory.resolve((Path) event.context());
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(file)
+                    && recursivelyWatchedDirectories.contains(directory))
+                {
+                    // Files may have been created before the directory got watched
+                    watchDirectory(file, true);
+                    changedFiles.addAll(listFiles(file));
+                }
+                else
+                {
+                    changedFiles.add(file);
+                }
+            }
+            key.reset();
+            key = watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        if (overflow)
+        {
+            // Some events were lost, consider all relevant files changed
+            for (String cssFile : cssFiles)
+            {
+                changedFiles.add(Paths.get(getCanonicalPath(cssFile)));
+            }
+            for (String cssFile : spriteBuilder.getCssFilePaths())
+            {
+                changedFiles.add(Paths.get(getCanonicalPath(cssFile)));
+            }
+            for (String sourceImage : sourceImageCache.getSourceImages())
+            {
+                changedFiles.add(Paths.get(sourceImage));
+            }
+        }
+
+        return changedFiles;
+    }
+
+    /**
+     * Starts watching the root directory (or the directories of the processed CSS
+     * files), the document root directory and the directories of source images.
+     */
+    private void watchDirectories() throws IOException
+    {
+        final List<String> watchedPaths = Lists.newArrayList();
+        if (parameters.hasRootDir())
+        {
+            watchedPaths.add(parameters.getRootDir());
+            watchDirectory(Paths.get(getCanonicalPath(parameters.getRootDirFile()
+                .getPath())), true);
+        }
+        else
+        {
+            for (String cssFile : cssFiles)
+            {
+                final Path directory = Paths.get(getCanonicalPath(cssFile)).getParent();
+                if (!watchedDirectories.contains(directory))
+                {
+                    watchedPaths.add(directory.toString());
+                    watchDirectory(directory, false);
+                }
+            }
+        }
+
+        if (parameters.hasDocumentRootDir())
+        {
+            watchedPaths.add(parameters.getDocumentRootDir());
+            watchDirectory(Paths.get(getCanonicalPath(parameters.getDocumentRootDir())),
+                true);
+        }
+
+        watchSourceImageDirectories();
+
+        messageLog.setCssFile(null);
+        messageLog.status(MessageType.WATCHING_FOR_CHANGES,
+            Joiner.on(", ").join(watchedPaths));
+    }
+
+    /**
+     * Starts watching directories of source images located outside of the watched
+     * directories.
+     */
+    private void watchSourceImageDirectories() throws IOException
+    {
+        for (String sourceImage : sourceImageCache.getSourceImages())
+        {
+            final Path directory = Paths.get(sourceImage).getParent();
+            if (directory != null && Files.isDirectory(directory))
+            {
+                watchDirectory(directory, false);
+            }
+        }
+    }
+
+    /**
+     * Starts watching the provided directory and, if <code>recursive</code>, all its
+     * subdirectories.
+     */
+    private void watchDirectory(Path directory, final boolean recursive)
+        throws IOException
+    {
+        if (!recursive)
+        {
+            register(directory, false);
+            return;
+        }
+
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+            {
+                register(dir, true);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e)
+            {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void register(Path directory, boolean recursive)
+    {
+        if (recursive)
+        {
+            recursivelyWatchedDirectories.add(directory);
+        }
+        if (!watchedDirectories.add(directory))
+        {
+            return;
+        }
+
+        try
+        {
+            directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        }
+        catch (IOException e)
+        {
+            watchedDirectories.remove(directory);
+            messageLog.setCssFile(null);
+            messageLog.warning(MessageType.CANNOT_WATCH_DIRECTORY, directory,
+                e.getMessage());
+        }
+    }
+
+    /**
+     * Lists all regular files in the provided directory and its subdirectories.
+     */
+    private static List<Path> listFiles(Path directory) throws IOException
+    {
+        final List<Path> files = Lists.newArrayList();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+            {
+                if (attrs.isRegularFile())
+                {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e)
+            {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Returns <code>true</code> if the provided file is a CSS file created in the root
+     * directory that should be processed. Applies only when all CSS files from the root
+     * directory are processed.
+     */
+    private boolean isNewCssFile(Path file, String canonicalPath) throws IOException
+    {
+        return !parameters.hasCssFiles() && canonicalPath.endsWith(".css")
+            && !processedCssFiles.contains(canonicalPath) && Files.isRegularFile(file)
+            && FileUtils.isFileInParent(new File(canonicalPath),
+                parameters.getRootDirFile());
+    }
+
+    /**
+     * Converts a canonical path of a file in the root directory to a path starting with
+     * the root directory, as used for the CSS files found in the initial build.
+     */
+    private String getRootDirRelativePath(String canonicalPath) throws IOException
+    {
+        final File rootDir = parameters.getRootDirFile();
+        final Path relativePath = Paths.get(getCanonicalPath(rootDir.getPath()))
+            .relativize(Paths.get(canonicalPath));
+        return new File(rootDir, relativePath.toString()).getPath();
+    }
+
+    private void addCssFile(String cssFile) throws IOException
+    {
+        if (cssFiles.contains(cssFile))
+        {
+            return;
+        }
+
+        cssFiles.add(cssFile);
+        if (!parameters.hasCssFiles())
+        {
+            // Keep the order in which the files are found in the root directory
+            Collections.sort(cssFiles, new Comparator<String>()
+            {
+                public int compare(String f1, String f2)
+                {
+                    return new File(f1).getAbsolutePath().compareTo(
+                        new File(f2).getAbsolutePath());
+                }
+            });
+        }
+        cssFilesByCanonicalPath.put(getCanonicalPath(cssFile), cssFile);
+        processedCssFiles.add(getCanonicalPath(spriteBuilder.getProcessedCssFile(cssFile)));
+    }
+
+    private void removeCssFile(String cssFile)
+    {
+        cssFiles.remove(cssFile);
+        cssDocumentsByFile.remove(cssFile);
+        cssFilesByCanonicalPath.remove(getCanonicalPath(cssFile));
+        processedCssFiles.remove(getCanonicalPath(spriteBuilder.getProcessedCssFile(cssFile)));
+    }
+
+    private static String getCanonicalPath(String path)
+    {
+        return FileUtils.getCanonicalOrAbsoluteFile(path).getPath();
+    }
+}
@@ -1,6 +1,5 @@
 package org.carrot2.labs.smartsprites;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
@@ -12,22 +11,25 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.carrot2.labs.smartsprites.message.LevelCounterMessageSink;
 import org.carrot2.labs.smartsprites.message.Message.MessageType;
 import org.carrot2.labs.smartsprites.message.MessageLog;
+import org.carrot2.labs.smartsprites.resource.CachingResourceHandler;
 import org.carrot2.labs.smartsprites.resource.FileSystemResourceHandler;
+import org.carrot2.labs.smartsprites.resource.InMemoryResourceHandler;
 import org.carrot2.labs.smartsprites.resource.ResourceHandler;
 import org.carrot2.util.FileUtils;
 import org.carrot2.util.PathUtils;
 import org.carrot2.util.StringUtils;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
-import com.google.common.io.Closeables;
 
 /**
  * Performs all stages of sprite building. This class is not thread-safe.
@@ -58,8 +60,9 @@ public class SpriteBuilder
      */
     public SpriteBuilder(SmartSpritesParameters parameters, MessageLog messageLog)
     {
-        this(parameters, messageLog, new FileSystemResourceHandler(
-            parameters.getDocumentRootDir(), parameters.getCssFileEncoding(), messageLog));
+        this(parameters, messageLog, new CachingResourceHandler(
+            new FileSystemResourceHandler(parameters.getDocumentRootDir(), parameters
+                .getCssFileEncoding(), parameters.isWriteIfChanged(), messageLog)));
     }
 
     /**
@@ -88,6 +91,15 @@ public class SpriteBuilder
             return;
         }
 
+        buildSprites(getCssFilePaths());
+    }
+
+    /**
+     * Returns the paths of CSS files to process for this builder's parameters: either
+     * the explicitly provided files or all CSS files from the root directory.
+     */
+    Collection<String> getCssFilePaths() throws IOException
+    {
         final Collection<String> filePaths;
         if (parameters.getCssFiles() != null && !parameters.getCssFiles().isEmpty())
         {
@@ -143,7 +155,7 @@ public class SpriteBuilder
             }
         }
 
-        buildSprites(filePaths);
+        return filePaths;
     }
 
     private void filterFilesOutsideRootDir(Collection<String> filePaths)
@@ -170,15 +182,150 @@ public class SpriteBuilder
      *            '/' as the file separator are supported.
      */
     public void buildSprites(Collection<String> filePaths) throws IOException
+    {
+        build(filePaths);
+    }
+
+    /**
+     * Performs processing from the list of CSS file paths without writing anything to
+     * the file system. This builder must have been created with an
+     * {@link InMemoryResourceHandler} holding the CSS files and images. The generated
+     * sprite images and CSS files are stored in the resource handler and returned in the
+     * result.
+     *
+     * @param filePaths paths of CSS files to process, as known to the resource handler
+     */
+    public SpriteBuildResult buildSpritesInMemory(Collection<String> filePaths)
+        throws IOException
+    {
+        if (!(resourceHandler instanceof InMemoryResourceHandler))
+        {
+            throw new IllegalStateException("Building in memory requires an "
+                + InMemoryResourceHandler.class.getSimpleName());
+        }
+        final InMemoryResourceHandler inMemoryResourceHandler = (InMemoryResourceHandler) resourceHandler;
+
+        inMemoryResourceHandler.clearWrittenResources();
+        final Multimap<String, SpriteReferenceReplacement> spriteReplacementsByFile = build(filePaths);
+        final Set<String> writtenResources = inMemoryResourceHandler
+            .getWrittenResources();
+
+        // Written resources other than CSS files and the manifest are sprite images
+        final Map<String, String> processedCssByFile = Maps.newLinkedHashMap();
+        for (String cssFile : filePaths)
+        {
+            final String processedCssFile = getProcessedCssFile(cssFile);
+            if (writtenResources.remove(InMemoryResourceHandler
+                .normalize(processedCssFile)))
+            {
+                processedCssByFile.put(cssFile, new String(inMemoryResourceHandler
+                    .getResource(processedCssFile), inMemoryResourceHandler.getCharset()));
+            }
+        }
+        final String manifestPath = getBuildManifestPath();
+        if (manifestPath != null)
+        {
+            writtenResources.remove(InMemoryResourceHandler.normalize(manifestPath));
+        }
+
+        final Map<String, byte []> spriteImagesByPath = Maps.newLinkedHashMap();
+        for (String path : writtenResources)
+        {
+            spriteImagesByPath.put(path, inMemoryResourceHandler.getResource(path));
+        }
+
+        return new SpriteBuildResult(spriteImagesByPath, processedCssByFile,
+            spriteReplacementsByFile);
+    }
+
+    /**
+     * Performs processing from the list of file paths and returns the replacements made
+     * in each CSS file.
+     */
+    private Multimap<String, SpriteReferenceReplacement> build(
+        Collection<String> filePaths) throws IOException
     {
         final long start = System.currentTimeMillis();
 
+        // Resources may have changed since the previous build with this builder
+        invalidateResourceCache();
+
         final LevelCounterMessageSink levelCounter = new LevelCounterMessageSink();
         messageLog.addMessageSink(levelCounter);
+        final int unchangedFileCount = getUnchangedFileCount();
 
+        // Read all css files once, all further processing works off the documents
+        final List<CssDocument> cssDocuments = spriteDirectiveOccurrenceCollector
+            .readCssDocuments(filePaths);
+
+        // Collect and merge sprite declarations and references from all css files
+        final SpriteDirectiveOccurrences occurrences = collectSpriteDirectiveOccurrences(cssDocuments);
+
+        // If only planning, report the sprite dimensions and stop
+        messageLog.setCssFile(null);
+        if (parameters.isPlan())
+        {
+            spriteImageBuilder.planSpriteImages(
+                occurrences.spriteImageOccurrencesBySpriteId,
+                occurrences.spriteReferenceOccurrencesBySpriteId);
+            logCompleted(start, levelCounter);
+            return LinkedListMultimap.create();
+        }
+
+        // Build the sprite images, reusing the unchanged ones if building incrementally
+        final SpriteBuildManifest manifest = readBuildManifest();
+        final Multimap<String, SpriteReferenceReplacement> spriteReplacementsByFile = spriteImageBuilder
+            .buildSpriteImages(occurrences.spriteImageOccurrencesBySpriteId,
+                occurrences.spriteReferenceOccurrencesBySpriteId, manifest);
+
+        // Rewrite the CSS
+        final Map<String, CssDocument> cssDocumentsByFile = Maps.newHashMap();
+        for (CssDocument cssDocument : cssDocuments)
+        {
+            cssDocumentsByFile.put(cssDocument.cssFile, cssDocument);
+        }
+        rewriteCssFiles(cssDocumentsByFile, occurrences.spriteImageOccurrencesByFile,
+            spriteReplacementsByFile, null);
+
+        if (manifest != null)
+        {
+            manifest.write(messageLog);
+        }
+
+        logUnchangedFiles(unchangedFileCount);
+
+        logCompleted(start, levelCounter);
+        return spriteReplacementsByFile;
+    }
+
+    /**
+     * Logs the final status message of a build started at the provided time.
+     */
+    private void logCompleted(long start, LevelCounterMessageSink levelCounter)
+    {
+        final long stop = System.currentTimeMillis();
+
+        if (levelCounter.getWarnCount() > 0)
+        {
+            messageLog.status(MessageType.PROCESSING_COMPLETED_WITH_WARNINGS,
+                (stop - start), levelCounter.getWarnCount());
+        }
+        else
+        {
+            messageLog.status(MessageType.PROCESSING_COMPLETED, (stop - start));
+        }
+    }
+
+    /**
+     * Collects sprite image and sprite reference directives from the provided documents
+     * and groups them by sprite id.
+     */
+    SpriteDirectiveOccurrences collectSpriteDirectiveOccurrences(
+        Collection<CssDocument> cssDocuments)
+    {
         // Collect sprite declarations from all css files
         final Multimap<String, SpriteImageOccurrence> spriteImageOccurrencesByFile = spriteDirectiveOccurrenceCollector
-            .collectSpriteImageOccurrences(filePaths);
+            .collectSpriteImageOccurrences(cssDocuments);
 
         // Merge them, checking for duplicates
         final Map<String, SpriteImageOccurrence> spriteImageOccurrencesBySpriteId = spriteDirectiveOccurrenceCollector
@@ -194,41 +341,107 @@ public class SpriteBuilder
 
         // Collect sprite references from all css files
         final Multimap<String, SpriteReferenceOccurrence> spriteEntriesByFile = spriteDirectiveOccurrenceCollector
-            .collectSpriteReferenceOccurrences(filePaths, spriteImageDirectivesBySpriteId);
+            .collectSpriteReferenceOccurrences(cssDocuments,
+                spriteImageDirectivesBySpriteId);
 
         // Now merge and regroup all files by sprite-id
         final Multimap<String, SpriteReferenceOccurrence> spriteReferenceOccurrencesBySpriteId = SpriteDirectiveOccurrenceCollector
             .mergeSpriteReferenceOccurrences(spriteEntriesByFile);
 
-        // Build the sprite images
-        messageLog.setCssFile(null);
-        final Multimap<String, SpriteReferenceReplacement> spriteReplacementsByFile = spriteImageBuilder
-            .buildSpriteImages(spriteImageOccurrencesBySpriteId,
-                spriteReferenceOccurrencesBySpriteId);
+        return new SpriteDirectiveOccurrences(spriteImageOccurrencesByFile,
+            spriteImageOccurrencesBySpriteId, spriteEntriesByFile,
+            spriteReferenceOccurrencesBySpriteId);
+    }
 
-        // Rewrite the CSS
-        rewriteCssFiles(spriteImageOccurrencesByFile, spriteReplacementsByFile);
+    /**
+     * Returns the number of files left intact so far because their content did not
+     * change. Always zero unless writing only changed files to the file system.
+     */
+    int getUnchangedFileCount()
+    {
+        ResourceHandler handler = resourceHandler;
+        if (handler instanceof CachingResourceHandler)
+        {
+            handler = ((CachingResourceHandler) handler).getDelegate();
+        }
+        if (handler instanceof FileSystemResourceHandler)
+        {
+            return ((FileSystemResourceHandler) handler).getUnchangedFileCount();
+        }
+        return 0;
+    }
 
-        final long stop = System.currentTimeMillis();
+    /**
+     * Makes the resource handler forget the resource paths and existence of resources
+     * it may have remembered during the previous builds.
+     */
+    void invalidateResourceCache()
+    {
+        if (resourceHandler instanceof CachingResourceHandler)
+        {
+            ((CachingResourceHandler) resourceHandler).invalidateAll();
+        }
+    }
 
-        if (levelCounter.getWarnCount() > 0)
+    /**
+     * Reports the number of files left intact since the provided count was taken.
+     */
+    void logUnchangedFiles(int unchangedFileCountBefore)
+    {
+        if (parameters.isWriteIfChanged())
         {
-            messageLog.status(MessageType.PROCESSING_COMPLETED_WITH_WARNINGS,
-                (stop - start), levelCounter.getWarnCount());
+            messageLog.setCssFile(null);
+            messageLog.info(MessageType.UNCHANGED_FILES_NOT_WRITTEN,
+                getUnchangedFileCount() - unchangedFileCountBefore);
         }
-        else
+    }
+
+    /**
+     * Reads the build manifest of the previous run. Returns <code>null</code> if not
+     * building incrementally.
+     */
+    private SpriteBuildManifest readBuildManifest()
+    {
+        if (!parameters.isIncremental())
         {
-            messageLog.status(MessageType.PROCESSING_COMPLETED, (stop - start));
+            return null;
         }
+
+        final String manifestPath = getBuildManifestPath();
+        if (manifestPath == null)
+        {
+            messageLog.warning(MessageType.NO_DIRECTORY_FOR_BUILD_MANIFEST);
+            return null;
+        }
+
+        return SpriteBuildManifest.read(manifestPath, parameters, resourceHandler,
+            messageLog);
     }
 
     /**
-     * Rewrites the original files to refer to the generated sprite images.
+     * Returns the path of the build manifest or <code>null</code> if there is no
+     * directory to store it in.
      */
-    private void rewriteCssFiles(
+    private String getBuildManifestPath()
+    {
+        final String manifestDir = parameters.hasOutputDir() ? parameters.getOutputDir()
+            : parameters.getRootDir();
+        if (StringUtils.isBlank(manifestDir))
+        {
+            return null;
+        }
+        return new File(manifestDir, SpriteBuildManifest.FILE_NAME).getPath();
+    }
+
+    /**
+     * Rewrites the original files to refer to the generated sprite images. If
+     * <code>cssFilesToRewrite</code> is not <code>null</code>, only the files it
+     * contains are rewritten.
+     */
+    void rewriteCssFiles(final Map<String, CssDocument> cssDocumentsByFile,
         final Multimap<String, SpriteImageOccurrence> spriteImageOccurrencesByFile,
-        final Multimap<String, SpriteReferenceReplacement> spriteReplacementsByFile)
-        throws IOException
+        final Multimap<String, SpriteReferenceReplacement> spriteReplacementsByFile,
+        final Collection<String> cssFilesToRewrite) throws IOException
     {
         if (spriteReplacementsByFile.isEmpty())
         {
@@ -238,9 +451,13 @@ public class SpriteBuilder
                 .asMap().entrySet())
             {
                 final String cssFile = entry.getKey();
+                if (cssFilesToRewrite != null && !cssFilesToRewrite.contains(cssFile))
+                {
+                    continue;
+                }
 
                 createProcessedCss(
-                    cssFile,
+                    cssDocumentsByFile.get(cssFile),
                     SpriteImageBuilder
                         .getSpriteImageOccurrencesByLineNumber(spriteImageOccurrencesByFile
                             .get(cssFile)),
@@ -253,11 +470,16 @@ public class SpriteBuilder
                 .asMap().entrySet())
             {
                 final String cssFile = entry.getKey();
+                if (cssFilesToRewrite != null && !cssFilesToRewrite.contains(cssFile))
+                {
+                    continue;
+                }
+
                 final Map<Integer, SpriteReferenceReplacement> spriteReplacementsByLineNumber = SpriteImageBuilder
                     .getSpriteReplacementsByLineNumber(entry.getValue());
 
                 createProcessedCss(
-                    cssFile,
+                    cssDocumentsByFile.get(cssFile),
                     SpriteImageBuilder
                         .getSpriteImageOccurrencesByLineNumber(spriteImageOccurrencesByFile
                             .get(cssFile)), spriteReplacementsByLineNumber);
@@ -268,14 +490,13 @@ public class SpriteBuilder
     /**
      * Rewrites one CSS file to refer to the generated sprite images.
      */
-    private void createProcessedCss(String originalCssFile,
+    private void createProcessedCss(CssDocument originalCss,
         Map<Integer, SpriteImageOccurrence> spriteImageOccurrencesByLineNumber,
         Map<Integer, SpriteReferenceReplacement> spriteReplacementsByLineNumber)
         throws IOException
     {
+        String originalCssFile = originalCss.cssFile;
         final String processedCssFile = getProcessedCssFile(originalCssFile);
-        final BufferedReader originalCssReader = new BufferedReader(
-            resourceHandler.getResourceAsReader(originalCssFile));
         messageLog.setCssFile(null);
         messageLog.info(MessageType.CREATING_CSS_STYLE_SHEET, processedCssFile);
         messageLog.info(MessageType.READING_CSS, originalCssFile);
@@ -283,8 +504,6 @@ public class SpriteBuilder
             resourceHandler.getResourceAsWriter(processedCssFile));
         messageLog.info(MessageType.WRITING_CSS, processedCssFile);
 
-        String originalCssLine;
-        int originalCssLineNumber = -1;
         int lastReferenceReplacementLine = -1;
 
         boolean markSpriteImages = parameters.isMarkSpriteImages();
@@ -296,9 +515,10 @@ public class SpriteBuilder
 
             originalCssFile = originalCssFile.replace(File.separatorChar, '/');
 
-            while ((originalCssLine = originalCssReader.readLine()) != null)
+            for (int originalCssLineNumber = 0; originalCssLineNumber < originalCss
+                .getLineCount(); originalCssLineNumber++)
             {
-                originalCssLineNumber++;
+                final String originalCssLine = originalCss.getLine(originalCssLineNumber);
                 messageLog.setLine(originalCssLineNumber);
 
                 if (originalCssLine.contains("}"))
@@ -374,7 +594,6 @@ public class SpriteBuilder
         }
         finally
         {
-            Closeables.close(originalCssReader, true);
             processedCssWriter.close();
         }
     }
@@ -402,6 +621,22 @@ public class SpriteBuilder
                     + imagePath, "/");
     }
 
+    /**
+     * Returns the directive occurrence collector of this builder.
+     */
+    SpriteDirectiveOccurrenceCollector getSpriteDirectiveOccurrenceCollector()
+    {
+        return spriteDirectiveOccurrenceCollector;
+    }
+
+    /**
+     * Returns the sprite image builder of this builder.
+     */
+    SpriteImageBuilder getSpriteImageBuilder()
+    {
+        return spriteImageBuilder;
+    }
+
     /**
      * Gets the name of the processed CSS file.
      */
@@ -429,4 +664,34 @@ public class SpriteBuilder
             return processedCssFile;
         }
     }
+
+    /**
+     * Sprite image and sprite reference directives collected from a set of CSS files.
+     */
+    static final class SpriteDirectiveOccurrences
+    {
+        /** Sprite image occurrences by the path of the declaring CSS file */
+        final Multimap<String, SpriteImageOccurrence> spriteImageOccurrencesByFile;
+
+        /** Sprite image occurrences by sprite id, without redefinitions */
+        final Map<String, SpriteImageOccurrence> spriteImageOccurrencesBySpriteId;
+
+        /** Sprite reference occurrences by the path of the referring CSS file */
+        final Multimap<String, SpriteReferenceOccurrence> spriteReferenceOccurrencesByFile;
+
+        /** Sprite reference occurrences by the referenced sprite id */
+        final Multimap<String, SpriteReferenceOccurrence> spriteReferenceOccurrencesBySpriteId;
+
+        SpriteDirectiveOccurrences(
+            Multimap<String, SpriteImageOccurrence> spriteImageOccurrencesByFile,
+            Map<String, SpriteImageOccurrence> spriteImageOccurrencesBySpriteId,
+            Multimap<String, SpriteReferenceOccurrence> spriteReferenceOccurrencesByFile,
+            Multimap<String, SpriteReferenceOccurrence> spriteReferenceOccurrencesBySpriteId)
+        {
+            this.spriteImageOccurrencesByFile = spriteImageOccurrencesByFile;
+            this.spriteImageOccurrencesBySpriteId = spriteImageOccurrencesBySpriteId;
+            this.spriteReferenceOccurrencesByFile = spriteReferenceOccurrencesByFile;
+            this.spriteReferenceOccurrencesBySpriteId = spriteReferenceOccurrencesBySpriteId;
+        }
+    }
 }
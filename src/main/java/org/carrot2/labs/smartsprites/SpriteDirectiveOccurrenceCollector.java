@@ -1,8 +1,8 @@
 package org.carrot2.labs.smartsprites;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -17,7 +17,6 @@ import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
-import com.google.common.io.Closeables;
 
 /**
  * Methods for collecting SmartSprites directives from CSS files.
@@ -50,146 +49,129 @@ public class SpriteDirectiveOccurrenceCollector
     }
 
     /**
-     * Collects {@link SpriteImageOccurrence}s from a single CSS file.
+     * Reads the provided CSS files into {@link CssDocument}s, in the order of the paths.
+     * Each file is read only once, the documents are then shared by all processing
+     * phases.
      */
-    Collection<SpriteImageOccurrence> collectSpriteImageOccurrences(String cssFile)
-        throws IOException
+    List<CssDocument> readCssDocuments(Collection<String> filePaths) throws IOException
+    {
+        final List<CssDocument> cssDocuments = Lists.newArrayListWithCapacity(filePaths
+            .size());
+        for (final String cssFile : filePaths)
+        {
+            cssDocuments.add(CssDocument.read(cssFile, resourceHandler));
+        }
+        return cssDocuments;
+    }
+
+    /**
+     * Collects {@link SpriteImageOccurrence}s from a single CSS document.
+     */
+    Collection<SpriteImageOccurrence> collectSpriteImageOccurrences(
+        CssDocument cssDocument)
     {
         final Collection<SpriteImageOccurrence> occurrences = Lists.newArrayList();
-        final BufferedReader reader = new BufferedReader(resourceHandler
-            .getResourceAsReader(cssFile));
+        final String cssFile = cssDocument.cssFile;
         messageLog.setCssFile(null);
         messageLog.info(MessageType.READING_SPRITE_IMAGE_DIRECTIVES, cssFile);
         messageLog.setCssFile(cssFile);
 
-        int lineNumber = -1;
-        String line;
-
-        try
+        for (int i = 0; i < cssDocument.getSpriteImageDirectiveCount(); i++)
         {
-            while ((line = reader.readLine()) != null)
+            final int lineNumber = cssDocument.getSpriteImageDirectiveLine(i);
+            messageLog.setLine(lineNumber);
+
+            final SpriteImageDirective directive = SpriteImageDirective.parse(
+                cssDocument.getSpriteImageDirective(i), messageLog);
+            if (directive == null)
             {
-                messageLog.setLine(++lineNumber);
-
-                final String spriteImageDirectiveString = extractSpriteImageDirectiveString(line);
-                if (spriteImageDirectiveString == null)
-                {
-                    continue;
-                }
-
-                final SpriteImageDirective directive = SpriteImageDirective.parse(
-                    spriteImageDirectiveString, messageLog);
-                if (directive == null)
-                {
-                    continue;
-                }
-
-                occurrences
-                    .add(new SpriteImageOccurrence(directive, cssFile, lineNumber));
+                continue;
             }
-        }
-        finally
-        {
-            Closeables.close(reader, true);
+
+            occurrences.add(new SpriteImageOccurrence(directive, cssFile, lineNumber));
         }
 
         return occurrences;
     }
 
     /**
-     * Collects {@link SpriteReferenceOccurrence}s from a single CSS file.
+     * Collects {@link SpriteReferenceOccurrence}s from a single CSS document.
      */
     Collection<SpriteReferenceOccurrence> collectSpriteReferenceOccurrences(
-        String cssFile, Map<String, SpriteImageDirective> spriteImageDirectives)
-        throws IOException
+        CssDocument cssDocument, Map<String, SpriteImageDirective> spriteImageDirectives)
     {
         final Collection<SpriteReferenceOccurrence> directives = Lists.newArrayList();
-
-        final BufferedReader reader = new BufferedReader(resourceHandler
-            .getResourceAsReader(cssFile));
+        final String cssFile = cssDocument.cssFile;
         messageLog.setCssFile(null);
         messageLog.info(MessageType.READING_SPRITE_REFERENCE_DIRECTIVES, cssFile);
         messageLog.setCssFile(cssFile);
 
-        int lineNumber = -1;
-        String line;
-
-        try
+        for (int i = 0; i < cssDocument.getSpriteReferenceDirectiveCount(); i++)
         {
-            while ((line = reader.readLine()) != null)
+            final int lineNumber = cssDocument.getSpriteReferenceDirectiveLine(i);
+            messageLog.setLine(lineNumber);
+
+            final CssProperty backgroundProperty = extractSpriteReferenceCssProperty(cssDocument
+                .getLine(lineNumber));
+            final String imageUrl = CssSyntaxUtils.unpackUrl(backgroundProperty.value,
+                messageLog);
+            if (imageUrl == null)
             {
-                messageLog.setLine(++lineNumber);
-
-                final String directiveString = extractSpriteReferenceDirectiveString(line);
-                if (directiveString == null)
-                {
-                    continue;
-                }
-
-                final CssProperty backgroundProperty = extractSpriteReferenceCssProperty(line);
-                final String imageUrl = CssSyntaxUtils.unpackUrl(
-                    backgroundProperty.value, messageLog);
-                if (imageUrl == null)
-                {
-                    continue;
-                }
-
-                final SpriteReferenceDirective directive = SpriteReferenceDirective
-                    .parse(directiveString, spriteImageDirectives, messageLog);
-                if (directive == null)
-                {
-                    continue;
-                }
-
-                directives.add(new SpriteReferenceOccurrence(directive, imageUrl,
-                    cssFile, lineNumber, backgroundProperty.important));
+                continue;
             }
-        }
-        finally
-        {
-            Closeables.close(reader, false);
+
+            final SpriteReferenceDirective directive = SpriteReferenceDirective.parse(
+                cssDocument.getSpriteReferenceDirective(i), spriteImageDirectives,
+                messageLog);
+            if (directive == null)
+            {
+                continue;
+            }
+
+            directives.add(new SpriteReferenceOccurrence(directive, imageUrl, cssFile,
+                lineNumber, backgroundProperty.important));
         }
 
         return directives;
     }
 
     /**
-     * Collects {@link SpriteImageOccurrence}s from the provided CSS files.
+     * Collects {@link SpriteImageOccurrence}s from the provided CSS documents.
      */
     Multimap<String, SpriteImageOccurrence> collectSpriteImageOccurrences(
-        Collection<String> filePaths) throws IOException
+        Collection<CssDocument> cssDocuments)
     {
         final Multimap<String, SpriteImageOccurrence> spriteImageOccurrencesByFile = LinkedListMultimap
             .create();
-        for (final String cssFile : filePaths)
+        for (final CssDocument cssDocument : cssDocuments)
         {
-            messageLog.setCssFile(cssFile);
+            messageLog.setCssFile(cssDocument.cssFile);
 
-            final Collection<SpriteImageOccurrence> spriteImageOccurrences = collectSpriteImageOccurrences(cssFile);
+            final Collection<SpriteImageOccurrence> spriteImageOccurrences = collectSpriteImageOccurrences(cssDocument);
 
-            spriteImageOccurrencesByFile.putAll(cssFile, spriteImageOccurrences);
+            spriteImageOccurrencesByFile.putAll(cssDocument.cssFile,
+                spriteImageOccurrences);
         }
         return spriteImageOccurrencesByFile;
     }
 
     /**
-     * Collects {@link SpriteReferenceOccurrence}s from the provided CSS files.
+     * Collects {@link SpriteReferenceOccurrence}s from the provided CSS documents.
      */
     Multimap<String, SpriteReferenceOccurrence> collectSpriteReferenceOccurrences(
-        Collection<String> files,
+        Collection<CssDocument> cssDocuments,
         final Map<String, SpriteImageDirective> spriteImageDirectivesBySpriteId)
-        throws IOException
     {
         final Multimap<String, SpriteReferenceOccurrence> spriteEntriesByFile = LinkedListMultimap
             .create();
-        for (final String cssFile : files)
+        for (final CssDocument cssDocument : cssDocuments)
         {
-            messageLog.setCssFile(cssFile);
+            messageLog.setCssFile(cssDocument.cssFile);
 
             final Collection<SpriteReferenceOccurrence> spriteReferenceOccurrences = collectSpriteReferenceOccurrences(
-                cssFile, spriteImageDirectivesBySpriteId);
+                cssDocument, spriteImageDirectivesBySpriteId);
 
-            spriteEntriesByFile.putAll(cssFile, spriteReferenceOccurrences);
+            spriteEntriesByFile.putAll(cssDocument.cssFile, spriteReferenceOccurrences);
         }
         return spriteEntriesByFile;
     }
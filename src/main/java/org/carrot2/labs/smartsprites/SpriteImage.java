@@ -1,14 +1,9 @@
 package org.carrot2.labs.smartsprites;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigInteger;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -86,35 +81,62 @@ public class SpriteImage
         }
     }
 
-    String resolveImagePath(byte [] image, String timestamp, boolean reducedForIe6) throws IOException
+    /**
+     * Returns the content hash UID types whose variables the image path contains. The
+     * hashes of the encoded sprite image must then be provided to
+     * {@link #resolveImagePath(Map, String, boolean)}.
+     */
+    Set<SpriteUidType> getContentHashTypes()
     {
-        String imagePath = spriteImageOccurrence.spriteImageDirective.imagePath;
-
-        // Backwards compatibility: if there are no place holders in the path
-        // and the UID type is defined, append the UID as a query string just like
-        // the previous versions did. To be removed in 0.4.0.
-        if (spriteImageOccurrence.spriteImageDirective.uidType != SpriteUidType.NONE
-            && !SpriteUidType.MD5.pattern.matcher(imagePath).find()
-            && !SpriteUidType.DATE.pattern.matcher(imagePath).find())
+        final String imagePath = getImagePath();
+        final Set<SpriteUidType> types = EnumSet.noneOf(SpriteUidType.class);
+        for (SpriteUidType uidType : SpriteUidType.values())
         {
-            imagePath += "?${"
-                + spriteImageOccurrence.spriteImageDirective.uidType.toString() + "}";
+            if (uidType.algorithm != null && uidType.pattern.matcher(imagePath).find())
+            {
+                types.add(uidType);
+            }
         }
+        return types;
+    }
 
-        // Resolve MD5 hash
-        Matcher md5Matcher = SpriteUidType.MD5.pattern.matcher(imagePath);
-        if (md5Matcher.find())
+    /**
+     * Returns the longest prefix of the resolved image path that does not depend on the
+     * content hashes of the sprite image, e.g. to find the directory the sprite image
+     * will be written to before the image is encoded.
+     */
+    String getImagePathPrefix(String timestamp)
+    {
+        final String imagePath = getImagePath();
+        int end = imagePath.length();
+        for (SpriteUidType uidType : getContentHashTypes())
         {
-            // Compute MD5 only when necessary
-            imagePath = md5Matcher.replaceAll(computeMd5(image));
+            final Matcher matcher = uidType.pattern.matcher(imagePath);
+            matcher.find();
+            end = Math.min(end, matcher.start());
         }
+        return resolveVariables(imagePath.substring(0, end), timestamp);
+    }
 
-        // Resolve timestamp
-        imagePath = SpriteUidType.DATE.pattern.matcher(imagePath).replaceAll(timestamp);
+    /**
+     * Resolves the image path and stores it in {@link #resolvedPath} or
+     * {@link #resolvedPathIe6}.
+     * 
+     * @param hashes hex hashes of the encoded sprite image for all
+     *            {@link #getContentHashTypes()}
+     */
+    String resolveImagePath(Map<SpriteUidType, String> hashes, String timestamp,
+        boolean reducedForIe6)
+    {
+        String imagePath = getImagePath();
 
-        // Resolve sprite name
-        imagePath = SPRITE_VARIABLE.matcher(imagePath).replaceAll(
-            spriteImageOccurrence.spriteImageDirective.spriteId);
+        // Resolve content hashes
+        for (Map.Entry<SpriteUidType, String> hash : hashes.entrySet())
+        {
+            imagePath = hash.getKey().resolve(imagePath, hash.getValue());
+        }
+
+        imagePath = resolveVariables(imagePath, timestamp);
 
         if (reducedForIe6)
         {
@@ -128,6 +150,39 @@ public class SpriteImage
         }
     }
 
+    private String getImagePath()
+    {
+        String imagePath = spriteImageOccurrence.spriteImageDirective.imagePath;
+
+        // Backwards compatibility: if there are no place holders in the path
+        // and the UID type is defined, append the UID as a query string just like
+        // the previous versions did. To be removed in 0.4.0.
+        if (spriteImageOccurrence.spriteImageDirective.uidType == SpriteUidType.NONE)
+        {
+            return imagePath;
+        }
+        for (SpriteUidType uidType : SpriteUidType.values())
+        {
+            if (uidType != SpriteUidType.NONE && uidType.pattern.matcher(imagePath).find())
+            {
+                return imagePath;
+            }
+        }
+        return imagePath + "?${"
+            + spriteImageOccurrence.spriteImageDirective.uidType.toString() + "}";
+    }
+
+    private String resolveVariables(String imagePath, String timestamp)
+    {
+        // Resolve timestamp
+        imagePath = SpriteUidType.DATE.resolve(imagePath, timestamp);
+
+        // Resolve sprite name
+        imagePath = SPRITE_VARIABLE.matcher(imagePath).replaceAll(
+            spriteImageOccurrence.spriteImageDirective.spriteId);
+        return imagePath;
+    }
+
     /**
      * Adds IE6 suffix to the sprite image path for IE6 reduced images. We make sure we
      * don't add the suffix to the directory names or after the '?' character.
@@ -177,40 +232,4 @@ public class SpriteImage
         }
         return spritePath;
     }
-
-    /**
-     * Computes
-     * @throws IOException 
-     */
-    private static String computeMd5(byte [] image) throws IOException
-    {
-        try
-        {
-            final byte [] buffer = new byte [4069];
-            final MessageDigest digest = MessageDigest.getInstance("MD5");
-            try (InputStream is = new ByteArrayInputStream(image);
-                 InputStream digestInputStream = new DigestInputStream(is, digest))
-            {
-                while (digestInputStream.read(buffer) >= 0)
-                {
-                }
-
-                byte [] bytes = digest.digest();
-                return new BigInteger(1, bytes).toString(16);
-            }
-            catch (IOException e)
-            {
-                // Should not happen because we're reading from memory
-                throw new RuntimeException(e);
-            }
-            finally
-            {
-                digest.reset();
-            }
-        }
-        catch (NoSuchAlgorithmException nsaex)
-        {
-            throw new RuntimeException(nsaex);
-        }
-    }
 }
@@ -1,31 +1,65 @@
 package org.carrot2.labs.smartsprites;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import javax.imageio.IIOException;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 import org.apache.commons.math3.util.ArithmeticUtils;
+import org.carrot2.labs.smartsprites.SmartSpritesParameters.SpritePngFilter;
 import org.carrot2.labs.smartsprites.SpriteImageDirective.SpriteImageFormat;
 import org.carrot2.labs.smartsprites.SpriteImageDirective.SpriteImageLayout;
+import org.carrot2.labs.smartsprites.SpriteImageDirective.SpriteUidType;
 import org.carrot2.labs.smartsprites.SpriteLayoutProperties.SpriteAlignment;
+import org.carrot2.labs.smartsprites.message.MemoryMessageSink;
+import org.carrot2.labs.smartsprites.message.Message;
 import org.carrot2.labs.smartsprites.message.Message.MessageType;
 import org.carrot2.labs.smartsprites.message.MessageLog;
+import org.carrot2.labs.smartsprites.resource.CachingResourceHandler;
+import org.carrot2.labs.smartsprites.resource.FileSystemResourceHandler;
 import org.carrot2.labs.smartsprites.resource.ResourceHandler;
 import org.carrot2.util.BufferedImageUtils;
 import org.carrot2.util.FileUtils;
+import org.carrot2.util.PngEncoder;
+import org.carrot2.util.PngOptimizer;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.HashMultiset;
 import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
 import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Lays out and builds sprite images based on the collected SmartSprites directives.
@@ -51,6 +85,41 @@ public class SpriteImageBuilder
      */
     private String timestamp;
 
+    /**
+     * Executor for decoding source images concurrently, <code>null</code> if images
+     * are to be decoded serially.
+     */
+    private ExecutorService imageDecodeExecutor;
+
+    /**
+     * Kilobytes of memory available for images in the middle of concurrent decoding,
+     * <code>null</code> if there is no limit. Permits are returned as soon as an image is
+     * decoded, so decoded images waiting to be drawn into a sprite are not counted.
+     */
+    private Semaphore inFlightDecodeMemory;
+
+    /** The total number of {@link #inFlightDecodeMemory} permits */
+    private int inFlightDecodeMemoryLimitKilobytes;
+
+    /**
+     * Pool for quantizing, deflating and optimizing sprite images on multiple threads,
+     * sized to {@link SmartSpritesParameters#getThreads()} and shared by all sprites,
+     * <code>null</code> if only one thread is to be used.
+     */
+    private ForkJoinPool workerPool;
+
+    /**
+     * The build manifest for reusing sprite images built in the previous run,
+     * <code>null</code> if all sprite images are to be built.
+     */
+    private SpriteBuildManifest manifest;
+
+    /**
+     * Decoded source images kept between builds, <code>null</code> if source images are
+     * to be decoded in each build.
+     */
+    private SourceImageCache sourceImageCache;
+
     /**
      * Creates a {@link SpriteImageBuilder} with the provided parameters and log.
      */
@@ -63,6 +132,34 @@ public class SpriteImageBuilder
         spriteImageRenderer = new SpriteImageRenderer(parameters, messageLog);
     }
 
+    /**
+     * Creates a {@link SpriteImageBuilder} that shares configuration, resource handler
+     * and timestamp with the provided builder, but logs to a separate log. Used for
+     * building sprite images concurrently.
+     */
+    private SpriteImageBuilder(SpriteImageBuilder builder, MessageLog messageLog)
+    {
+        this(builder.parameters, messageLog, builder.resourceHandler);
+        this.timestamp = builder.timestamp;
+        this.imageDecodeExecutor = builder.imageDecodeExecutor;
+        this.inFlightDecodeMemory = builder.inFlightDecodeMemory;
+        this.inFlightDecodeMemoryLimitKilobytes = builder.inFlightDecodeMemoryLimitKilobytes;
+        this.workerPool = builder.workerPool;
+        this.manifest = builder.manifest;
+        this.sourceImageCache = builder.sourceImageCache;
+    }
+
+    /**
+     * Sets the cache of decoded source images to use in subsequent builds. The cache
+     * also receives the paths of the source images each built sprite depends on. Images
+     * of sprites composed one image at a time are not cached, so that the sprite memory
+     * limit also holds between builds.
+     */
+    void setSourceImageCache(SourceImageCache sourceImageCache)
+    {
+        this.sourceImageCache = sourceImageCache;
+    }
+
     /**
      * Builds all sprite images based on the collected directives.
      * @throws IOException 
@@ -70,28 +167,311 @@ public class SpriteImageBuilder
     Multimap<String, SpriteReferenceReplacement> buildSpriteImages(
         Map<String, SpriteImageOccurrence> spriteImageOccurrencesBySpriteId,
         Multimap<String, SpriteReferenceOccurrence> spriteReferenceOccurrencesBySpriteId) throws IOException
+    {
+        return buildSpriteImages(spriteImageOccurrencesBySpriteId,
+            spriteReferenceOccurrencesBySpriteId, null);
+    }
+
+    /**
+     * Builds the sprite images based on the collected directives, reusing the sprite
+     * images recorded in the provided manifest whose inputs have not changed. Sprite
+     * images built or reused in this run are recorded in the manifest, unless some of
+     * their source images could not be loaded.
+     */
+    Multimap<String, SpriteReferenceReplacement> buildSpriteImages(
+        Map<String, SpriteImageOccurrence> spriteImageOccurrencesBySpriteId,
+        Multimap<String, SpriteReferenceOccurrence> spriteReferenceOccurrencesBySpriteId,
+        SpriteBuildManifest manifest) throws IOException
     {
         timestamp = Long.toString(new Date().getTime());
+        this.manifest = manifest;
 
         final Multimap<String, SpriteReferenceReplacement> spriteReplacementsByFile = LinkedListMultimap
             .create();
+        final int imageDecodeThreads = getThreads(parameters.getImageDecodeThreads());
+        if (imageDecodeThreads > 1)
+        {
+            imageDecodeExecutor = Executors.newFixedThreadPool(imageDecodeThreads,
+                new ThreadFactoryBuilder().setNameFormat("smartsprites-decode-%d")
+                    .setDaemon(true).build());
+            if (parameters.getInFlightDecodeMemoryLimit() > 0)
+            {
+                inFlightDecodeMemoryLimitKilobytes = (int) Math.min(Integer.MAX_VALUE,
+                    parameters.getInFlightDecodeMemoryLimit() * 1024L);
+                inFlightDecodeMemory = new Semaphore(inFlightDecodeMemoryLimitKilobytes);
+            }
+        }
+
+        final int threads = getThreads(parameters.getThreads());
+        if (threads > 1)
+        {
+            workerPool = new ForkJoinPool(threads);
+        }
+
+        try
+        {
+            if (threads == 1 || spriteReferenceOccurrencesBySpriteId.keySet().size() <= 1)
+            {
+                for (final Map.Entry<String, Collection<SpriteReferenceOccurrence>> spriteReferenceOccurrences : spriteReferenceOccurrencesBySpriteId
+                    .asMap().entrySet())
+                {
+                    addReplacements(spriteReplacementsByFile, buildSpriteReplacements(
+                        spriteImageOccurrencesBySpriteId.get(spriteReferenceOccurrences
+                            .getKey()), spriteReferenceOccurrences.getValue()));
+                }
+            }
+            else
+            {
+                buildSpriteImagesConcurrently(spriteImageOccurrencesBySpriteId,
+                    spriteReferenceOccurrencesBySpriteId, spriteReplacementsByFile,
+                    threads);
+            }
+        }
+        finally
+        {
+            if (imageDecodeExecutor != null)
+            {
+                imageDecodeExecutor.shutdownNow();
+                imageDecodeExecutor = null;
+                inFlightDecodeMemory = null;
+            }
+            if (workerPool != null)
+            {
+                workerPool.shutdownNow();
+                workerPool = null;
+            }
+            this.manifest = null;
+        }
+
+        return spriteReplacementsByFile;
+    }
+
+    /**
+     * Builds sprite images on a pool of threads. Each sprite is built by a separate
+     * {@link SpriteImageBuilder} logging to its own in-memory log. Once a sprite is
+     * complete, its messages and replacements are passed on in the original sprite
+     * order, so that the results are the same as when building sprites serially.
+     */
+    private void buildSpriteImagesConcurrently(
+        Map<String, SpriteImageOccurrence> spriteImageOccurrencesBySpriteId,
+        Multimap<String, SpriteReferenceOccurrence> spriteReferenceOccurrencesBySpriteId,
+        Multimap<String, SpriteReferenceReplacement> spriteReplacementsByFile,
+        int threads) throws IOException
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads,
+            spriteReferenceOccurrencesBySpriteId.keySet().size()),
+            new ThreadFactoryBuilder().setNameFormat("smartsprites-%d").setDaemon(true)
+                .build());
+        try
+        {
+            final List<Future<Map<SpriteReferenceOccurrence, SpriteReferenceReplacement>>> results = Lists
+                .newArrayList();
+            final List<MemoryMessageSink> messageSinks = Lists.newArrayList();
+            for (final Map.Entry<String, Collection<SpriteReferenceOccurrence>> spriteReferenceOccurrences : spriteReferenceOccurrencesBySpriteId
+                .asMap().entrySet())
+            {
+                final MemoryMessageSink messageSink = new MemoryMessageSink();
+                final SpriteImageBuilder builder = new SpriteImageBuilder(this,
+                    new MessageLog(messageSink));
+                final SpriteImageOccurrence spriteImageOccurrence = spriteImageOccurrencesBySpriteId
+                    .get(spriteReferenceOccurrences.getKey());
+                final Collection<SpriteReferenceOccurrence> occurrences = spriteReferenceOccurrences
+                    .getValue();
+
+                messageSinks.add(messageSink);
+                results.add(executor
+                    .submit(new Callable<Map<SpriteReferenceOccurrence, SpriteReferenceReplacement>>()
+                    {
+                        public Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> call()
+                            throws IOException
+                        {
+                            return builder.buildSpriteReplacements(
+                                spriteImageOccurrence, occurrences);
+                        }
+                    }));
+            }
+
+            for (int i = 0; i < results.size(); i++)
+            {
+                final Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> replacements = getResult(results
+                    .get(i));
+                for (final Message message : messageSinks.get(i).messages)
+                {
+                    messageLog.log(message);
+                }
+                addReplacements(spriteReplacementsByFile, replacements);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for the result of a sprite building task, rethrowing its exceptions.
+     */
+    private static <T> T getResult(Future<T> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e)
+        {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Adds sprite replacements to the multimap of replacements by CSS file.
+     */
+    private static void addReplacements(
+        Multimap<String, SpriteReferenceReplacement> spriteReplacementsByFile,
+        Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> spriteReferenceReplacements)
+    {
+        for (final SpriteReferenceReplacement spriteReferenceReplacement : spriteReferenceReplacements
+            .values())
+        {
+            spriteReplacementsByFile.put(
+                spriteReferenceReplacement.spriteReferenceOccurrence.cssFile,
+                spriteReferenceReplacement);
+        }
+    }
+
+    /**
+     * Returns the actual number of threads to use for the provided parameter value.
+     */
+    private static int getThreads(int threads)
+    {
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Plans all sprite images based on the collected directives, reading only the
+     * headers of the source images. Nothing is rendered or written, the plans are logged
+     * and returned in the order of sprites.
+     */
+    List<SpritePlan> planSpriteImages(
+        Map<String, SpriteImageOccurrence> spriteImageOccurrencesBySpriteId,
+        Multimap<String, SpriteReferenceOccurrence> spriteReferenceOccurrencesBySpriteId)
+        throws IOException
+    {
+        final List<SpritePlan> plans = Lists.newArrayList();
         for (final Map.Entry<String, Collection<SpriteReferenceOccurrence>> spriteReferenceOccurrences : spriteReferenceOccurrencesBySpriteId
             .asMap().entrySet())
         {
-            final Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> spriteReferenceReplacements = buildSpriteReplacements(
+            final SpritePlan plan = planSpriteImage(
                 spriteImageOccurrencesBySpriteId.get(spriteReferenceOccurrences.getKey()),
-                spriteReferenceOccurrences.getValue());
+                spriteReferenceOccurrences.getValue(), null, true);
+            plans.add(plan);
 
-            for (final SpriteReferenceReplacement spriteReferenceReplacement : spriteReferenceReplacements
-                .values())
+            messageLog.setCssFile(null);
+            messageLog.status(MessageType.SPRITE_IMAGE_PLAN,
+                plan.spriteImageOccurrence.spriteImageDirective.spriteId, plan.width,
+                plan.height, plan.imageCount,
+                SpritePlan.formatLength(plan.getCanvasLength()),
+                SpritePlan.formatLength(plan.getEstimatedOutputLength()));
+        }
+
+        long largestCanvasLength = 0;
+        long totalCanvasLength = 0;
+        long totalOutputLength = 0;
+        for (SpritePlan plan : plans)
+        {
+            largestCanvasLength = Math.max(largestCanvasLength, plan.getCanvasLength());
+            totalCanvasLength += plan.getCanvasLength();
+            totalOutputLength += plan.getEstimatedOutputLength();
+        }
+        messageLog.status(MessageType.SPRITE_IMAGE_PLAN_SUMMARY, plans.size(),
+            SpritePlan.formatLength(largestCanvasLength),
+            SpritePlan.formatLength(totalCanvasLength),
+            SpritePlan.formatLength(totalOutputLength));
+
+        return plans;
+    }
+
+    /**
+     * Plans a single sprite image, reading only the headers of its source images. If the
+     * image paths have not been resolved yet, <code>realImagePaths</code> should be
+     * <code>null</code>. Image file sizes are determined only if
+     * <code>readFileLengths</code> is <code>true</code>.
+     */
+    SpritePlan planSpriteImage(SpriteImageOccurrence spriteImageOccurrence,
+        Collection<SpriteReferenceOccurrence> spriteReferenceOccurrences,
+        List<String> realImagePaths, boolean readFileLengths) throws IOException
+    {
+        if (realImagePaths == null)
+        {
+            realImagePaths = getRealImagePaths(spriteReferenceOccurrences);
+        }
+        final Map<SpriteReferenceOccurrence, ImageHeader> headers = Maps
+            .newLinkedHashMap();
+        final Map<SpriteReferenceOccurrence, String> imagePaths = Maps.newHashMap();
+        int i = 0;
+        for (final SpriteReferenceOccurrence spriteReferenceOccurrence : spriteReferenceOccurrences)
+        {
+            final String realImagePath = realImagePaths.get(i++);
+            final ImageHeader header = readImageHeader(spriteReferenceOccurrence,
+                realImagePath, readFileLengths);
+            if (header != null)
             {
-                spriteReplacementsByFile.put(
-                    spriteReferenceReplacement.spriteReferenceOccurrence.cssFile,
-                    spriteReferenceReplacement);
+                headers.put(spriteReferenceOccurrence, header);
+                imagePaths.put(spriteReferenceOccurrence, realImagePath);
             }
         }
 
-        return spriteReplacementsByFile;
+        return SpritePlan.create(spriteImageOccurrence, headers, imagePaths);
+    }
+
+    /**
+     * Reads the header of the image referenced by the provided occurrence, returns
+     * <code>null</code> if the header could not be read.
+     */
+    private ImageHeader readImageHeader(
+        SpriteReferenceOccurrence spriteReferenceOccurrence, String realImagePath,
+        boolean readFileLength) throws IOException
+    {
+        messageLog.setCssFile(spriteReferenceOccurrence.cssFile);
+        messageLog.setLine(spriteReferenceOccurrence.line);
+
+        InputStream is = null;
+        try
+        {
+            is = resourceHandler.getResourceAsInputStream(realImagePath);
+            if (is == null)
+            {
+                messageLog.warning(MessageType.CANNOT_NOT_LOAD_IMAGE, realImagePath,
+                    "Can't read input file!");
+                return null;
+            }
+
+            messageLog.info(MessageType.READING_IMAGE_HEADER, realImagePath);
+            final ImageHeader header = ImageHeader.read(is, readFileLength);
+            if (header == null)
+            {
+                messageLog.warning(MessageType.UNSUPPORTED_INDIVIDUAL_IMAGE_FORMAT,
+                    realImagePath);
+            }
+            return header;
+        }
+        catch (final IOException e)
+        {
+            messageLog.warning(MessageType.CANNOT_NOT_LOAD_IMAGE, realImagePath,
+                "Can't read input file!");
+            return null;
+        }
+        finally
+        {
+            Closeables.close(is, true);
+            messageLog.setCssFile(null);
+        }
     }
 
     /**
@@ -102,93 +482,456 @@ public class SpriteImageBuilder
         SpriteImageOccurrence spriteImageOccurrence,
         Collection<SpriteReferenceOccurrence> spriteReferenceOccurrences) throws IOException
     {
-        // Load images into memory. TODO: impose some limit here?
+        // Reuse the sprite image built in the previous run if its inputs have not changed
+        List<String> realImagePaths = null;
+        if (manifest != null || sourceImageCache != null)
+        {
+            realImagePaths = getRealImagePaths(spriteReferenceOccurrences);
+        }
+        if (sourceImageCache != null)
+        {
+            sourceImageCache.setDependencies(
+                spriteImageOccurrence.spriteImageDirective.spriteId, realImagePaths);
+        }
+
+        SpriteBuildManifest.Inputs inputs = null;
+        if (manifest != null)
+        {
+            inputs = manifest.getInputs(spriteImageOccurrence,
+                spriteReferenceOccurrences, realImagePaths);
+            if (inputs != null)
+            {
+                final Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> reused = manifest
+                    .reuse(spriteImageOccurrence, spriteReferenceOccurrences, inputs,
+                        messageLog);
+                if (reused != null)
+                {
+                    return reused;
+                }
+            }
+        }
+
+        final SpriteImage spriteImage;
+        final boolean allImagesLoaded;
+        final SpritePlan plan = getStreamingCompositionPlan(spriteImageOccurrence,
+            spriteReferenceOccurrences, realImagePaths);
+        if (plan != null)
+        {
+            // Decode and draw one image at a time to keep the memory usage down
+            final List<SpriteReferenceOccurrence> undecoded = Lists.newArrayList();
+            spriteImage = composeSpriteImage(plan, undecoded);
+            allImagesLoaded = undecoded.isEmpty()
+                && plan.offsets.size() == spriteReferenceOccurrences.size();
+        }
+        else
+        {
+            // Load images into memory
+            final Map<SpriteReferenceOccurrence, BufferedImage> images = loadImages(
+                spriteReferenceOccurrences, realImagePaths);
+            allImagesLoaded = images.size() == spriteReferenceOccurrences.size();
+
+            // Build the sprite image bitmap
+            spriteImage = SpriteImageBuilder.buildSpriteImage(spriteImageOccurrence,
+                images, messageLog);
+        }
+        if (spriteImage == null)
+        {
+            return Collections
+                .<SpriteReferenceOccurrence, SpriteReferenceReplacement> emptyMap();
+        }
+
+        // Render the sprite into the required formats, perform quantization if needed
+        final BufferedImage [] mergedImages = spriteImageRenderer.render(spriteImage,
+            workerPool);
+
+        final List<String> spriteImageFiles = Lists.newArrayList();
+        spriteImageFiles.add(writeSprite(spriteImage, mergedImages[0], false));
+        if (mergedImages[1] != null)
+        {
+            // Write IE6 version if generated
+            spriteImageFiles.add(writeSprite(spriteImage, mergedImages[1], true));
+        }
+
+        // Record the sprite for the next run, unless some of its images are missing
+        if (inputs != null && allImagesLoaded
+            && !spriteImageFiles.contains(null))
+        {
+            manifest.record(spriteImage, spriteReferenceOccurrences, inputs,
+                spriteImageFiles);
+        }
+
+        return spriteImage.spriteReferenceReplacements;
+    }
+
+    /**
+     * Returns the plan of the provided sprite if it should be composed one image at a
+     * time because its decoded images would exceed the sprite memory limit,
+     * <code>null</code> if the sprite should be built from images loaded up front.
+     */
+    private SpritePlan getStreamingCompositionPlan(
+        SpriteImageOccurrence spriteImageOccurrence,
+        Collection<SpriteReferenceOccurrence> spriteReferenceOccurrences,
+        List<String> realImagePaths) throws IOException
+    {
+        if (parameters.getSpriteMemoryLimit() <= 0)
+        {
+            return null;
+        }
+
+        final SpritePlan plan = planSpriteImage(spriteImageOccurrence,
+            spriteReferenceOccurrences, realImagePaths, false);
+        if (plan.getImagesLength() <= parameters.getSpriteMemoryLimit() * 1024L * 1024L)
+        {
+            return null;
+        }
+
+        messageLog.setCssFile(null);
+        messageLog.info(MessageType.COMPOSING_SPRITE_IMAGE_ONE_IMAGE_AT_A_TIME,
+            spriteImageOccurrence.spriteImageDirective.spriteId,
+            SpritePlan.formatLength(plan.getImagesLength()));
+        return plan;
+    }
+
+    /**
+     * Builds a sprite image according to the provided plan. Each image is decoded,
+     * drawn into the sprite and released before the next one is decoded. Images whose
+     * headers could be read, but whose content could not be decoded, leave empty space
+     * in the sprite and their occurrences are added to <code>undecoded</code>.
+     */
+    private SpriteImage composeSpriteImage(SpritePlan plan,
+        Collection<SpriteReferenceOccurrence> undecoded) throws IOException
+    {
+        final SpriteImageOccurrence spriteImageOccurrence = plan.spriteImageOccurrence;
+        final SpriteImageLayout layout = spriteImageOccurrence.spriteImageDirective.layout;
+        final float spriteScale = spriteImageOccurrence.spriteImageDirective.scaleRatio;
+        if (plan.width == 0 || plan.height == 0)
+        {
+            return null;
+        }
+
+        final BufferedImage sprite = new BufferedImage(plan.width, plan.height,
+            BufferedImage.TYPE_4BYTE_ABGR);
+        final Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> spriteReplacements = Maps
+            .newLinkedHashMap();
+        final Set<Integer> drawnOffsets = Sets.newHashSet();
+        for (final Map.Entry<SpriteReferenceOccurrence, Integer> entry : plan.offsets
+            .entrySet())
+        {
+            final SpriteReferenceOccurrence spriteReferenceOccurrence = entry.getKey();
+            final int imageOffset = entry.getValue();
+            final ImageHeader header = plan.headers.get(spriteReferenceOccurrence);
+
+            // Repeated images are drawn only at their first occurrence
+            if (drawnOffsets.add(imageOffset))
+            {
+                final BufferedImage image = loadImage(spriteReferenceOccurrence,
+                    plan.imagePaths.get(spriteReferenceOccurrence), messageLog, false);
+                if (image != null)
+                {
+                    spriteReferenceOccurrence.render(image, layout, plan.dimension,
+                        sprite, imageOffset);
+                }
+                else
+                {
+                    undecoded.add(spriteReferenceOccurrence);
+                }
+            }
+
+            final float scaledImageWidth = spriteReferenceOccurrence.getRequiredWidth(
+                header.width, layout) / spriteScale;
+            final float scaledImageHeight = spriteReferenceOccurrence.getRequiredHeight(
+                header.height, layout) / spriteScale;
+            if (Math.round(scaledImageWidth) != scaledImageWidth
+                || Math.round(scaledImageHeight) != scaledImageHeight)
+            {
+                messageLog.setCssFile(spriteReferenceOccurrence.cssFile);
+                messageLog.setLine(spriteReferenceOccurrence.line);
+                messageLog.warning(MessageType.IMAGE_FRACTIONAL_SCALE_VALUE,
+                    spriteReferenceOccurrence.imagePath, scaledImageWidth,
+                    scaledImageHeight);
+                messageLog.setCssFile(null);
+            }
+
+            spriteReplacements.put(spriteReferenceOccurrence, spriteReferenceOccurrence
+                .buildReplacement(layout, Math.round(imageOffset / spriteScale)));
+        }
+
+        final float scaledWidth = plan.width / spriteScale;
+        final float scaledHeight = plan.height / spriteScale;
+        if (Math.round(scaledWidth) != scaledWidth
+            || Math.round(scaledHeight) != scaledHeight)
+        {
+            messageLog.warning(MessageType.FRACTIONAL_SCALE_VALUE,
+                spriteImageOccurrence.spriteImageDirective.spriteId, scaledWidth,
+                scaledHeight);
+        }
+
+        return new SpriteImage(sprite, spriteImageOccurrence, spriteReplacements,
+            plan.width, plan.height, spriteScale);
+    }
+
+    /**
+     * Loads the images referenced by the provided occurrences. If an image decoding
+     * executor is available, the images are decoded concurrently, but the returned map
+     * and the logged messages still follow the order of the occurrences.
+     */
+    private Map<SpriteReferenceOccurrence, BufferedImage> loadImages(
+        Collection<SpriteReferenceOccurrence> spriteReferenceOccurrences,
+        List<String> realImagePaths) throws IOException
+    {
         final Map<SpriteReferenceOccurrence, BufferedImage> images = Maps
             .newLinkedHashMap();
+        if (imageDecodeExecutor == null || spriteReferenceOccurrences.size() <= 1)
+        {
+            int i = 0;
+            for (final SpriteReferenceOccurrence spriteReferenceOccurrence : spriteReferenceOccurrences)
+            {
+                final BufferedImage image = loadImage(spriteReferenceOccurrence,
+                    realImagePaths != null ? realImagePaths.get(i) : null, messageLog,
+                    true);
+                if (image != null)
+                {
+                    images.put(spriteReferenceOccurrence, image);
+                }
+                i++;
+            }
+            return images;
+        }
+
+        final List<Future<BufferedImage>> results = Lists.newArrayList();
+        final List<MemoryMessageSink> messageSinks = Lists.newArrayList();
+        for (final SpriteReferenceOccurrence spriteReferenceOccurrence : spriteReferenceOccurrences)
+        {
+            final String realImagePath = realImagePaths != null ? realImagePaths
+                .get(results.size()) : null;
+            final MemoryMessageSink messageSink = new MemoryMessageSink();
+            final MessageLog imageMessageLog = new MessageLog(messageSink);
+            messageSinks.add(messageSink);
+            results.add(imageDecodeExecutor.submit(new Callable<BufferedImage>()
+            {
+                public BufferedImage call() throws IOException
+                {
+                    return loadImage(spriteReferenceOccurrence, realImagePath,
+                        imageMessageLog, true);
+                }
+            }));
+        }
+
+        int i = 0;
+        for (final SpriteReferenceOccurrence spriteReferenceOccurrence : spriteReferenceOccurrences)
+        {
+            final BufferedImage image = getResult(results.get(i));
+            for (final Message message : messageSinks.get(i).messages)
+            {
+                messageLog.log(message);
+            }
+            messageLog.setLine(spriteReferenceOccurrence.line);
+            if (image != null)
+            {
+                images.put(spriteReferenceOccurrence, image);
+            }
+            i++;
+        }
+        messageLog.setCssFile(null);
+
+        return images;
+    }
+
+    /**
+     * Resolves the paths of the images referenced by the provided occurrences.
+     */
+    private List<String> getRealImagePaths(
+        Collection<SpriteReferenceOccurrence> spriteReferenceOccurrences)
+    {
+        final List<String> realImagePaths = Lists.newArrayList();
         for (final SpriteReferenceOccurrence spriteReferenceOccurrence : spriteReferenceOccurrences)
         {
             messageLog.setCssFile(spriteReferenceOccurrence.cssFile);
             messageLog.setLine(spriteReferenceOccurrence.line);
+            realImagePaths.add(resourceHandler.getResourcePath(
+                spriteReferenceOccurrence.cssFile, spriteReferenceOccurrence.imagePath));
+        }
+        messageLog.setCssFile(null);
+        return realImagePaths;
+    }
 
-            final String realImagePath = resourceHandler.getResourcePath(
+    /**
+     * Loads the image referenced by the provided occurrence, returns <code>null</code>
+     * if the image could not be loaded. If the image path has not been resolved yet,
+     * <code>realImagePath</code> should be <code>null</code>. If <code>cached</code> is
+     * <code>true</code>, the image is taken from and put into the source image cache,
+     * if there is one.
+     */
+    private BufferedImage loadImage(SpriteReferenceOccurrence spriteReferenceOccurrence,
+        String realImagePath, MessageLog messageLog, boolean cached) throws IOException
+    {
+        messageLog.setCssFile(spriteReferenceOccurrence.cssFile);
+        messageLog.setLine(spriteReferenceOccurrence.line);
+
+        if (realImagePath == null)
+        {
+            realImagePath = resourceHandler.getResourcePath(
                 spriteReferenceOccurrence.cssFile, spriteReferenceOccurrence.imagePath);
-            InputStream is = null;
-            try
+        }
+        InputStream is = null;
+        try
+        {
+            final SourceImageCache sourceImageCache = cached ? this.sourceImageCache
+                : null;
+            if (sourceImageCache != null)
             {
-                is = resourceHandler.getResourceAsInputStream(realImagePath);
+                final BufferedImage image = sourceImageCache.get(realImagePath);
+                if (image != null)
+                {
+                    return image;
+                }
+            }
 
-                // Load image
-                if (is != null)
+            is = resourceHandler.getResourceAsInputStream(realImagePath);
+
+            // Load image
+            if (is != null)
+            {
+                messageLog.info(MessageType.READING_IMAGE, realImagePath);
+                final BufferedImage image = inFlightDecodeMemory != null ? decodeImage(is)
+                    : ImageIO.read(is);
+                if (image == null)
                 {
-                    messageLog.info(MessageType.READING_IMAGE, realImagePath);
-                    final BufferedImage image = ImageIO.read(is);
-                    if (image != null)
-                    {
-                        images.put(spriteReferenceOccurrence, image);
-                    }
-                    else
-                    {
-                        messageLog.warning(
-                            MessageType.UNSUPPORTED_INDIVIDUAL_IMAGE_FORMAT,
-                            realImagePath);
-                    }
+                    messageLog.warning(MessageType.UNSUPPORTED_INDIVIDUAL_IMAGE_FORMAT,
+                        realImagePath);
                 }
-                else
+                else if (sourceImageCache != null)
                 {
-                    messageLog.warning(MessageType.CANNOT_NOT_LOAD_IMAGE, realImagePath,
-                        "Can't read input file!");
-                    continue;
+                    sourceImageCache.put(realImagePath, image);
                 }
+                return image;
             }
-            catch (final IOException e)
+            else
             {
                 messageLog.warning(MessageType.CANNOT_NOT_LOAD_IMAGE, realImagePath,
                     "Can't read input file!");
-                continue;
+                return null;
+            }
+        }
+        catch (final IOException e)
+        {
+            messageLog.warning(MessageType.CANNOT_NOT_LOAD_IMAGE, realImagePath,
+                "Can't read input file!");
+            return null;
+        }
+        finally
+        {
+            Closeables.close(is, true);
+            messageLog.setCssFile(null);
+        }
+    }
+
+    /**
+     * Decodes an image the same way {@link ImageIO#read(InputStream)} does, but reads
+     * the image header first and waits until enough of
+     * {@link #inFlightDecodeMemory} is available to hold the decoded image. The memory is
+     * given back once the image is decoded.
+     */
+    private BufferedImage decodeImage(InputStream is) throws IOException
+    {
+        final ImageInputStream imageInputStream = ImageIO.createImageInputStream(is);
+        if (imageInputStream == null)
+        {
+            throw new IIOException("Can't create an ImageInputStream!");
+        }
+
+        try
+        {
+            final Iterator<ImageReader> readers = ImageIO
+                .getImageReaders(imageInputStream);
+            if (!readers.hasNext())
+            {
+                return null;
+            }
+
+            final ImageReader reader = readers.next();
+            try
+            {
+                reader.setInput(imageInputStream, true, true);
+
+                // Assume 4 bytes per pixel, but never ask for more than the whole
+                // limit, so that a single large image can still be decoded.
+                final long kilobytes = ((long) reader.getWidth(0) * reader.getHeight(0) * 4) >> 10;
+                final int permits = (int) Math.max(1,
+                    Math.min(kilobytes, inFlightDecodeMemoryLimitKilobytes));
+
+                inFlightDecodeMemory.acquireUninterruptibly(permits);
+                try
+                {
+                    return reader.read(0, reader.getDefaultReadParam());
+                }
+                finally
+                {
+                    inFlightDecodeMemory.release(permits);
+                }
             }
             finally
             {
-                Closeables.close(is, true);
+                reader.dispose();
             }
+        }
+        finally
+        {
+            imageInputStream.close();
+        }
+    }
 
-            messageLog.setCssFile(null);
+    /**
+     * Returns the encoder for a PNG sprite whose compression level or row filter is
+     * specified in the sprite directive or in the parameters, <code>null</code> if the
+     * sprite should be written by the standard image writer.
+     */
+    private PngEncoder getPngEncoder(SpriteImageDirective spriteImageDirective)
+    {
+        if (!SpriteImageFormat.PNG.equals(spriteImageDirective.format))
+        {
+            return null;
         }
 
-        // Build the sprite image bitmap
-        final SpriteImage spriteImage = SpriteImageBuilder.buildSpriteImage(
-            spriteImageOccurrence, images, messageLog);
-        if (spriteImage == null)
+        final int compression = spriteImageDirective.pngCompression != null
+            ? spriteImageDirective.pngCompression : parameters.getSpritePngCompression();
+        final SpritePngFilter filter = spriteImageDirective.pngFilter != null
+            ? spriteImageDirective.pngFilter : parameters.getSpritePngFilter();
+        if (compression == PngEncoder.DEFAULT_COMPRESSION && filter == null)
         {
-            return Collections
-                .<SpriteReferenceOccurrence, SpriteReferenceReplacement> emptyMap();
+            return null;
         }
 
-        // Render the sprite into the required formats, perform quantization if needed
-        final BufferedImage [] mergedImages = spriteImageRenderer.render(spriteImage);
+        return new PngEncoder(compression, filter != null ? filter.getFilter()
+            : PngEncoder.Filter.ADAPTIVE, parameters.isSpritePngParallel() ? workerPool
+            : null);
+    }
 
-        writeSprite(spriteImage, mergedImages[0], false);
-        if (mergedImages[1] != null)
+    /**
+     * Returns the optimizer to write the sprite with or <code>null</code> if the sprite
+     * should be encoded once.
+     */
+    private PngOptimizer getPngOptimizer(SpriteImageDirective spriteImageDirective)
+    {
+        if (parameters.getOptimizeLevel() == 0
+            || !SpriteImageFormat.PNG.equals(spriteImageDirective.format))
         {
-            // Write IE6 version if generated
-            writeSprite(spriteImage, mergedImages[1], true);
+            return null;
         }
-
-        return spriteImage.spriteReferenceReplacements;
+        return new PngOptimizer(parameters.getOptimizeLevel(), workerPool);
     }
 
     /**
-     * Writes sprite image to the disk.
+     * Writes sprite image to the disk. Returns the path of the written file or
+     * <code>null</code> if the file could not be written.
      * @throws IOException 
      */
-    private void writeSprite(SpriteImage spriteImage, final BufferedImage mergedImage,
+    private String writeSprite(SpriteImage spriteImage, final BufferedImage mergedImage,
         boolean ie6Reduced) throws IOException
     {
         final SpriteImageOccurrence spriteImageOccurrence = spriteImage.spriteImageOccurrence;
         final SpriteImageDirective spriteImageDirective = spriteImageOccurrence.spriteImageDirective;
 
-        // Write the image to a byte array first. We need the data to compute an md5 hash.
-        final ByteArrayOutputStream spriteImageByteArrayOuputStream = new ByteArrayOutputStream();
-
         // If writing to a JPEG, we need to make a 3-byte-encoded image
         final BufferedImage imageToWrite;
         if (SpriteImageFormat.JPG.equals(spriteImageDirective.format))
@@ -202,51 +945,146 @@ public class SpriteImageBuilder
             imageToWrite = mergedImage;
         }
 
-        try
+        // On the file system, stream the image to a temporary file in the target
+        // directory and move it to the final path once the content hashes, if any, are
+        // known.
+        // Otherwise, the image is written to a byte array first.
+        final FileSystemResourceHandler fileSystemResourceHandler =
+            getFileSystemResourceHandler();
+        final Set<SpriteUidType> contentHashTypes = spriteImage.getContentHashTypes();
+        final Map<String, MessageDigest> digests = Maps.newHashMap();
+        for (SpriteUidType uidType : contentHashTypes)
         {
-            ImageIO.write(imageToWrite, spriteImageDirective.format.toString(),
-                spriteImageByteArrayOuputStream);
+            if (!digests.containsKey(uidType.algorithm))
+            {
+                digests.put(uidType.algorithm, uidType.newDigest());
+            }
         }
-        catch (IOException e)
+        File temporaryFile = null;
+        ByteArrayOutputStream spriteImageByteArrayOuputStream = null;
+        String mergedImageFile = null;
+        OutputStream spriteImageOuputStream = null;
+        try
         {
-            // Unlikely to happen.
-            messageLog.warning(MessageType.CANNOT_WRITE_SPRITE_IMAGE,
-                spriteImageDirective.imagePath, e.getMessage());
-        }
+            if (fileSystemResourceHandler != null)
+            {
+                final String imagePathPrefix = spriteImage.getImagePathPrefix(timestamp);
+                mergedImageFile = getImageFile(spriteImageOccurrence.cssFile,
+                    imagePathPrefix.substring(0, imagePathPrefix.lastIndexOf('/') + 1)
+                        + spriteImageDirective.spriteId);
+                temporaryFile = fileSystemResourceHandler
+                    .createTemporaryFile(mergedImageFile);
+                spriteImageOuputStream = new BufferedOutputStream(new FileOutputStream(
+                    temporaryFile), 64 * 1024);
+            }
+            else
+            {
+                spriteImageByteArrayOuputStream = new ByteArrayOutputStream();
+                spriteImageOuputStream = spriteImageByteArrayOuputStream;
+            }
+            // All hashes are computed in the same single pass over the encoded image
+            for (MessageDigest digest : digests.values())
+            {
+                spriteImageOuputStream = new DigestOutputStream(spriteImageOuputStream,
+                    digest);
+            }
 
-        // Build file name
-        byte [] spriteImageBytes = spriteImageByteArrayOuputStream.toByteArray();
-        String resolvedImagePath = spriteImage.resolveImagePath(spriteImageBytes,
-            timestamp, ie6Reduced);
-        if (resolvedImagePath.indexOf('?') >= 0)
-        {
-            resolvedImagePath = resolvedImagePath.substring(0,
-                resolvedImagePath.indexOf('?'));
-        }
+            // Encoding errors, e.g. a full disk, leave an incomplete temporary file,
+            // which must not be moved to the final path
+            final PngOptimizer pngOptimizer = getPngOptimizer(spriteImageDirective);
+            final PngEncoder pngEncoder = getPngEncoder(spriteImageDirective);
+            if (pngOptimizer != null)
+            {
+                pngOptimizer.write(imageToWrite, spriteImageOuputStream);
+            }
+            else if (pngEncoder != null)
+            {
+                pngEncoder.write(imageToWrite, spriteImageOuputStream);
+            }
+            else
+            {
+                ImageIO.write(imageToWrite, spriteImageDirective.format.toString(),
+                    spriteImageOuputStream);
+            }
 
-        // Save the image to the disk
-        final String mergedImageFile = getImageFile(spriteImageOccurrence.cssFile,
-            resolvedImagePath);
+            // Closing may be where the data actually gets written, so we don't want to
+            // swallow its exceptions
+            spriteImageOuputStream.close();
 
-        OutputStream spriteImageOuputStream = null;
-        try
-        {
+            // Build file name
+            final Map<String, byte []> digestValues = Maps.newHashMap();
+            for (Map.Entry<String, MessageDigest> digest : digests.entrySet())
+            {
+                digestValues.put(digest.getKey(), digest.getValue().digest());
+            }
+            final Map<SpriteUidType, String> hashes = Maps.newEnumMap(SpriteUidType.class);
+            for (SpriteUidType uidType : contentHashTypes)
+            {
+                hashes.put(uidType, uidType.toHex(digestValues.get(uidType.algorithm)));
+            }
+            String resolvedImagePath = spriteImage.resolveImagePath(hashes, timestamp,
+                ie6Reduced);
+            if (resolvedImagePath.indexOf('?') >= 0)
+            {
+                resolvedImagePath = resolvedImagePath.substring(0,
+                    resolvedImagePath.indexOf('?'));
+            }
+
+            // Save the image to the disk
+            mergedImageFile = getImageFile(spriteImageOccurrence.cssFile,
+                resolvedImagePath);
             messageLog.info(MessageType.WRITING_SPRITE_IMAGE, mergedImage.getWidth(),
                 mergedImage.getHeight(), spriteImageDirective.spriteId, mergedImageFile);
-            spriteImageOuputStream = resourceHandler
-                .getResourceAsOutputStream(mergedImageFile);
-
-            spriteImageOuputStream.write(spriteImageBytes);
+            if (temporaryFile != null)
+            {
+                fileSystemResourceHandler.moveFile(temporaryFile, mergedImageFile);
+                temporaryFile = null;
+                if (resourceHandler instanceof CachingResourceHandler)
+                {
+                    ((CachingResourceHandler) resourceHandler)
+                        .invalidate(mergedImageFile);
+                }
+            }
+            else
+            {
+                spriteImageOuputStream = resourceHandler
+                    .getResourceAsOutputStream(mergedImageFile);
+                spriteImageByteArrayOuputStream.writeTo(spriteImageOuputStream);
+                spriteImageOuputStream.close();
+            }
         }
         catch (final IOException e)
         {
-            messageLog.warning(MessageType.CANNOT_WRITE_SPRITE_IMAGE, mergedImageFile,
+            messageLog.warning(MessageType.CANNOT_WRITE_SPRITE_IMAGE,
+                mergedImageFile != null ? mergedImageFile : spriteImageDirective.imagePath,
                 e.getMessage());
+            return null;
         }
         finally
         {
             Closeables.close(spriteImageOuputStream, true);
+            if (temporaryFile != null && !temporaryFile.delete())
+            {
+                temporaryFile.deleteOnExit();
+            }
+        }
+
+        return mergedImageFile;
+    }
+
+    /**
+     * Returns the file system resource handler sprite images are written with or
+     * <code>null</code> if they are not written to the file system.
+     */
+    private FileSystemResourceHandler getFileSystemResourceHandler()
+    {
+        ResourceHandler handler = resourceHandler;
+        if (handler instanceof CachingResourceHandler)
+        {
+            handler = ((CachingResourceHandler) handler).getDelegate();
         }
+        return handler instanceof FileSystemResourceHandler
+            ? (FileSystemResourceHandler) handler : null;
     }
 
     /**
@@ -304,29 +1142,52 @@ public class SpriteImageBuilder
             dimension += leastCommonMultiple - (dimension % leastCommonMultiple);
         }
 
+        // Only images whose rendered forms have the same dimensions can be duplicates,
+        // the others are never rendered separately
+        final Multiset<List<Integer>> renderedSizes = HashMultiset.create();
+        for (final Map.Entry<SpriteReferenceOccurrence, BufferedImage> entry : images
+            .entrySet())
+        {
+            renderedSizes.add(getRenderedSize(entry.getKey(), entry.getValue(), layout,
+                dimension));
+        }
+
         // Compute the other sprite dimension.
         int currentOffset = 0;
         final Map<SpriteReferenceOccurrence, SpriteReferenceReplacement> spriteReplacements = Maps
             .newLinkedHashMap();
         final Map<BufferedImageEqualsWrapper, Integer> renderedImageToOffset = Maps
             .newLinkedHashMap();
+        final Map<SpriteReferenceOccurrence, Integer> imagesToDraw = Maps
+            .newLinkedHashMap();
         for (final Map.Entry<SpriteReferenceOccurrence, BufferedImage> entry : images
             .entrySet())
         {
             final SpriteReferenceOccurrence spriteReferenceOccurrence = entry.getKey();
             final BufferedImage image = entry.getValue();
 
-            final BufferedImage rendered = spriteReferenceOccurrence.render(image,
-                layout, dimension);
-            final BufferedImageEqualsWrapper imageWrapper = new BufferedImageEqualsWrapper(
-                rendered);
-            Integer imageOffset = renderedImageToOffset.get(imageWrapper);
+            Integer imageOffset = null;
+            if (renderedSizes.count(getRenderedSize(spriteReferenceOccurrence, image,
+                layout, dimension)) > 1)
+            {
+                final BufferedImage rendered = spriteReferenceOccurrence.render(image,
+                    layout, dimension);
+                final BufferedImageEqualsWrapper imageWrapper = new BufferedImageEqualsWrapper(
+                    rendered);
+                imageOffset = renderedImageToOffset.get(imageWrapper);
+                if (imageOffset == null)
+                {
+                    renderedImageToOffset.put(imageWrapper, currentOffset);
+                }
+            }
             if (imageOffset == null)
             {
                 // Draw a new image
                 imageOffset = currentOffset;
-                renderedImageToOffset.put(imageWrapper, imageOffset);
-                currentOffset += vertical ? rendered.getHeight() : rendered.getWidth();
+                imagesToDraw.put(spriteReferenceOccurrence, imageOffset);
+                currentOffset += vertical ? spriteReferenceOccurrence.getRequiredHeight(
+                    image, layout) : spriteReferenceOccurrence.getRequiredWidth(image,
+                    layout);
             }
 
             final float scaledImageWidth = spriteReferenceOccurrence.getRequiredWidth(image, layout) / spriteScale;
@@ -363,17 +1224,36 @@ public class SpriteImageBuilder
         final BufferedImage sprite = new BufferedImage(spriteWidth, spriteHeight,
             BufferedImage.TYPE_4BYTE_ABGR);
 
-        for (final Map.Entry<BufferedImageEqualsWrapper, Integer> entry : renderedImageToOffset
+        for (final Map.Entry<SpriteReferenceOccurrence, Integer> entry : imagesToDraw
             .entrySet())
         {
-
-            BufferedImageUtils.drawImage(entry.getKey().image, sprite, vertical ? 0
-                : entry.getValue(), vertical ? entry.getValue() : 0);
+            final SpriteReferenceOccurrence spriteReferenceOccurrence = entry.getKey();
+            spriteReferenceOccurrence.render(images.get(spriteReferenceOccurrence),
+                layout, dimension, sprite, entry.getValue());
         }
 
         return new SpriteImage(sprite, spriteImageOccurrence, spriteReplacements, spriteWidth, spriteHeight, spriteScale);
     }
 
+    /**
+     * Returns the width and height of the provided image rendered with its margins.
+     */
+    private static List<Integer> getRenderedSize(
+        SpriteReferenceOccurrence spriteReferenceOccurrence, BufferedImage image,
+        SpriteImageLayout layout, int dimension)
+    {
+        if (SpriteImageLayout.VERTICAL.equals(layout))
+        {
+            return Arrays.asList(dimension, spriteReferenceOccurrence.getRequiredHeight(
+                image, layout));
+        }
+        else
+        {
+            return Arrays.asList(spriteReferenceOccurrence.getRequiredWidth(image,
+                layout), dimension);
+        }
+    }
+
     /**
      * Calculates the width/ height of "repeated" sprites.
      */
@@ -442,95 +1322,85 @@ public class SpriteImageBuilder
 
     /**
      * A wrapper that implements content-aware {@link Object#equals(Object)} and
-     * {@link Object#hashCode()} on {@link BufferedImage}s.
+     * {@link Object#hashCode()} on {@link BufferedImage}s. Pixels that are fully
+     * transparent are considered equal regardless of their colors, because they are
+     * invisible anyway. A 64-bit fingerprint of the pixels is computed once, pixels are
+     * compared one by one only if the fingerprints are equal.
      */
     static final class BufferedImageEqualsWrapper
     {
-        BufferedImage image;
+        private final int width;
+
+        private final int height;
+
+        private final int type;
+
+        /** The image's pixels row by row, with fully transparent pixels set to 0 */
+        private final int [] pixels;
+
+        /** The fingerprint of the image's dimensions and pixels */
+        final long fingerprint;
 
         BufferedImageEqualsWrapper(BufferedImage image)
         {
-            this.image = image;
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            this.type = image.getType();
+            this.pixels = image.getRGB(0, 0, width, height, null, 0, width);
+            this.fingerprint = fingerprint(pixels, width, height);
         }
 
         @Override
         public boolean equals(Object obj)
         {
-            if (!(obj instanceof BufferedImageEqualsWrapper))
-            {
-                return false;
-            }
-
             if (obj == this)
             {
                 return true;
             }
 
-            final BufferedImage other = ((BufferedImageEqualsWrapper) obj).image;
-
-            boolean equal = other.getWidth() == image.getWidth()
-                && other.getHeight() == image.getHeight()
-                && other.getType() == image.getType();
-
-            if (equal)
+            if (!(obj instanceof BufferedImageEqualsWrapper))
             {
-                for (int y = 0; y < image.getHeight(); y++)
-                {
-                    for (int x = 0; x < image.getWidth(); x++)
-                    {
-                        if (ignoreFullTransparency(image.getRGB(x, y)) != ignoreFullTransparency(other
-                            .getRGB(x, y)))
-                        {
-                            return false;
-                        }
-                    }
-                }
+                return false;
             }
 
-            return equal;
+            final BufferedImageEqualsWrapper other = (BufferedImageEqualsWrapper) obj;
+            return other.fingerprint == fingerprint && other.width == width
+                && other.height == height && other.type == type
+                && Arrays.equals(other.pixels, pixels);
         }
 
         @Override
         public int hashCode()
         {
-            if (image == null)
-            {
-                return 0;
-            }
-
-            int hash = image.getWidth() ^ (image.getHeight() << 16);
-
-            // Computes the hashCode based on an 4 x 4 to 7 x 7 grid of image's pixels
-            final int xIncrement = image.getWidth() > 7 ? image.getWidth() >> 2 : 1;
-            final int yIncrement = image.getHeight() > 7 ? image.getHeight() >> 2 : 1;
-
-            for (int y = 0; y < image.getHeight(); y += yIncrement)
-            {
-                for (int x = 0; x < image.getWidth(); x += xIncrement)
-                {
-                    hash ^= ignoreFullTransparency(image.getRGB(x, y));
-                }
-            }
-
-            return hash;
+            return (int) (fingerprint ^ (fingerprint >>> 32));
         }
 
         /**
-         * If the pixel is fully transparent, returns 0. Otherwise, returns the pixel.
-         * This is useful in {@link #equals(Object)} and {@link #hashCode()} to ignore
-         * pixels that have different colors but are invisible anyway because of full
-         * transparency.
+         * Sets fully transparent pixels to 0 and computes a 64-bit hash of the pixels,
+         * along the lines of MurmurHash2.
          */
-        private static int ignoreFullTransparency(int pixel)
+        private static long fingerprint(int [] pixels, int width, int height)
         {
-            if ((pixel & 0xff000000) == 0x00000000)
-            {
-                return 0;
-            }
-            else
+            final long m = 0xc6a4a7935bd1e995L;
+            long hash = 0x9e3779b97f4a7c15L ^ (((long) width << 32 | height) * m);
+            for (int i = 0; i < pixels.length; i++)
             {
-                return pixel;
+                if ((pixels[i] & 0xff000000) == 0)
+                {
+                    pixels[i] = 0;
+                }
+
+                long k = (pixels[i] & 0xffffffffL) * m;
+                k ^= k >>> 47;
+                hash = (hash ^ k * m) * m;
             }
+
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return hash;
         }
     }
 }
@@ -1,17 +1,23 @@
 package org.carrot2.labs.smartsprites;
 
 import java.awt.Color;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.carrot2.labs.smartsprites.SmartSpritesParameters.SpritePngFilter;
+import org.carrot2.labs.smartsprites.SmartSpritesParameters.SpriteQuantizer;
 import org.carrot2.labs.smartsprites.css.CssProperty;
 import org.carrot2.labs.smartsprites.css.CssSyntaxUtils;
 import org.carrot2.labs.smartsprites.message.Message.MessageType;
 import org.carrot2.labs.smartsprites.message.MessageLog;
 import org.carrot2.util.CollectionUtils;
 import org.carrot2.util.StringUtils;
+import org.carrot2.util.XxHash64;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
@@ -29,12 +35,17 @@ public class SpriteImageDirective
     public static final String PROPERTY_SPRITE_MATTE_COLOR = "sprite-matte-color";
     public static final String PROPERTY_SPRITE_IE6_MODE = "sprite-ie6-mode";
     public static final String PROPERTY_SPRITE_SCALE = "sprite-scale";
+    public static final String PROPERTY_SPRITE_QUANTIZER = "sprite-quantizer";
+    public static final String PROPERTY_SPRITE_PNG_COMPRESSION = "sprite-png-compression";
+    public static final String PROPERTY_SPRITE_PNG_FILTER = "sprite-png-filter";
 
     /** A set of allowed properties */
     private static final Set<String> ALLOWED_PROPERTIES = ImmutableSet.of(
         PROPERTY_SPRITE_ID, PROPERTY_SPRITE_IMAGE_LAYOUT, PROPERTY_SPRITE_IMAGE_URL,
         PROPERTY_SPRITE_MATTE_COLOR, PROPERTY_SPRITE_IE6_MODE,
-        PROPERTY_SPRITE_SCALE, PROPERTY_SPRITE_IMAGE_UID_SUFFIX);
+        PROPERTY_SPRITE_SCALE, PROPERTY_SPRITE_IMAGE_UID_SUFFIX,
+        PROPERTY_SPRITE_QUANTIZER, PROPERTY_SPRITE_PNG_COMPRESSION,
+        PROPERTY_SPRITE_PNG_FILTER);
 
     /**
      * Defines the layout of this sprite.
@@ -89,16 +100,98 @@ public class SpriteImageDirective
         /**
          * Append MD5 of the sprites file.
          */
-        MD5;
+        MD5("MD5"),
+
+        /**
+         * Append the 64-bit xxHash of the sprites file, much faster to compute than MD5
+         * and half as long.
+         */
+        XXHASH(XxHash64.ALGORITHM),
+
+        /**
+         * Append a fast non-cryptographic hash of the sprites file, currently the same as
+         * {@link #XXHASH}.
+         */
+        HASH(XxHash64.ALGORITHM);
 
         private String value;
 
+        /**
+         * Matches the variable of this UID type. Content hash variables can be followed
+         * by the number of hex digits to keep, e.g. <code>${hash:8}</code>.
+         */
         public final Pattern pattern;
 
+        /**
+         * The algorithm of the digest to compute over the encoded sprite image,
+         * <code>null</code> if this UID type is not a content hash.
+         */
+        public final String algorithm;
+
         private SpriteUidType()
+        {
+            this(null);
+        }
+
+        private SpriteUidType(String algorithm)
         {
             this.value = name().toLowerCase();
-            this.pattern = Pattern.compile("${" + value + "}", Pattern.LITERAL);
+            this.algorithm = algorithm;
+            this.pattern = Pattern.compile("\\$\\{" + value
+                + (algorithm != null ? "(?::([1-9][0-9]*))?" : "") + "\\}");
+        }
+
+        /**
+         * Returns a new digest for this content hash UID type.
+         */
+        public MessageDigest newDigest()
+        {
+            if (XxHash64.ALGORITHM.equals(algorithm))
+            {
+                return new XxHash64();
+            }
+
+            try
+            {
+                return MessageDigest.getInstance(algorithm);
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Formats the digest computed for this content hash UID type.
+         */
+        public String toHex(byte [] digest)
+        {
+            final BigInteger value = new BigInteger(1, digest);
+            if (this == MD5)
+            {
+                // Leading zeros were never included in MD5 UIDs, keep them the same
+                return value.toString(16);
+            }
+            return String.format("%0" + (digest.length * 2) + "x", value);
+        }
+
+        /**
+         * Replaces the variables of this UID type in the provided path with the provided
+         * UID, truncated to the length given in the variable, if any.
+         */
+        public String resolve(String path, String uid)
+        {
+            final Matcher matcher = pattern.matcher(path);
+            final StringBuffer resolved = new StringBuffer();
+            while (matcher.find())
+            {
+                final int length = algorithm != null && matcher.group(1) != null ? Math
+                    .min(Integer.parseInt(matcher.group(1)), uid.length()) : uid.length();
+                matcher.appendReplacement(resolved, Matcher.quoteReplacement(uid
+                    .substring(0, length)));
+            }
+            matcher.appendTail(resolved);
+            return resolved.toString();
         }
 
         @Override
@@ -218,6 +311,24 @@ public class SpriteImageDirective
      */
     public final float scaleRatio;
 
+    /**
+     * Color quantizer to be used when reducing colors of this sprite,
+     * <code>null</code> to use the default {@link SmartSpritesParameters#getSpriteQuantizer()}.
+     */
+    public final SpriteQuantizer quantizer;
+
+    /**
+     * Deflate level of this sprite image if in PNG format, <code>null</code> to use the
+     * default {@link SmartSpritesParameters#getSpritePngCompression()}.
+     */
+    public final Integer pngCompression;
+
+    /**
+     * Row filter of this sprite image if in PNG format, <code>null</code> to use the
+     * default {@link SmartSpritesParameters#getSpritePngFilter()}.
+     */
+    public final SpritePngFilter pngFilter;
+
     /**
      * Sprite layout properties defined at the sprite image directive level. The defaults
      * provided here can be overridden at the sprite reference directive level.
@@ -234,13 +345,14 @@ public class SpriteImageDirective
      * Pattern for extracting variables from image path.
      */
     private static final Pattern IMAGE_PATH_VARIABLE_PATTERN = Pattern
-        .compile("\\$\\{([a-z]*)\\}");
+        .compile("\\$\\{([a-z]*)(:[^}]*)?\\}");
 
     /**
      * Variable names allowed in image path.
      */
     private static final Set<String> ALLOWED_VARIABLES = ImmutableSet.of(PROPERTY_SPRITE_ID,
-        SpriteUidType.DATE.toString(), SpriteUidType.MD5.toString());
+        SpriteUidType.DATE.toString(), SpriteUidType.MD5.toString(),
+        SpriteUidType.XXHASH.toString(), SpriteUidType.HASH.toString());
 
     public SpriteImageDirective(String id, String imageUrl, SpriteImageLayout layout,
         SpriteImageFormat format, Ie6Mode ie6Mode, Color matteColor, SpriteUidType uidType, float scale)
@@ -252,6 +364,15 @@ public class SpriteImageDirective
     public SpriteImageDirective(String id, String imageUrl, SpriteImageLayout layout,
         SpriteImageFormat format, Ie6Mode ie6Mode, Color matteColor,
         SpriteUidType uidType, float scale, SpriteLayoutProperties spriteLayoutProperties)
+    {
+        this(id, imageUrl, layout, format, ie6Mode, matteColor, uidType, scale,
+            spriteLayoutProperties, null, null, null);
+    }
+
+    public SpriteImageDirective(String id, String imageUrl, SpriteImageLayout layout,
+        SpriteImageFormat format, Ie6Mode ie6Mode, Color matteColor,
+        SpriteUidType uidType, float scale, SpriteLayoutProperties spriteLayoutProperties,
+        SpriteQuantizer quantizer, Integer pngCompression, SpritePngFilter pngFilter)
     {
         this.spriteId = id;
         this.imagePath = imageUrl;
@@ -262,6 +383,25 @@ public class SpriteImageDirective
         this.uidType = uidType;
         this.scaleRatio = scale;
         this.spriteLayoutProperties = spriteLayoutProperties;
+        this.quantizer = quantizer;
+        this.pngCompression = pngCompression;
+        this.pngFilter = pngFilter;
+    }
+
+    /**
+     * Returns <code>true</code> if the provided image path variable is a content hash,
+     * possibly truncated.
+     */
+    private static boolean isContentHashVariable(String variable)
+    {
+        for (SpriteUidType uidType : SpriteUidType.values())
+        {
+            if (uidType.algorithm != null && uidType.pattern.matcher(variable).matches())
+            {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -319,13 +459,20 @@ public class SpriteImageDirective
                 .matcher(imagePath);
             while (variableMatcher.find())
             {
-                if (variableMatcher.groupCount() == 1
-                    && !ALLOWED_VARIABLES.contains(variableMatcher.group(1)))
+                if (!ALLOWED_VARIABLES.contains(variableMatcher.group(1)))
                 {
                     messageCollector.warning(
                         MessageType.UNSUPPORTED_VARIABLE_IN_SPRITE_IMAGE_PATH,
                         variableMatcher.group(1));
                 }
+                else if (variableMatcher.group(2) != null
+                    && !isContentHashVariable(variableMatcher.group()))
+                {
+                    // Only content hashes can be truncated
+                    messageCollector.warning(
+                        MessageType.UNSUPPORTED_VARIABLE_IN_SPRITE_IMAGE_PATH,
+                        variableMatcher.group(1) + variableMatcher.group(2));
+                }
             }
         }
         else
@@ -399,9 +546,41 @@ public class SpriteImageDirective
             scale = 1.0f;
         }
 
+        // Quantizer is optional
+        final SpriteQuantizer quantizer = valueOf(
+            CssSyntaxUtils.getValue(rules, PROPERTY_SPRITE_QUANTIZER),
+            SpriteQuantizer.class, null, messageCollector,
+            MessageType.UNSUPPORTED_QUANTIZER);
+
+        // PNG compression level and filter are optional
+        Integer pngCompression = null;
+        final String pngCompressionString = CssSyntaxUtils.getValue(rules,
+            PROPERTY_SPRITE_PNG_COMPRESSION);
+        if (StringUtils.isNotBlank(pngCompressionString))
+        {
+            try
+            {
+                pngCompression = Integer.valueOf(pngCompressionString.trim());
+            }
+            catch (NumberFormatException e)
+            {
+                // Reported below
+            }
+            if (pngCompression == null || pngCompression < 0 || pngCompression > 9)
+            {
+                messageCollector.warning(MessageType.UNSUPPORTED_PNG_COMPRESSION,
+                    pngCompressionString);
+                pngCompression = null;
+            }
+        }
+        final SpritePngFilter pngFilter = valueOf(
+            CssSyntaxUtils.getValue(rules, PROPERTY_SPRITE_PNG_FILTER),
+            SpritePngFilter.class, null, messageCollector,
+            MessageType.UNSUPPORTED_PNG_FILTER);
+
         return new SpriteImageDirective(id, imagePath, layout, format, ie6Mode,
             matteColor, uidGenerator, scale, SpriteLayoutProperties.parse(directiveString,
-                layout, messageCollector));
+                layout, messageCollector), quantizer, pngCompression, pngFilter);
     }
 
     private static <T extends Enum<T>> T valueOf(String stringValue, Class<T> enumClass,
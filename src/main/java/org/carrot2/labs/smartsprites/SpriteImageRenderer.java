@@ -2,16 +2,18 @@ package org.carrot2.labs.smartsprites;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
 
 import org.carrot2.labs.smartsprites.SmartSpritesParameters.PngDepth;
+import org.carrot2.labs.smartsprites.SmartSpritesParameters.SpriteQuantizer;
 import org.carrot2.labs.smartsprites.SpriteImageDirective.Ie6Mode;
 import org.carrot2.labs.smartsprites.SpriteImageDirective.SpriteImageFormat;
 import org.carrot2.labs.smartsprites.message.MessageLog;
 import org.carrot2.labs.smartsprites.message.Message.MessageLevel;
 import org.carrot2.labs.smartsprites.message.Message.MessageType;
-import org.carrot2.util.BufferedImageUtils;
 import org.carrot2.util.ColorQuantizer;
 import org.carrot2.util.ColorQuantizer.ColorReductionInfo;
+import org.carrot2.util.ImageColorStats;
 
 /**
  * Applies color quantization to the merged sprite image if required.
@@ -31,9 +33,9 @@ public class SpriteImageRenderer
     }
 
     /**
-     * If needed, quantizes the image.
+     * If needed, quantizes the image, on the provided pool if not <code>null</code>.
      */
-    BufferedImage [] render(SpriteImage spriteImage)
+    BufferedImage [] render(SpriteImage spriteImage, ForkJoinPool pool)
     {
         final BufferedImage sprite = spriteImage.sprite;
         final SpriteImageDirective spriteImageDirective = spriteImage.spriteImageOccurrence.spriteImageDirective;
@@ -45,8 +47,12 @@ public class SpriteImageRenderer
         final boolean isPngDirect = isPng
             && parameters.getSpritePngDepth() == PngDepth.DIRECT;
 
-        final ColorReductionInfo colorReductionInfo = ColorQuantizer
-            .getColorReductionInfo(sprite);
+        // Transparency and colors in one pass, we only need to know if there are
+        // more colors than fit in an indexed image
+        final ImageColorStats colorStats = ImageColorStats.compute(sprite,
+            ColorQuantizer.MAX_INDEXED_COLORS);
+        final ColorReductionInfo colorReductionInfo = new ColorReductionInfo(
+            colorStats.hasPartialTransparency, colorStats.distinctColors);
         final boolean canReduceWithoutQualityLoss = colorReductionInfo
             .canReduceWithoutQualityLoss();
 
@@ -60,11 +66,11 @@ public class SpriteImageRenderer
             // colors but doesn't have any transparency, we don't need an IE6 version,
             // because IE6 can handle PNG24 with no transparency correctly.
             if (parameters.isSpritePngIe6() && isPng
-                && BufferedImageUtils.hasTransparency(sprite)
+                && colorStats.hasTransparency
                 && spriteImageDirective.ie6Mode != Ie6Mode.NONE)
             {
-                result[1] = quantize(sprite, spriteImage, colorReductionInfo,
-                    MessageLevel.IE6NOTICE);
+                result[1] = quantize(sprite, spriteImage, colorStats,
+                    MessageLevel.IE6NOTICE, pool);
                 spriteImage.hasReducedForIe6 = true;
             }
             else if (spriteImageDirective.matteColor != null)
@@ -90,8 +96,8 @@ public class SpriteImageRenderer
         }
         else
         {
-            result[0] = quantize(sprite, spriteImage, colorReductionInfo,
-                MessageLevel.WARN);
+            result[0] = quantize(sprite, spriteImage, colorStats,
+                MessageLevel.WARN, pool);
             return result;
         }
     }
@@ -100,21 +106,24 @@ public class SpriteImageRenderer
      * Performs quantization, logs the appropriate messages if needed.
      */
     private BufferedImage quantize(BufferedImage sprite, SpriteImage spriteImage,
-        final ColorReductionInfo colorReductionInfo, MessageLevel logLevel)
+        final ImageColorStats colorStats, MessageLevel logLevel, ForkJoinPool pool)
     {
         final SpriteImageDirective spriteImageDirective = spriteImage.spriteImageOccurrence.spriteImageDirective;
 
         // Need to quantize
-        if (colorReductionInfo.hasPartialTransparency)
+        if (colorStats.hasPartialTransparency)
         {
             messageLog.log(logLevel, MessageType.ALPHA_CHANNEL_LOSS_IN_INDEXED_COLOR,
                 spriteImageDirective.spriteId);
         }
         else
         {
+            // Report the actual number of colors, even if counting stopped at the limit
+            final int distinctColors = colorStats.distinctColorsExact ? colorStats.distinctColors
+                : ImageColorStats.compute(sprite).distinctColors;
             messageLog.log(logLevel, MessageType.TOO_MANY_COLORS_FOR_INDEXED_COLOR,
-                spriteImageDirective.spriteId,
-                colorReductionInfo.distictColors, ColorQuantizer.MAX_INDEXED_COLORS);
+                spriteImageDirective.spriteId, distinctColors,
+                ColorQuantizer.MAX_INDEXED_COLORS);
         }
 
         final Color matte;
@@ -124,7 +133,7 @@ public class SpriteImageRenderer
         }
         else
         {
-            if (colorReductionInfo.hasPartialTransparency)
+            if (colorStats.hasPartialTransparency)
             {
                 messageLog.log(logLevel, MessageType.USING_WHITE_MATTE_COLOR_AS_DEFAULT,
                     spriteImageDirective.spriteId);
@@ -132,6 +141,12 @@ public class SpriteImageRenderer
             matte = Color.WHITE;
         }
 
-        return ColorQuantizer.quantize(sprite, matte);
+        SpriteQuantizer quantizer = parameters.getSpriteQuantizer();
+        if (spriteImageDirective.quantizer != null)
+        {
+            quantizer = spriteImageDirective.quantizer;
+        }
+        return ColorQuantizer.quantize(sprite, matte, ColorQuantizer.MAX_INDEXED_COLORS,
+            quantizer.createQuantizer(pool));
     }
 }
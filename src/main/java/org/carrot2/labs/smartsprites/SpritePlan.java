@@ -0,0 +1,210 @@
+package org.carrot2.labs.smartsprites;
+
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.math3.util.ArithmeticUtils;
+import org.carrot2.labs.smartsprites.SpriteImageDirective.SpriteImageLayout;
+import org.carrot2.labs.smartsprites.SpriteLayoutProperties.SpriteAlignment;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Dimensions and layout of a sprite image computed from the headers of its source
+ * images, without decoding their pixels. References to the same image file with the
+ * same layout properties share one place in the sprite. Different files with identical
+ * content are not detected, so the planned dimensions are an upper bound of the
+ * dimensions of the sprite built from decoded images.
+ */
+final class SpritePlan
+{
+    /** Number of bytes per pixel of the sprite canvas */
+    private static final int CANVAS_BYTES_PER_PIXEL = 4;
+
+    /** The planned sprite image */
+    final SpriteImageOccurrence spriteImageOccurrence;
+
+    /** Width of the sprite in pixels */
+    final int width;
+
+    /** Height of the sprite in pixels */
+    final int height;
+
+    /** Width of a vertical sprite or height of a horizontal sprite */
+    final int dimension;
+
+    /**
+     * Offsets of the images, in the order of occurrences. Occurrences whose images
+     * could not be read are not included.
+     */
+    final Map<SpriteReferenceOccurrence, Integer> offsets;
+
+    /** Headers of the images, by occurrence */
+    final Map<SpriteReferenceOccurrence, ImageHeader> headers;
+
+    /** Resolved paths of the images, by occurrence */
+    final Map<SpriteReferenceOccurrence, String> imagePaths;
+
+    /** Number of distinct images placed in the sprite */
+    final int imageCount;
+
+    /** Number of pixels of the distinct images placed in the sprite */
+    final long imagePixelCount;
+
+    /**
+     * Total size of the files of the distinct images placed in the sprite, negative if
+     * the file sizes are unknown
+     */
+    final long imageFileLength;
+
+    private SpritePlan(SpriteImageOccurrence spriteImageOccurrence, int width,
+        int height, int dimension, Map<SpriteReferenceOccurrence, Integer> offsets,
+        Map<SpriteReferenceOccurrence, ImageHeader> headers,
+        Map<SpriteReferenceOccurrence, String> imagePaths, int imageCount,
+        long imagePixelCount, long imageFileLength)
+    {
+        this.spriteImageOccurrence = spriteImageOccurrence;
+        this.width = width;
+        this.height = height;
+        this.dimension = dimension;
+        this.offsets = offsets;
+        this.headers = headers;
+        this.imagePaths = imagePaths;
+        this.imageCount = imageCount;
+        this.imagePixelCount = imagePixelCount;
+        this.imageFileLength = imageFileLength;
+    }
+
+    /**
+     * Lays out a sprite the same way {@link SpriteImageBuilder#buildSpriteImage} does,
+     * but based on image headers only.
+     *
+     * @param headers headers of the images that could be read, in the order of
+     *            occurrences
+     * @param imagePaths resolved paths of the images, used to detect repeated images
+     */
+    static SpritePlan create(SpriteImageOccurrence spriteImageOccurrence,
+        Map<SpriteReferenceOccurrence, ImageHeader> headers,
+        Map<SpriteReferenceOccurrence, String> imagePaths)
+    {
+        final SpriteImageLayout layout = spriteImageOccurrence.spriteImageDirective.layout;
+        final boolean vertical = layout.equals(SpriteImageLayout.VERTICAL);
+
+        // Find the least common multiple of the images with 'repeat' alignment
+        // and the sprite dimension
+        int leastCommonMultiple = 1;
+        int dimension = 0;
+        for (final Map.Entry<SpriteReferenceOccurrence, ImageHeader> entry : headers
+            .entrySet())
+        {
+            final SpriteReferenceOccurrence occurrence = entry.getKey();
+            final int requiredDimension = vertical ? occurrence.getRequiredWidth(
+                entry.getValue().width, layout) : occurrence.getRequiredHeight(
+                entry.getValue().height, layout);
+            if (SpriteAlignment.REPEAT
+                .equals(occurrence.spriteReferenceDirective.spriteLayoutProperties.alignment))
+            {
+                leastCommonMultiple = ArithmeticUtils.lcm(leastCommonMultiple,
+                    requiredDimension);
+            }
+            dimension = Math.max(dimension, requiredDimension);
+        }
+        dimension = Math.max(dimension, leastCommonMultiple);
+        if (dimension % leastCommonMultiple != 0)
+        {
+            dimension += leastCommonMultiple - (dimension % leastCommonMultiple);
+        }
+
+        // Compute the offsets, placing repeated images only once
+        int currentOffset = 0;
+        long imagePixelCount = 0;
+        long imageFileLength = 0;
+        final Map<SpriteReferenceOccurrence, Integer> offsets = Maps.newLinkedHashMap();
+        final Map<String, Integer> offsetsByImage = Maps.newHashMap();
+        for (final Map.Entry<SpriteReferenceOccurrence, ImageHeader> entry : headers
+            .entrySet())
+        {
+            final SpriteReferenceOccurrence occurrence = entry.getKey();
+            final ImageHeader header = entry.getValue();
+            final String imageKey = getImageKey(imagePaths.get(occurrence), occurrence);
+            Integer offset = offsetsByImage.get(imageKey);
+            if (offset == null)
+            {
+                offset = currentOffset;
+                offsetsByImage.put(imageKey, offset);
+                currentOffset += vertical ? occurrence.getRequiredHeight(header.height,
+                    layout) : occurrence.getRequiredWidth(header.width, layout);
+                imagePixelCount += (long) header.width * header.height;
+                imageFileLength = header.length >= 0 && imageFileLength >= 0 ? imageFileLength
+                    + header.length : -1;
+            }
+            offsets.put(occurrence, offset);
+        }
+
+        return new SpritePlan(spriteImageOccurrence, vertical ? dimension
+            : currentOffset, vertical ? currentOffset : dimension, dimension, offsets,
+            headers, imagePaths, offsetsByImage.size(), imagePixelCount,
+            imageFileLength);
+    }
+
+    /**
+     * Returns the number of bytes the sprite canvas will take in memory.
+     */
+    long getCanvasLength()
+    {
+        return (long) width * height * CANVAS_BYTES_PER_PIXEL;
+    }
+
+    /**
+     * Returns the number of bytes the decoded distinct images will take in memory.
+     */
+    long getImagesLength()
+    {
+        return imagePixelCount * CANVAS_BYTES_PER_PIXEL;
+    }
+
+    /**
+     * Returns the estimated size of the sprite image file. The sprite image is assumed
+     * to compress about as well as its individual images did.
+     */
+    long getEstimatedOutputLength()
+    {
+        return imageFileLength;
+    }
+
+    /**
+     * Formats a number of bytes for humans.
+     */
+    static String formatLength(long bytes)
+    {
+        if (bytes < 1024)
+        {
+            return bytes + " B";
+        }
+
+        final String [] units = new String []
+        {
+            "KB", "MB", "GB", "TB"
+        };
+        double value = bytes / 1024.0;
+        int unit = 0;
+        while (value >= 1024 && unit < units.length - 1)
+        {
+            value /= 1024;
+            unit++;
+        }
+        return String.format(Locale.ENGLISH, "%.1f %s", value, units[unit]);
+    }
+
+    /**
+     * Images with the same path and layout properties render identically.
+     */
+    private static String getImageKey(String imagePath,
+        SpriteReferenceOccurrence occurrence)
+    {
+        final SpriteLayoutProperties properties = occurrence.spriteReferenceDirective.spriteLayoutProperties;
+        return imagePath + '\u0000' + properties.alignment + '\u0000'
+            + properties.marginLeft + '\u0000' + properties.marginRight + '\u0000'
+            + properties.marginTop + '\u0000' + properties.marginBottom;
+    }
+}
@@ -33,6 +33,15 @@ public class SpriteReferenceOccurrence extends SpriteDirectiveOccurrence
      * Computes the minimum width the individual image will need when rendering.
      */
     public int getRequiredWidth(BufferedImage image, SpriteImageLayout layout)
+    {
+        return getRequiredWidth(image.getWidth(), layout);
+    }
+
+    /**
+     * Computes the minimum width an individual image of the provided width will need
+     * when rendering.
+     */
+    public int getRequiredWidth(int imageWidth, SpriteImageLayout layout)
     {
         if (SpriteAlignment.REPEAT
             .equals(spriteReferenceDirective.spriteLayoutProperties.alignment)
@@ -40,11 +49,11 @@ public class SpriteReferenceOccurrence extends SpriteDirectiveOccurrence
         {
             // Ignoring left/right margins on repeated
             // images in vertically stacked sprites
-            return image.getWidth();
+            return imageWidth;
         }
         else
         {
-            return image.getWidth()
+            return imageWidth
                 + spriteReferenceDirective.spriteLayoutProperties.marginLeft
                 + spriteReferenceDirective.spriteLayoutProperties.marginRight;
         }
@@ -54,6 +63,15 @@ public class SpriteReferenceOccurrence extends SpriteDirectiveOccurrence
      * Computes the minimum height the individual image will need when rendering.
      */
     public int getRequiredHeight(BufferedImage image, SpriteImageLayout layout)
+    {
+        return getRequiredHeight(image.getHeight(), layout);
+    }
+
+    /**
+     * Computes the minimum height an individual image of the provided height will need
+     * when rendering.
+     */
+    public int getRequiredHeight(int imageHeight, SpriteImageLayout layout)
     {
         if (SpriteAlignment.REPEAT
             .equals(spriteReferenceDirective.spriteLayoutProperties.alignment)
@@ -61,11 +79,11 @@ public class SpriteReferenceOccurrence extends SpriteDirectiveOccurrence
         {
             // Ignoring top/bottom margins on repeated
             // images in horizontally lined sprites
-            return image.getHeight();
+            return imageHeight;
         }
         else
         {
-            return image.getHeight()
+            return imageHeight
                 + spriteReferenceDirective.spriteLayoutProperties.marginTop
                 + spriteReferenceDirective.spriteLayoutProperties.marginBottom;
         }
@@ -87,78 +105,87 @@ public class SpriteReferenceOccurrence extends SpriteDirectiveOccurrence
         {
             rendered = new BufferedImage(dimension, getRequiredHeight(image, layout),
                 BufferedImage.TYPE_4BYTE_ABGR);
+        }
+        else
+        {
+            rendered = new BufferedImage(getRequiredWidth(image, layout), dimension,
+                BufferedImage.TYPE_4BYTE_ABGR);
+        }
+        render(image, layout, dimension, rendered, 0);
+        return rendered;
+    }
 
-            if (SpriteAlignment.LEFT
-                .equals(spriteReferenceDirective.spriteLayoutProperties.alignment))
+    /**
+     * Renders the individual image, including margins and repeats if any, directly into
+     * the sprite. The area the image is rendered to must be transparent.
+     * 
+     * @param image the individual image as read from the file
+     * @param layout the layout the enclosing sprite
+     * @param dimension height/width of a horizontal/vertical sprite
+     * @param sprite the sprite image to render to
+     * @param offset the vertical/horizontal offset in a vertical/horizontal sprite at
+     *            which to render the image
+     */
+    public void render(BufferedImage image, SpriteImageLayout layout, int dimension,
+        BufferedImage sprite, int offset)
+    {
+        final SpriteLayoutProperties properties = spriteReferenceDirective.spriteLayoutProperties;
+        if (SpriteImageLayout.VERTICAL.equals(layout))
+        {
+            if (SpriteAlignment.LEFT.equals(properties.alignment))
             {
-                BufferedImageUtils.drawImage(image, rendered,
-                    spriteReferenceDirective.spriteLayoutProperties.marginLeft,
-                    spriteReferenceDirective.spriteLayoutProperties.marginTop);
+                BufferedImageUtils.drawImage(image, sprite, properties.marginLeft, offset
+                    + properties.marginTop);
             }
-            else if (SpriteAlignment.RIGHT
-                .equals(spriteReferenceDirective.spriteLayoutProperties.alignment))
+            else if (SpriteAlignment.RIGHT.equals(properties.alignment))
             {
-                BufferedImageUtils.drawImage(image, rendered,
-                    dimension
-                        - spriteReferenceDirective.spriteLayoutProperties.marginRight
-                        - image.getWidth(),
-                    spriteReferenceDirective.spriteLayoutProperties.marginTop);
+                BufferedImageUtils.drawImage(image, sprite, dimension
+                    - properties.marginRight - image.getWidth(), offset
+                    + properties.marginTop);
             }
-            else if (SpriteAlignment.CENTER
-                .equals(spriteReferenceDirective.spriteLayoutProperties.alignment))
+            else if (SpriteAlignment.CENTER.equals(properties.alignment))
             {
-                BufferedImageUtils.drawImage(image, rendered,
-                    (rendered.getWidth() - image.getWidth()) / 2,
-                    spriteReferenceDirective.spriteLayoutProperties.marginTop);
+                BufferedImageUtils.drawImage(image, sprite,
+                    (dimension - image.getWidth()) / 2, offset + properties.marginTop);
             }
             else
             {
                 // Repeat, ignoring margin-left and margin-right
                 for (int x = 0; x < dimension; x += image.getWidth())
                 {
-                    BufferedImageUtils.drawImage(image, rendered, x,
-                        spriteReferenceDirective.spriteLayoutProperties.marginTop);
+                    BufferedImageUtils.drawImage(image, sprite, x, offset
+                        + properties.marginTop);
                 }
             }
         }
         else
         {
-            rendered = new BufferedImage(getRequiredWidth(image, layout), dimension,
-                BufferedImage.TYPE_4BYTE_ABGR);
-
-            if (SpriteAlignment.TOP
-                .equals(spriteReferenceDirective.spriteLayoutProperties.alignment))
+            if (SpriteAlignment.TOP.equals(properties.alignment))
             {
-                BufferedImageUtils.drawImage(image, rendered,
-                    spriteReferenceDirective.spriteLayoutProperties.marginLeft,
-                    spriteReferenceDirective.spriteLayoutProperties.marginTop);
+                BufferedImageUtils.drawImage(image, sprite, offset
+                    + properties.marginLeft, properties.marginTop);
             }
-            else if (SpriteAlignment.BOTTOM
-                .equals(spriteReferenceDirective.spriteLayoutProperties.alignment))
+            else if (SpriteAlignment.BOTTOM.equals(properties.alignment))
             {
-                BufferedImageUtils.drawImage(image, rendered,
-                    spriteReferenceDirective.spriteLayoutProperties.marginLeft, dimension
-                        - spriteReferenceDirective.spriteLayoutProperties.marginBottom
-                        - image.getHeight());
+                BufferedImageUtils.drawImage(image, sprite, offset
+                    + properties.marginLeft, dimension - properties.marginBottom
+                    - image.getHeight());
             }
-            else if (SpriteAlignment.CENTER
-                .equals(spriteReferenceDirective.spriteLayoutProperties.alignment))
+            else if (SpriteAlignment.CENTER.equals(properties.alignment))
             {
-                BufferedImageUtils.drawImage(image, rendered,
-                    spriteReferenceDirective.spriteLayoutProperties.marginLeft, 
-                    (rendered.getHeight() - image.getHeight()) / 2);
+                BufferedImageUtils.drawImage(image, sprite, offset
+                    + properties.marginLeft, (dimension - image.getHeight()) / 2);
             }
             else
             {
                 // Repeat, ignoring margin-top and margin-bottom
                 for (int y = 0; y < dimension; y += image.getHeight())
                 {
-                    BufferedImageUtils.drawImage(image, rendered,
-                        spriteReferenceDirective.spriteLayoutProperties.marginLeft, y);
+                    BufferedImageUtils.drawImage(image, sprite, offset
+                        + properties.marginLeft, y);
                 }
             }
         }
-        return rendered;
     }
 
     /**
@@ -11,6 +11,8 @@ import org.apache.tools.ant.types.Resource;
 import org.carrot2.labs.smartsprites.SmartSpritesParameters;
 import org.carrot2.labs.smartsprites.SpriteBuilder;
 import org.carrot2.labs.smartsprites.SmartSpritesParameters.PngDepth;
+import org.carrot2.labs.smartsprites.SmartSpritesParameters.SpritePngFilter;
+import org.carrot2.labs.smartsprites.SmartSpritesParameters.SpriteQuantizer;
 import org.carrot2.labs.smartsprites.message.*;
 import org.carrot2.labs.smartsprites.message.Message.MessageLevel;
 import org.carrot2.util.EnumUtils;
@@ -32,6 +34,18 @@ public class SmartSpritesTask extends Task
     private PngDepth spritePngDepth = SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH;
     private boolean spritePngIe6 = SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6;
     private boolean markSpriteImages = SmartSpritesParameters.DEFAULT_MARK_SPRITE_IMAGES;
+    private int threads = SmartSpritesParameters.DEFAULT_THREADS;
+    private int imageDecodeThreads = SmartSpritesParameters.DEFAULT_IMAGE_DECODE_THREADS;
+    private int inFlightDecodeMemoryLimit = SmartSpritesParameters.DEFAULT_IN_FLIGHT_DECODE_MEMORY_LIMIT;
+    private boolean incremental = SmartSpritesParameters.DEFAULT_INCREMENTAL;
+    private boolean writeIfChanged = SmartSpritesParameters.DEFAULT_WRITE_IF_CHANGED;
+    private boolean plan = SmartSpritesParameters.DEFAULT_PLAN;
+    private int spriteMemoryLimit = SmartSpritesParameters.DEFAULT_SPRITE_MEMORY_LIMIT;
+    private SpriteQuantizer spriteQuantizer = SmartSpritesParameters.DEFAULT_SPRITE_QUANTIZER;
+    private int spritePngCompression = SmartSpritesParameters.DEFAULT_SPRITE_PNG_COMPRESSION;
+    private SpritePngFilter spritePngFilter = SmartSpritesParameters.DEFAULT_SPRITE_PNG_FILTER;
+    private boolean spritePngParallel = SmartSpritesParameters.DEFAULT_SPRITE_PNG_PARALLEL;
+    private int optimizeLevel = SmartSpritesParameters.DEFAULT_OPTIMIZE_LEVEL;
 
     private List<String> cssFiles = Lists.newArrayList();
 
@@ -98,12 +112,86 @@ public class SmartSpritesTask extends Task
         this.markSpriteImages = markSpriteImages;
     }
 
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+    public void setImageDecodeThreads(int imageDecodeThreads)
+    {
+        this.imageDecodeThreads = imageDecodeThreads;
+    }
+
+    public void setInFlightDecodeMemoryLimit(int inFlightDecodeMemoryLimit)
+    {
+        this.inFlightDecodeMemoryLimit = inFlightDecodeMemoryLimit;
+    }
+
+    public void setIncremental(boolean incremental)
+    {
+        this.incremental = incremental;
+    }
+
+    public void setWriteIfChanged(boolean writeIfChanged)
+    {
+        this.writeIfChanged = writeIfChanged;
+    }
+
+    public void setPlan(boolean plan)
+    {
+        this.plan = plan;
+    }
+
+    public void setSpriteMemoryLimit(int spriteMemoryLimit)
+    {
+        this.spriteMemoryLimit = spriteMemoryLimit;
+    }
+
+    public void setSpriteQuantizer(String spriteQuantizerString)
+    {
+        this.spriteQuantizer = EnumUtils.valueOf(spriteQuantizerString,
+            SpriteQuantizer.class, SmartSpritesParameters.DEFAULT_SPRITE_QUANTIZER);
+    }
+
+    public void setSpritePngCompression(int spritePngCompression)
+    {
+        this.spritePngCompression = spritePngCompression;
+    }
+
+    public void setSpritePngFilter(String spritePngFilterString)
+    {
+        this.spritePngFilter = EnumUtils.valueOf(spritePngFilterString,
+            SpritePngFilter.class, SmartSpritesParameters.DEFAULT_SPRITE_PNG_FILTER);
+    }
+
+    public void setSpritePngParallel(boolean spritePngParallel)
+    {
+        this.spritePngParallel = spritePngParallel;
+    }
+
+    public void setOptimizeLevel(int optimizeLevel)
+    {
+        this.optimizeLevel = optimizeLevel;
+    }
+
     @Override
     public void execute()
     {
         final SmartSpritesParameters parameters = new SmartSpritesParameters(rootDir,
             cssFiles, outputDir, documentRootDir, logLevel, cssFileSuffix,
             spritePngDepth, spritePngIe6, cssFileEncoding, markSpriteImages);
+        parameters.setThreads(threads);
+        parameters.setImageDecodeThreads(imageDecodeThreads);
+        parameters.setInFlightDecodeMemoryLimit(inFlightDecodeMemoryLimit);
+        parameters.setIncremental(incremental);
+        parameters.setWriteIfChanged(writeIfChanged);
+        parameters.setPlan(plan);
+        parameters.setSpriteMemoryLimit(spriteMemoryLimit);
+        parameters.setSpriteQuantizer(spriteQuantizer);
+        parameters.setSpritePngCompression(spritePngCompression);
+        parameters.setSpritePngFilter(spritePngFilter);
+        parameters.setSpritePngParallel(spritePngParallel);
+        parameters.setOptimizeLevel(optimizeLevel);
 
         final FailureDetectorMessageSink failureDetectorMessageSink = new FailureDetectorMessageSink();
         MessageLog log = new MessageLog(new AntLogMessageSink(),
@@ -3,6 +3,8 @@ package org.carrot2.labs.smartsprites.message;
 import java.io.Serializable;
 import java.util.Comparator;
 
+import org.carrot2.labs.smartsprites.SmartSpritesParameters.SpritePngFilter;
+import org.carrot2.labs.smartsprites.SmartSpritesParameters.SpriteQuantizer;
 import org.carrot2.labs.smartsprites.SpriteImageDirective;
 import org.carrot2.labs.smartsprites.SpriteImageDirective.Ie6Mode;
 import org.carrot2.labs.smartsprites.SpriteImageDirective.SpriteImageFormat;
@@ -10,6 +12,7 @@ import org.carrot2.labs.smartsprites.SpriteImageDirective.SpriteImageLayout;
 import org.carrot2.labs.smartsprites.SpriteImageDirective.SpriteUidType;
 import org.carrot2.labs.smartsprites.SpriteLayoutProperties.SpriteAlignment;
 import org.carrot2.labs.smartsprites.SpriteReferenceDirective;
+import org.carrot2.util.PngOptimizer;
 
 /**
  * Represents a processing message, can be an information message or a warning.
@@ -182,6 +185,19 @@ public class Message implements Serializable
         UNSUPPORTED_UID_TYPE("Unsupported uid type: %s. Supported uid types are: "
             + SpriteUidType.valuesAsString() + "."),
 
+        UNSUPPORTED_QUANTIZER("Unsupported quantizer: %s. Supported quantizers are: "
+            + SpriteQuantizer.valuesAsString() + "."),
+
+        UNSUPPORTED_PNG_FILTER("Unsupported PNG filter: %s. Supported PNG filters are: "
+            + SpritePngFilter.valuesAsString() + "."),
+
+        UNSUPPORTED_PNG_COMPRESSION(
+            "Unsupported PNG compression level: %s. Supported levels are 0 to 9."),
+
+        UNSUPPORTED_OPTIMIZE_LEVEL(
+            "Unsupported optimization level: %s. Supported levels are 0 to "
+                + PngOptimizer.MAX_LEVEL + "."),
+
         IGNORING_IE6_MODE(
             "The sprite-ie6-mode applies only to PNG sprites. Ignoring for a %s sprite."),
 
@@ -224,6 +240,40 @@ public class Message implements Serializable
 
         IMAGE_FRACTIONAL_SCALE_VALUE("The sprite-scale value applied to '%s' results in a scaled image with fractional dimensions (%fpx %fpx)."),
 
+        READING_BUILD_MANIFEST("Reading build manifest from %s"),
+
+        WRITING_BUILD_MANIFEST("Writing build manifest to %s"),
+
+        IGNORING_MALFORMED_BUILD_MANIFEST(
+            "Ignoring malformed build manifest %s, building all sprites"),
+
+        NO_DIRECTORY_FOR_BUILD_MANIFEST(
+            "Incremental build requires a root or output directory to store the build manifest in, building all sprites"),
+
+        REUSING_SPRITE_IMAGE(
+            "Reusing sprite image for sprite '%s' from %s, its inputs have not changed"),
+
+        WATCHING_FOR_CHANGES("Watching %s for changes"),
+
+        REBUILDING_AFTER_CHANGES(
+            "Detected changes in %d file(s), rebuilding %d sprite(s)"),
+
+        CANNOT_WATCH_DIRECTORY("Cannot watch directory %s: %s"),
+
+        UNCHANGED_FILES_NOT_WRITTEN(
+            "Not written %d file(s) whose content has not changed"),
+
+        READING_IMAGE_HEADER("Reading image header from %s"),
+
+        SPRITE_IMAGE_PLAN(
+            "Sprite '%s': %dx%d px, %d image(s), estimated canvas memory %s, estimated output size %s"),
+
+        SPRITE_IMAGE_PLAN_SUMMARY(
+            "Planned %d sprite(s): largest canvas %s, total canvas memory %s, estimated total output size %s"),
+
+        COMPOSING_SPRITE_IMAGE_ONE_IMAGE_AT_A_TIME(
+            "Composing sprite '%s' one image at a time, its images would take %s"),
+
         GENERIC("%s");
 
         /**
@@ -29,7 +29,7 @@ public class MessageLog
     /**
      * Logs a message to this log.
      */
-    public void log(Message.MessageLevel level, Message.MessageType type,
+    public synchronized void log(Message.MessageLevel level, Message.MessageType type,
         Object... arguments)
     {
         for (final MessageSink sink : sinks)
@@ -38,6 +38,18 @@ public class MessageLog
         }
     }
 
+    /**
+     * Logs an already created message to this log, retaining the message's CSS file and
+     * line. Useful for passing on messages collected in a different log.
+     */
+    public synchronized void log(Message message)
+    {
+        for (final MessageSink sink : sinks)
+        {
+            sink.add(message);
+        }
+    }
+
     /**
      * Logs an information message to this log.
      */
@@ -102,7 +114,7 @@ public class MessageLog
     /**
      * Adds a {@link MessageSink} to this log.
      */
-    public void addMessageSink(MessageSink sink)
+    public synchronized void addMessageSink(MessageSink sink)
     {
         this.sinks.add(sink);
     }
@@ -0,0 +1,187 @@
+package org.carrot2.labs.smartsprites.resource;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentMap;
+
+import org.carrot2.util.StringUtils;
+
+import com.google.common.collect.Maps;
+
+/**
+ * A {@link ResourceHandler} decorator that remembers resolved resource paths, canonical
+ * paths and existence of resources, so that the same paths are not resolved against the
+ * file system over and over again during one build. Canonical paths are remembered for
+ * a {@link FileSystemResourceHandler} delegate by decorating its
+ * {@link PathCanonicalizer}. Resources written through this
+ * handler are invalidated automatically, changes made by others need to be reported with
+ * {@link #invalidate(String)} or {@link #invalidateAll()}. This class is thread-safe.
+ */
+public class CachingResourceHandler implements ResourceHandler
+{
+    /** The actual resource handler */
+    private final ResourceHandler delegate;
+
+    /** Resolved resource paths by CSS file path and CSS relative path */
+    private final ConcurrentMap<String, String> resourcePaths = Maps.newConcurrentMap();
+
+    /** Canonical files by resource path */
+    private final ConcurrentMap<String, File> canonicalFiles = Maps.newConcurrentMap();
+
+    /** Existence of resources by resource path */
+    private final ConcurrentMap<String, Boolean> existingResources = Maps
+        .newConcurrentMap();
+
+    /**
+     * Creates a new {@link CachingResourceHandler}.
+     *
+     * @param delegate the resource handler to delegate to. If it is a
+     *            {@link FileSystemResourceHandler}, its path canonicalizer is replaced
+     *            with one that remembers the canonical files.
+     */
+    public CachingResourceHandler(ResourceHandler delegate)
+    {
+        this.delegate = delegate;
+        if (delegate instanceof FileSystemResourceHandler)
+        {
+            final FileSystemResourceHandler fileSystemHandler =
+                (FileSystemResourceHandler) delegate;
+            fileSystemHandler.setPathCanonicalizer(new CachingPathCanonicalizer(
+                fileSystemHandler.getPathCanonicalizer()));
+        }
+    }
+
+    /**
+     * Returns the resource handler this handler delegates to.
+     */
+    public ResourceHandler getDelegate()
+    {
+        return delegate;
+    }
+
+    /**
+     * Opens the resource with the delegate handler, unless the resource is already known
+     * not to exist, in which case {@link FileNotFoundException} is thrown right away.
+     */
+    public InputStream getResourceAsInputStream(String path) throws IOException
+    {
+        checkNotMissing(path);
+        try
+        {
+            return recordExistence(path, delegate.getResourceAsInputStream(path));
+        }
+        catch (FileNotFoundException e)
+        {
+            existingResources.put(path, Boolean.FALSE);
+            throw e;
+        }
+    }
+
+    public Reader getResourceAsReader(String path) throws IOException
+    {
+        checkNotMissing(path);
+        try
+        {
+            return recordExistence(path, delegate.getResourceAsReader(path));
+        }
+        catch (FileNotFoundException e)
+        {
+            existingResources.put(path, Boolean.FALSE);
+            throw e;
+        }
+    }
+
+    public OutputStream getResourceAsOutputStream(String path) throws IOException
+    {
+        invalidate(path);
+        return delegate.getResourceAsOutputStream(path);
+    }
+
+    public Writer getResourceAsWriter(String path) throws IOException
+    {
+        invalidate(path);
+        return delegate.getResourceAsWriter(path);
+    }
+
+    /**
+     * Returns the path resolved by the delegate handler. Paths that could not be resolved
+     * are not remembered, so that the delegate can report each of them.
+     */
+    public String getResourcePath(String cssFilePath, String cssRelativePath)
+    {
+        final String key = cssFilePath + '\u0000' + cssRelativePath;
+        String resourcePath = resourcePaths.get(key);
+        if (resourcePath == null)
+        {
+            resourcePath = delegate.getResourcePath(cssFilePath, cssRelativePath);
+            if (StringUtils.isNotBlank(resourcePath))
+            {
+                resourcePaths.put(key, resourcePath);
+            }
+        }
+        return resourcePath;
+    }
+
+    /**
+     * Forgets everything remembered about the provided resource path, e.g. after the
+     * resource has been created, changed or deleted.
+     */
+    public void invalidate(String path)
+    {
+        canonicalFiles.remove(path);
+        existingResources.remove(path);
+    }
+
+    /**
+     * Forgets everything remembered about all resources, e.g. before a new build.
+     */
+    public void invalidateAll()
+    {
+        resourcePaths.clear();
+        canonicalFiles.clear();
+        existingResources.clear();
+    }
+
+    private void checkNotMissing(String path) throws FileNotFoundException
+    {
+        if (Boolean.FALSE.equals(existingResources.get(path)))
+        {
+            throw new FileNotFoundException(path);
+        }
+    }
+
+    private <T> T recordExistence(String path, T resource)
+    {
+        existingResources.put(path, resource != null);
+        return resource;
+    }
+
+    /**
+     * Remembers the canonical files resolved by another canonicalizer.
+     */
+    private final class CachingPathCanonicalizer implements PathCanonicalizer
+    {
+        private final PathCanonicalizer delegate;
+
+        CachingPathCanonicalizer(PathCanonicalizer delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        public File getCanonicalFile(String path)
+        {
+            File canonicalFile = canonicalFiles.get(path);
+            if (canonicalFile == null)
+            {
+                canonicalFile = delegate.getCanonicalFile(path);
+                canonicalFiles.put(path, canonicalFile);
+            }
+            return canonicalFile;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.carrot2.labs.smartsprites.resource;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -12,15 +13,20 @@ import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FilenameUtils;
 import org.carrot2.labs.smartsprites.SmartSpritesParameters;
 import org.carrot2.labs.smartsprites.message.Message;
 import org.carrot2.labs.smartsprites.message.MessageLog;
 import org.carrot2.labs.smartsprites.message.Message.MessageType;
-import org.carrot2.util.FileUtils;
 import org.carrot2.util.StringUtils;
 
+import com.google.common.io.Closeables;
+
 /**
  * This class defines the resource handler which manage resources from the file system.
  * 
@@ -38,6 +44,18 @@ public class FileSystemResourceHandler implements ResourceHandler
     /** The charset to assume in the {@link #getResourceAsReader(String)} method. */
     private final String charset;
 
+    /**
+     * If <code>true</code>, output files whose content would not change are not written
+     * to, see {@link #getUnchangedFileCount()}.
+     */
+    private final boolean writeIfChanged;
+
+    /** The number of output files left intact because their content did not change */
+    private final AtomicInteger unchangedFileCount = new AtomicInteger();
+
+    /** Resolves resource paths to files */
+    private volatile PathCanonicalizer pathCanonicalizer = PathCanonicalizer.FILE_SYSTEM;
+
     /**
      * Creates a new {@link FileSystemResourceHandler}.
      * 
@@ -48,10 +66,27 @@ public class FileSystemResourceHandler implements ResourceHandler
      */
     public FileSystemResourceHandler(String documentRootDirPath, String charset,
         MessageLog messageLog)
+    {
+        this(documentRootDirPath, charset, false, messageLog);
+    }
+
+    /**
+     * Creates a new {@link FileSystemResourceHandler}.
+     * 
+     * @param documentRootDirPath the document root directory path, can be <code>null</code>
+     * @param charset the charset to assume in the {@link #getResourceAsReader(String)}
+     *            method
+     * @param writeIfChanged if <code>true</code>, the output streams and writers will
+     *            leave the existing files intact if their content would not change
+     * @param messageLog the message log
+     */
+    public FileSystemResourceHandler(String documentRootDirPath, String charset,
+        boolean writeIfChanged, MessageLog messageLog)
     {
         this.documentRootDir = documentRootDirPath;
         this.messageLog = messageLog;
         this.charset = charset;
+        this.writeIfChanged = writeIfChanged;
         if (!Charset.isSupported(charset))
         {
             messageLog.error(Message.MessageType.GENERIC, "Charset '" + charset
@@ -61,7 +96,7 @@ public class FileSystemResourceHandler implements ResourceHandler
 
     public InputStream getResourceAsInputStream(String path) throws IOException
     {
-        return new FileInputStream(FileUtils.getCanonicalOrAbsoluteFile(path));
+        return new FileInputStream(pathCanonicalizer.getCanonicalFile(path));
     }
 
     public Reader getResourceAsReader(String path) throws IOException
@@ -79,14 +114,14 @@ public class FileSystemResourceHandler implements ResourceHandler
 
     public OutputStream getResourceAsOutputStream(String path) throws IOException
     {
-        // Create directories if needed
-        final File parentFile = new File(path).getParentFile();
-        if (!parentFile.exists() && !parentFile.mkdirs())
+        createParentDirectories(path);
+
+        final File file = pathCanonicalizer.getCanonicalFile(path);
+        if (writeIfChanged)
         {
-            messageLog.warning(Message.MessageType.CANNOT_CREATE_DIRECTORIES,
-                parentFile.getPath());
+            return new WriteIfChangedOutputStream(file);
         }
-        return new FileOutputStream(FileUtils.getCanonicalOrAbsoluteFile(path));
+        return new FileOutputStream(file);
     }
 
     public Writer getResourceAsWriter(String path) throws IOException
@@ -102,6 +137,76 @@ public class FileSystemResourceHandler implements ResourceHandler
         }
     }
 
+    /**
+     * Creates a new empty file in the directory of the provided path, creating the
+     * directory if needed. The file can then be written to and moved to its final
+     * location with {@link #moveFile(File, String)}, so that the final file never has
+     * partial content.
+     */
+    public File createTemporaryFile(String path) throws IOException
+    {
+        createParentDirectories(path);
+        return File.createTempFile(".smartsprites-", ".tmp", pathCanonicalizer
+            .getCanonicalFile(path).getParentFile());
+    }
+
+    /**
+     * Replaces the file at the provided path with the provided file, atomically if the
+     * file system supports it. If this handler leaves unchanged files intact and the
+     * file at the provided path has the same content, the provided file is deleted
+     * instead.
+     */
+    public void moveFile(File file, String path) throws IOException
+    {
+        createParentDirectories(path);
+
+        final File target = pathCanonicalizer.getCanonicalFile(path);
+        if (writeIfChanged && target.isFile()
+            && com.google.common.io.Files.equal(file, target))
+        {
+            unchangedFileCount.incrementAndGet();
+            Files.delete(file.toPath());
+            return;
+        }
+
+        try
+        {
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(file.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Returns the canonicalizer this handler resolves resource paths to files with.
+     */
+    public PathCanonicalizer getPathCanonicalizer()
+    {
+        return pathCanonicalizer;
+    }
+
+    /**
+     * Sets the canonicalizer this handler resolves resource paths to files with, e.g. one
+     * that remembers the canonical paths, see {@link CachingResourceHandler}.
+     */
+    public void setPathCanonicalizer(PathCanonicalizer pathCanonicalizer)
+    {
+        this.pathCanonicalizer = pathCanonicalizer;
+    }
+
+    /**
+     * Returns the number of output files that were not written to because their content
+     * would not change. Always zero unless the handler was created with
+     * <code>writeIfChanged</code> set.
+     */
+    public int getUnchangedFileCount()
+    {
+        return unchangedFileCount.get();
+    }
+
     /**
      * This implementation detects if the resource path starts with a "/" and resolves
      * such resources against the provided
@@ -127,4 +232,102 @@ public class FileSystemResourceHandler implements ResourceHandler
             return FilenameUtils.concat(FilenameUtils.getFullPath(baseFile), filePath);
         }
     }
+
+    /**
+     * Creates the parent directories of the provided path if needed. Sprites may be
+     * written concurrently, so someone else may have created the directory after our
+     * mkdirs() attempt failed.
+     */
+    private void createParentDirectories(String path)
+    {
+        final File parentFile = new File(path).getParentFile();
+        if (!parentFile.exists() && !parentFile.mkdirs() && !parentFile.isDirectory())
+        {
+            messageLog.warning(Message.MessageType.CANNOT_CREATE_DIRECTORIES,
+                parentFile.getPath());
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the provided file exists and has exactly the provided
+     * content. The lengths are compared first, so in most cases of changed content the
+     * file does not even need to be read.
+     */
+    static boolean hasContent(File file, byte [] content, int length) throws IOException
+    {
+        if (!file.isFile() || file.length() != length)
+        {
+            return false;
+        }
+
+        final InputStream is = new FileInputStream(file);
+        try
+        {
+            final byte [] buffer = new byte [Math.min(length, 64 * 1024) + 1];
+            int offset = 0;
+            int read;
+            while ((read = is.read(buffer)) > 0)
+            {
+                if (offset + read > length)
+                {
+                    return false;
+                }
+                for (int i = 0; i < read; i++)
+                {
+                    if (buffer[i] != content[offset + i])
+                    {
+                        return false;
+                    }
+                }
+                offset += read;
+            }
+            return offset == length;
+        }
+        finally
+        {
+            Closeables.close(is, true);
+        }
+    }
+
+    /**
+     * Collects the content in memory and writes it to the file on closing, unless the
+     * file already has exactly the same content.
+     */
+    private final class WriteIfChangedOutputStream extends ByteArrayOutputStream
+    {
+        private final File file;
+
+        private boolean closed;
+
+        WriteIfChangedOutputStream(File file)
+        {
+            this.file = file;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+
+            if (hasContent(file, buf, count))
+            {
+                unchangedFileCount.incrementAndGet();
+                return;
+            }
+
+            final OutputStream os = new FileOutputStream(file);
+            try
+            {
+                os.write(buf, 0, count);
+            }
+            finally
+            {
+                os.close();
+            }
+        }
+    }
 }
@@ -0,0 +1,241 @@
+package org.carrot2.labs.smartsprites.resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.FilenameUtils;
+import org.carrot2.labs.smartsprites.SmartSpritesParameters;
+import org.carrot2.labs.smartsprites.message.Message;
+import org.carrot2.labs.smartsprites.message.Message.MessageType;
+import org.carrot2.labs.smartsprites.message.MessageLog;
+import org.carrot2.util.StringUtils;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * This class defines the resource handler which keeps resources in memory, so that
+ * sprites can be built without accessing the file system. Resource paths are
+ * normalized, so <code>css/../img/a.png</code> and <code>img/a.png</code> refer to the
+ * same resource. This class is thread-safe.
+ */
+public class InMemoryResourceHandler implements ResourceHandler
+{
+    /** The message log */
+    private final MessageLog messageLog;
+
+    /** The root directory */
+    private final String documentRootDir;
+
+    /** The charset to assume in the {@link #getResourceAsReader(String)} method. */
+    private final String charset;
+
+    /** Content of resources by their normalized paths */
+    private final ConcurrentMap<String, byte []> resources = Maps.newConcurrentMap();
+
+    /** Paths of resources written since the last {@link #clearWrittenResources()} */
+    private final Set<String> writtenResources = Collections
+        .synchronizedSet(Sets.<String> newLinkedHashSet());
+
+    /**
+     * Creates a new {@link InMemoryResourceHandler}.
+     *
+     * @param documentRootDirPath the document root directory path, can be <code>null</code>
+     * @param charset the charset to assume in the {@link #getResourceAsReader(String)}
+     *            method
+     * @param messageLog the message log
+     */
+    public InMemoryResourceHandler(String documentRootDirPath, String charset,
+        MessageLog messageLog)
+    {
+        this.documentRootDir = documentRootDirPath;
+        this.messageLog = messageLog;
+        this.charset = charset;
+        if (!Charset.isSupported(charset))
+        {
+            messageLog.error(Message.MessageType.GENERIC, "Charset '" + charset
+                + "' is not supported.");
+        }
+    }
+
+    /**
+     * Adds or replaces a resource. The content is not copied.
+     */
+    public void putResource(String path, byte [] content)
+    {
+        resources.put(normalize(path), content);
+    }
+
+    /**
+     * Adds or replaces a resource with the remaining bytes of the provided buffer. The
+     * position of the buffer is not changed.
+     */
+    public void putResource(String path, ByteBuffer content)
+    {
+        final ByteBuffer buffer = content.duplicate();
+        final byte [] bytes = new byte [buffer.remaining()];
+        buffer.get(bytes);
+        putResource(path, bytes);
+    }
+
+    /**
+     * Returns the content of a resource or <code>null</code> if there is no resource
+     * with the provided path.
+     */
+    public byte [] getResource(String path)
+    {
+        final String normalizedPath = normalize(path);
+        return normalizedPath != null ? resources.get(normalizedPath) : null;
+    }
+
+    /**
+     * Removes a resource.
+     */
+    public void removeResource(String path)
+    {
+        resources.remove(normalize(path));
+    }
+
+    /**
+     * Returns the normalized paths of resources written since the last call to
+     * {@link #clearWrittenResources()}, in the order of writing.
+     */
+    public Set<String> getWrittenResources()
+    {
+        synchronized (writtenResources)
+        {
+            return Sets.newLinkedHashSet(writtenResources);
+        }
+    }
+
+    /**
+     * Clears the record of written resources, see {@link #getWrittenResources()}.
+     */
+    public void clearWrittenResources()
+    {
+        writtenResources.clear();
+    }
+
+    /**
+     * Returns the charset assumed for readers and writers.
+     */
+    public String getCharset()
+    {
+        return charset;
+    }
+
+    public InputStream getResourceAsInputStream(String path) throws IOException
+    {
+        final byte [] content = getResource(path);
+        if (content == null)
+        {
+            throw new FileNotFoundException(path);
+        }
+        return new ByteArrayInputStream(content);
+    }
+
+    public Reader getResourceAsReader(String path) throws IOException
+    {
+        try
+        {
+            return new InputStreamReader(getResourceAsInputStream(path), charset);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // Should not happen as we're checking the charset in constructor
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The content is stored when the stream gets closed.
+     */
+    public OutputStream getResourceAsOutputStream(String path) throws IOException
+    {
+        final String normalizedPath = normalize(path);
+        return new ByteArrayOutputStream()
+        {
+            private boolean closed;
+
+            @Override
+            public void close()
+            {
+                if (!closed)
+                {
+                    closed = true;
+                    resources.put(normalizedPath, toByteArray());
+                    writtenResources.add(normalizedPath);
+                }
+            }
+        };
+    }
+
+    public Writer getResourceAsWriter(String path) throws IOException
+    {
+        try
+        {
+            return new OutputStreamWriter(getResourceAsOutputStream(path), charset);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // Should not happen as we're checking the charset in constructor
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * This implementation detects if the resource path starts with a "/" and resolves
+     * such resources against the provided
+     * {@link SmartSpritesParameters#getDocumentRootDir()} directory.
+     */
+    public String getResourcePath(String baseFile, String filePath)
+    {
+        if (filePath.startsWith("/"))
+        {
+            if (StringUtils.isNotBlank(documentRootDir))
+            {
+                return normalize(FilenameUtils.concat(documentRootDir, filePath
+                    .substring(1)));
+            }
+            else
+            {
+                messageLog.warning(MessageType.ABSOLUTE_PATH_AND_NO_DOCUMENT_ROOT,
+                    filePath);
+                return "";
+            }
+        }
+        else
+        {
+            return normalize(FilenameUtils.concat(FilenameUtils.getFullPath(baseFile),
+                filePath));
+        }
+    }
+
+    /**
+     * Returns the provided path with '/' separators and without redundant segments, the
+     * way resource paths are stored by this handler.
+     */
+    public static String normalize(String path)
+    {
+        if (path == null)
+        {
+            return null;
+        }
+        final String normalized = FilenameUtils.normalize(path, true);
+        return normalized != null ? normalized : FilenameUtils.separatorsToUnix(path);
+    }
+}
@@ -0,0 +1,28 @@
+package org.carrot2.labs.smartsprites.resource;
+
+import java.io.File;
+
+import org.carrot2.util.FileUtils;
+
+/**
+ * Resolves resource paths to canonical files on the local file system.
+ */
+public interface PathCanonicalizer
+{
+    /**
+     * Canonicalizes paths with {@link FileUtils#getCanonicalOrAbsoluteFile(String)}.
+     */
+    PathCanonicalizer FILE_SYSTEM = new PathCanonicalizer()
+    {
+        public File getCanonicalFile(String path)
+        {
+            return FileUtils.getCanonicalOrAbsoluteFile(path);
+        }
+    };
+
+    /**
+     * Returns the canonical (or absolute, if the canonical cannot be determined) file of
+     * the provided path.
+     */
+    File getCanonicalFile(String path);
+}
@@ -2,7 +2,14 @@ package org.carrot2.util;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
 import java.util.Set;
 
 import com.google.common.collect.Sets;
@@ -67,7 +74,7 @@ public class BufferedImageUtils
      */
     public static int countDistictColors(BufferedImage image)
     {
-        return getDistictColors(image).length;
+        return ImageColorStats.compute(image).distinctColors;
     }
 
     /**
@@ -89,16 +96,22 @@ public class BufferedImageUtils
         final int width = image.getWidth();
         final int height = image.getHeight();
 
+        // The order of the returned colors follows the iteration order of the hash set,
+        // which we keep, so that the same image always gets the same palette. The
+        // primitive set makes sure each color is boxed only once.
         final Set<Integer> colors = Sets.newHashSet();
+        final ImageColorStats.IntHashSet seen = new ImageColorStats.IntHashSet();
 
+        final int [] column = new int [height];
         for (int x = 0; x < width; x++)
         {
+            image.getRGB(x, 0, 1, height, column, 0, 1);
             for (int y = 0; y < height; y++)
             {
-                final int pixel = image.getRGB(x, y);
+                final int pixel = column[y];
 
                 // Count only colors for which alpha is not fully transparent
-                if ((pixel & 0xff000000) != 0x00000000)
+                if ((pixel & 0xff000000) != 0x00000000 && seen.add(pixel & 0x00ffffff))
                 {
                     colors.add(Integer.valueOf(pixel & 0x00ffffff));
                 }
@@ -124,19 +137,31 @@ public class BufferedImageUtils
         final int width = image.getWidth();
         final int height = image.getHeight();
 
+        final int [] pixels = getRgbPixels(image);
         final int [][] rgb = new int [width] [height];
 
         for (int x = 0; x < width; x++)
         {
             for (int y = 0; y < height; y++)
             {
-                rgb[x][y] = image.getRGB(x, y);
+                rgb[x][y] = pixels[y * width + x];
             }
         }
 
         return rgb;
     }
 
+    /**
+     * Returns the <code>image</code>'s RGB values, including transparency, row by row in
+     * a flat array. The value of the pixel at (x, y) is at index
+     * <code>y * image.getWidth() + x</code>.
+     */
+    public static int [] getRgbPixels(BufferedImage image)
+    {
+        final int width = image.getWidth();
+        return image.getRGB(0, 0, width, image.getHeight(), null, 0, width);
+    }
+
     /**
      * Performs matting of the <code>source</code> image using <code>matteColor</code>.
      * Matting is rendering partial transparencies using solid color as if the original
@@ -146,33 +171,102 @@ public class BufferedImageUtils
     {
         final int width = source.getWidth();
         final int height = source.getHeight();
+        final int matteRgb = matteColor.getRGB();
 
-        // A workaround for possibly different custom image types we can get:
-        // draw a copy of the image
-        final BufferedImage sourceConverted = new BufferedImage(width, height,
-            BufferedImage.TYPE_4BYTE_ABGR);
-        sourceConverted.getGraphics().drawImage(source, 0, 0, null);
-
+        // A freshly created image, so we know the layout of its data buffer
         final BufferedImage matted = new BufferedImage(width, height,
             BufferedImage.TYPE_4BYTE_ABGR);
+        final byte [] data = ((DataBufferByte) matted.getRaster().getDataBuffer())
+            .getData();
 
-        final BufferedImage matte = new BufferedImage(width, height,
-            BufferedImage.TYPE_4BYTE_ABGR);
+        final int [] row = new int [width];
+        int i = 0;
+        for (int y = 0; y < height; y++)
+        {
+            source.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++)
+            {
+                final int pixel = matte(row[x], matteRgb);
+                data[i++] = (byte) (pixel >>> 24);
+                data[i++] = (byte) pixel;
+                data[i++] = (byte) (pixel >> 8);
+                data[i++] = (byte) (pixel >> 16);
+            }
+        }
+
+        return matted;
+    }
+
+    /**
+     * Performs matting of RGB values (including transparency) in place, see
+     * {@link #matte(BufferedImage, Color)}. The value of the pixel at (x, y) is at index
+     * <code>offset + y * stride + x</code>.
+     */
+    public static void matte(int [] pixels, int offset, int width, int height,
+        int stride, Color matteColor)
+    {
         final int matteRgb = matteColor.getRGB();
-        for (int x = 0; x < width; x++)
+        for (int y = 0; y < height; y++)
         {
-            for (int y = 0; y < height; y++)
+            final int rowEnd = offset + y * stride + width;
+            for (int i = rowEnd - width; i < rowEnd; i++)
             {
-                matte.setRGB(x, y, matteRgb);
+                pixels[i] = matte(pixels[i], matteRgb);
             }
         }
+    }
+
+    /**
+     * Puts the <code>pixel</code> on top of the <code>matteRgb</code> color. The integer
+     * arithmetic follows Java2D's non-premultiplied {@link AlphaComposite#DstOver}
+     * blending, so the results are exactly the same as when compositing images.
+     */
+    private static int matte(int pixel, int matteRgb)
+    {
+        final int alpha = pixel >>> 24;
+        final int matteAlpha = mul8(0xff - alpha, matteRgb >>> 24);
+        if (matteAlpha == 0)
+        {
+            // Nothing of the matte shows through
+            return pixel;
+        }
 
-        CompositeContext context = AlphaComposite.DstOver.createContext(matte
-            .getColorModel(), sourceConverted.getColorModel(), null);
-        context.compose(matte.getRaster(), sourceConverted.getRaster(), matted
-            .getRaster());
+        final int resultAlpha = matteAlpha + alpha;
+        int red = mul8(matteAlpha, (matteRgb >> 16) & 0xff)
+            + mul8(alpha, (pixel >> 16) & 0xff);
+        int green = mul8(matteAlpha, (matteRgb >> 8) & 0xff)
+            + mul8(alpha, (pixel >> 8) & 0xff);
+        int blue = mul8(matteAlpha, matteRgb & 0xff) + mul8(alpha, pixel & 0xff);
+        if (resultAlpha != 0 && resultAlpha < 0xff)
+        {
+            red = div8(red, resultAlpha);
+            green = div8(green, resultAlpha);
+            blue = div8(blue, resultAlpha);
+        }
 
-        return matted;
+        return resultAlpha << 24 | red << 16 | green << 8 | blue;
+    }
+
+    /**
+     * Returns <code>a * b / 255</code>, rounded the way Java2D does it.
+     */
+    private static int mul8(int a, int b)
+    {
+        // The product may exceed Integer.MAX_VALUE, but not 32 bits
+        return (a * b * 0x10101 + 0x800000) >>> 24;
+    }
+
+    /**
+     * Returns <code>a * 255 / b</code>, rounded and limited to 255 the way Java2D does
+     * it.
+     */
+    private static int div8(int a, int b)
+    {
+        if (a >= b)
+        {
+            return 0xff;
+        }
+        return (int) ((0x800000L + a * ((0xff000000L + b / 2) / b)) >>> 24);
     }
 
     /**
@@ -182,12 +276,141 @@ public class BufferedImageUtils
      */
     public static void drawImage(BufferedImage image, BufferedImage canvas, int x, int y)
     {
+        if (copyRaster(image, canvas, x, y))
+        {
+            return;
+        }
+
         final int [] imgRGB = image.getRGB(0, 0, image.getWidth(), image.getHeight(),
             null, 0, image.getWidth());
         canvas.setRGB(x, y, image.getWidth(), image.getHeight(), imgRGB, 0, image
             .getWidth());
     }
 
+    /**
+     * Copies the pixels of <code>image</code> to <code>canvas</code> row by row if both
+     * images store pixels in the same way, so that the result is the same as converting
+     * the pixels to RGB and back. Returns <code>false</code> if the pixels could not be
+     * copied directly.
+     */
+    static boolean copyRaster(BufferedImage image, BufferedImage canvas, int x, int y)
+    {
+        final int type = image.getType();
+        if (type != canvas.getType() || !isDirectlyCopyable(type) || x < 0 || y < 0
+            || x + image.getWidth() > canvas.getWidth()
+            || y + image.getHeight() > canvas.getHeight())
+        {
+            return false;
+        }
+
+        final WritableRaster source = image.getRaster();
+        final WritableRaster target = canvas.getRaster();
+        final DataBuffer sourceBuffer = source.getDataBuffer();
+        final DataBuffer targetBuffer = target.getDataBuffer();
+        if (sourceBuffer.getNumBanks() != 1 || targetBuffer.getNumBanks() != 1)
+        {
+            return false;
+        }
+
+        final int sourceX = -source.getSampleModelTranslateX();
+        final int sourceY = -source.getSampleModelTranslateY();
+        final int targetX = x - target.getSampleModelTranslateX();
+        final int targetY = y - target.getSampleModelTranslateY();
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+
+        if (source.getSampleModel() instanceof PixelInterleavedSampleModel
+            && target.getSampleModel() instanceof PixelInterleavedSampleModel
+            && sourceBuffer instanceof DataBufferByte
+            && targetBuffer instanceof DataBufferByte)
+        {
+            final PixelInterleavedSampleModel sourceModel = (PixelInterleavedSampleModel) source
+                .getSampleModel();
+            final PixelInterleavedSampleModel targetModel = (PixelInterleavedSampleModel) target
+                .getSampleModel();
+            final int pixelStride = sourceModel.getPixelStride();
+            if (pixelStride != targetModel.getPixelStride()
+                || !Arrays.equals(sourceModel.getBandOffsets(), targetModel
+                    .getBandOffsets()))
+            {
+                return false;
+            }
+
+            final int firstBand = min(sourceModel.getBandOffsets());
+            copyRows(((DataBufferByte) sourceBuffer).getData(), sourceBuffer.getOffset()
+                + sourceY * sourceModel.getScanlineStride() + sourceX * pixelStride
+                + firstBand, sourceModel.getScanlineStride(),
+                ((DataBufferByte) targetBuffer).getData(), targetBuffer.getOffset()
+                    + targetY * targetModel.getScanlineStride() + targetX * pixelStride
+                    + firstBand, targetModel.getScanlineStride(), width * pixelStride,
+                height);
+            return true;
+        }
+
+        if (source.getSampleModel() instanceof SinglePixelPackedSampleModel
+            && target.getSampleModel() instanceof SinglePixelPackedSampleModel
+            && sourceBuffer instanceof DataBufferInt && targetBuffer instanceof DataBufferInt)
+        {
+            final SinglePixelPackedSampleModel sourceModel = (SinglePixelPackedSampleModel) source
+                .getSampleModel();
+            final SinglePixelPackedSampleModel targetModel = (SinglePixelPackedSampleModel) target
+                .getSampleModel();
+            if (!Arrays.equals(sourceModel.getBitMasks(), targetModel.getBitMasks()))
+            {
+                return false;
+            }
+
+            copyRows(((DataBufferInt) sourceBuffer).getData(), sourceBuffer.getOffset()
+                + sourceY * sourceModel.getScanlineStride() + sourceX,
+                sourceModel.getScanlineStride(), ((DataBufferInt) targetBuffer).getData(),
+                targetBuffer.getOffset() + targetY * targetModel.getScanlineStride()
+                    + targetX, targetModel.getScanlineStride(), width, height);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Image types for which converting pixels to RGB and back to the same type does not
+     * change them.
+     */
+    private static boolean isDirectlyCopyable(int type)
+    {
+        switch (type)
+        {
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_BGR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void copyRows(Object source, int sourceOffset, int sourceStride,
+        Object target, int targetOffset, int targetStride, int rowLength, int rows)
+    {
+        for (int row = 0; row < rows; row++)
+        {
+            System.arraycopy(source, sourceOffset, target, targetOffset, rowLength);
+            sourceOffset += sourceStride;
+            targetOffset += targetStride;
+        }
+    }
+
+    private static int min(int [] values)
+    {
+        int min = Integer.MAX_VALUE;
+        for (int value : values)
+        {
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+
     private BufferedImageUtils()
     {
     }
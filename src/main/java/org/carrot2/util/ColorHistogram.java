@@ -0,0 +1,161 @@
+package org.carrot2.util;
+
+import java.util.Arrays;
+
+/**
+ * Distinct RGB colors of an image with the numbers of pixels of each color. Colors are
+ * numbered in the order they are first added.
+ */
+final class ColorHistogram
+{
+    private static final int EMPTY = -1;
+
+    /** Numbers of colors by hash slot */
+    private int [] slots = newSlots(1024);
+
+    /** Distinct colors by number */
+    private int [] colors = new int [256];
+
+    /** Pixel counts by color number */
+    private int [] counts = new int [256];
+
+    private int size;
+
+    /**
+     * Builds the histogram of the RGB values of the pixels, see
+     * {@link Quantizer#quantize(int[], int, int, int, int, int)}.
+     */
+    ColorHistogram(int [] pixels, int offset, int width, int height, int stride)
+    {
+        for (int y = 0; y < height; y++)
+        {
+            final int rowEnd = offset + y * stride + width;
+            for (int i = rowEnd - width; i < rowEnd; i++)
+            {
+                add(pixels[i] & 0x00ffffff);
+            }
+        }
+    }
+
+    /**
+     * Adds one pixel of the provided RGB color.
+     */
+    void add(int rgb)
+    {
+        final int mask = slots.length - 1;
+        int slot = hash(rgb) & mask;
+        int number;
+        while ((number = slots[slot]) != EMPTY)
+        {
+            if (colors[number] == rgb)
+            {
+                counts[number]++;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == colors.length)
+        {
+            colors = Arrays.copyOf(colors, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+        }
+        colors[size] = rgb;
+        counts[size] = 1;
+        slots[slot] = size++;
+
+        if (size > slots.length >> 1)
+        {
+            rehash();
+        }
+    }
+
+    /**
+     * Returns the number of the provided RGB color, or -1 if there is no such color.
+     */
+    int indexOf(int rgb)
+    {
+        final int mask = slots.length - 1;
+        int slot = hash(rgb) & mask;
+        int number;
+        while ((number = slots[slot]) != EMPTY)
+        {
+            if (colors[number] == rgb)
+            {
+                return number;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of distinct colors.
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the RGB value of the color with the provided number.
+     */
+    int color(int number)
+    {
+        return colors[number];
+    }
+
+    /**
+     * Returns the number of pixels of the color with the provided number.
+     */
+    int count(int number)
+    {
+        return counts[number];
+    }
+
+    /**
+     * Replaces the pixels with the palette indices assigned to their colors.
+     *
+     * @param assignments palette indices by color number
+     */
+    void assign(int [] pixels, int offset, int width, int height, int stride,
+        int [] assignments)
+    {
+        for (int y = 0; y < height; y++)
+        {
+            final int rowEnd = offset + y * stride + width;
+            for (int i = rowEnd - width; i < rowEnd; i++)
+            {
+                pixels[i] = assignments[indexOf(pixels[i] & 0x00ffffff)];
+            }
+        }
+    }
+
+    private void rehash()
+    {
+        slots = newSlots(slots.length << 1);
+        final int mask = slots.length - 1;
+        for (int number = 0; number < size; number++)
+        {
+            int slot = hash(colors[number]) & mask;
+            while (slots[slot] != EMPTY)
+            {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = number;
+        }
+    }
+
+    private static int hash(int rgb)
+    {
+        final int h = rgb * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int [] newSlots(int length)
+    {
+        final int [] slots = new int [length];
+        Arrays.fill(slots, EMPTY);
+        return slots;
+    }
+}
@@ -2,12 +2,11 @@ package org.carrot2.util;
 
 import java.awt.Color;
 import java.awt.image.*;
-
-import amd.Quantize;
+import java.util.Arrays;
 
 /**
- * A simple utility wrapping the {@link Quantize} class to work on {@link BufferedImage}s
- * and handle transparency.
+ * A simple utility wrapping {@link Quantizer}s to work on {@link BufferedImage}s and
+ * handle transparency.
  */
 public class ColorQuantizer
 {
@@ -54,20 +53,34 @@ public class ColorQuantizer
      */
     public static BufferedImage quantize(BufferedImage source, Color matteColor,
         int maxColors)
+    {
+        return quantize(source, matteColor, maxColors, new OctreeQuantizer());
+    }
+
+    /**
+     * Quantizes the image to the provided number of colors using the provided
+     * {@link Quantizer}, with the provided matte {@link Color} for areas with partial
+     * transparency (full transparency will be preserved).
+     * 
+     * @return {@link BufferedImage} with type {@link BufferedImage#TYPE_BYTE_INDEXED} and
+     *         quantized colors
+     */
+    public static BufferedImage quantize(BufferedImage source, Color matteColor,
+        int maxColors, Quantizer quantizer)
     {
         final int width = source.getWidth();
         final int height = source.getHeight();
 
+        // Get a copy of RGB data, quantization will overwrite it with palette indices.
         // First put the matte color so that we have a sensible result
         // for images with full alpha transparencies
-        final BufferedImage mattedSource = BufferedImageUtils.matte(source, matteColor);
-
-        // Get two copies of RGB data (quantization will overwrite one)
-        final int [][] bitmap = BufferedImageUtils.getRgb(mattedSource);
+        final int [] bitmap = BufferedImageUtils.getRgbPixels(source);
+        BufferedImageUtils.matte(bitmap, 0, width, height, width, matteColor);
 
         // Quantize colors and shift palette by one for transparency color
         // We'll keep transparency color black for now.
-        final int [] colors = Quantize.quantizeImage(bitmap, maxColors);
+        final int [] colors = quantizer.quantize(bitmap, 0, width, height, width,
+            maxColors);
         final int [] colorsWithAlpha = new int [colors.length + 1];
         System.arraycopy(colors, 0, colorsWithAlpha, 1, colors.length);
         colorsWithAlpha[0] = matteColor.getRGB();
@@ -78,18 +91,18 @@ public class ColorQuantizer
         final BufferedImage quantized = new BufferedImage(width, height,
             BufferedImage.TYPE_BYTE_INDEXED, colorModel);
         final WritableRaster raster = quantized.getRaster();
-        final int [][] rgb = BufferedImageUtils.getRgb(source);
-        for (int x = 0; x < width; x++)
+        final byte [] indices = new byte [width];
+        final int [] row = new int [width];
+        for (int y = 0; y < height; y++)
         {
-            for (int y = 0; y < height; y++)
+            source.getRGB(0, y, width, 1, row, 0, width);
+            final int rowOffset = y * width;
+            for (int x = 0; x < width; x++)
             {
-                final int value = (rgb[x][y] & 0xff000000) != 0x00000000 ? bitmap[x][y] + 1
-                    : 0;
-                raster.setPixel(x, y, new int []
-                {
-                    value
-                });
+                indices[x] = (row[x] & 0xff000000) != 0x00000000 ? (byte) (bitmap[rowOffset
+                    + x] + 1) : 0;
             }
+            raster.setDataElements(0, y, width, 1, indices);
         }
 
         return quantized;
@@ -125,20 +138,24 @@ public class ColorQuantizer
         final IndexColorModel colorModel = new IndexColorModel(8, colorsWithAlpha.length,
             colorsWithAlpha, 0, false, 0, DataBuffer.TYPE_BYTE);
 
-        // Write the results to an indexed image, skipping the fully transparent bits
+        // Write palette indices straight to the indexed image, leaving the fully
+        // transparent bits at the transparent index 0
         final BufferedImage quantized = new BufferedImage(width, height,
             BufferedImage.TYPE_BYTE_INDEXED, colorModel);
-        final int [][] rgb = BufferedImageUtils.getRgb(source);
-
-        for (int x = 0; x < width; x++)
+        final ColorIndex colorIndex = new ColorIndex(colorsWithAlpha, 1);
+        final WritableRaster raster = quantized.getRaster();
+        final byte [] indices = new byte [width];
+        final int [] row = new int [width];
+        for (int y = 0; y < height; y++)
         {
-            for (int y = 0; y < height; y++)
+            source.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++)
             {
-                if ((rgb[x][y] & 0xff000000) != 0x00000000)
-                {
-                    quantized.setRGB(x, y, source.getRGB(x, y));
-                }
+                final int pixel = row[x];
+                indices[x] = (pixel & 0xff000000) != 0x00000000 ? (byte) colorIndex
+                    .get(pixel & 0x00ffffff) : 0;
             }
+            raster.setDataElements(0, y, width, 1, indices);
         }
 
         return quantized;
@@ -149,8 +166,9 @@ public class ColorQuantizer
      */
     public static ColorReductionInfo getColorReductionInfo(BufferedImage source)
     {
-        return new ColorReductionInfo(BufferedImageUtils.hasPartialTransparency(source),
-            BufferedImageUtils.countDistictColors(source));
+        final ImageColorStats colorStats = ImageColorStats.compute(source);
+        return new ColorReductionInfo(colorStats.hasPartialTransparency,
+            colorStats.distinctColors);
     }
 
     /**
@@ -180,4 +198,71 @@ public class ColorQuantizer
             return !hasPartialTransparency && distictColors <= MAX_INDEXED_COLORS;
         }
     }
+
+    /**
+     * Maps RGB colors to their indices in a palette, using open addressing.
+     */
+    static final class ColorIndex
+    {
+        private final int [] colors;
+
+        private final int [] indices;
+
+        private final int mask;
+
+        /**
+         * Indexes the <code>palette</code> colors starting at <code>from</code>. Colors
+         * must not have the alpha component.
+         */
+        ColorIndex(int [] palette, int from)
+        {
+            int length = 16;
+            while (length < (palette.length - from) * 2)
+            {
+                length <<= 1;
+            }
+            colors = new int [length];
+            indices = new int [length];
+            Arrays.fill(indices, -1);
+            mask = length - 1;
+
+            for (int i = from; i < palette.length; i++)
+            {
+                int slot = slot(palette[i]);
+                while (indices[slot] >= 0 && colors[slot] != palette[i])
+                {
+                    slot = (slot + 1) & mask;
+                }
+                if (indices[slot] < 0)
+                {
+                    colors[slot] = palette[i];
+                    indices[slot] = i;
+                }
+            }
+        }
+
+        /**
+         * Returns the palette index of the provided color or -1 if the color is not in
+         * the palette.
+         */
+        int get(int color)
+        {
+            int slot = slot(color);
+            while (indices[slot] >= 0)
+            {
+                if (colors[slot] == color)
+                {
+                    return indices[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private int slot(int color)
+        {
+            final int h = color * 0x9e3779b9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
 }
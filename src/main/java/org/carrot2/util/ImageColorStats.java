@@ -0,0 +1,246 @@
+package org.carrot2.util;
+
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Transparency and color statistics of a {@link BufferedImage}, computed in a single pass
+ * over the image's pixels.
+ */
+public final class ImageColorStats
+{
+    /**
+     * <code>true</code> if the image has any kind of transparent areas, see
+     * {@link BufferedImageUtils#hasTransparency(BufferedImage)}
+     */
+    public final boolean hasTransparency;
+
+    /**
+     * <code>true</code> if the image has partially transparent areas, see
+     * {@link BufferedImageUtils#hasPartialTransparency(BufferedImage)}
+     */
+    public final boolean hasPartialTransparency;
+
+    /**
+     * The number of distinct colors (excluding transparency) in the image. If
+     * {@link #distinctColorsExact} is <code>false</code>, the image has at least this
+     * many colors.
+     */
+    public final int distinctColors;
+
+    /** <code>false</code> if counting of distinct colors was stopped at a limit */
+    public final boolean distinctColorsExact;
+
+    private ImageColorStats(boolean hasTransparency, boolean hasPartialTransparency,
+        int distinctColors, boolean distinctColorsExact)
+    {
+        this.hasTransparency = hasTransparency;
+        this.hasPartialTransparency = hasPartialTransparency;
+        this.distinctColors = distinctColors;
+        this.distinctColorsExact = distinctColorsExact;
+    }
+
+    /**
+     * Computes the statistics of the provided image, counting all distinct colors.
+     */
+    public static ImageColorStats compute(BufferedImage image)
+    {
+        return compute(image, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Computes the statistics of the provided image. Counting of distinct colors stops
+     * once the image is known to have more than <code>colorLimit</code> colors, in which
+     * case {@link #distinctColors} is <code>colorLimit + 1</code>.
+     */
+    public static ImageColorStats compute(BufferedImage image, int colorLimit)
+    {
+        final boolean translucent = image.getTransparency() == Transparency.TRANSLUCENT
+            && image.getAlphaRaster() != null;
+        final Collector collector = new Collector(translucent, colorLimit);
+
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        if (!collectAbgrBytes(image, collector))
+        {
+            final int [] row = new int [width];
+            for (int y = 0; y < height && !collector.isComplete(); y++)
+            {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                for (int x = 0; x < width; x++)
+                {
+                    collector.add(row[x] >>> 24, row[x]);
+                }
+            }
+        }
+
+        return new ImageColorStats(collector.hasTransparency,
+            collector.hasPartialTransparency, collector.colors.size(),
+            collector.colors.size() <= colorLimit);
+    }
+
+    /**
+     * Reads the pixels of a {@link BufferedImage#TYPE_4BYTE_ABGR} image directly from its
+     * data buffer. Returns <code>false</code> if the image is of a different type or
+     * layout.
+     */
+    private static boolean collectAbgrBytes(BufferedImage image, Collector collector)
+    {
+        final WritableRaster raster = image.getRaster();
+        if (image.getType() != BufferedImage.TYPE_4BYTE_ABGR
+            || !(raster.getSampleModel() instanceof PixelInterleavedSampleModel)
+            || !(raster.getDataBuffer() instanceof DataBufferByte)
+            || raster.getDataBuffer().getNumBanks() != 1)
+        {
+            return false;
+        }
+
+        final PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) raster
+            .getSampleModel();
+        final int [] bandOffsets = sampleModel.getBandOffsets();
+        if (sampleModel.getPixelStride() != 4 || bandOffsets.length != 4
+            || bandOffsets[0] != 3 || bandOffsets[1] != 2 || bandOffsets[2] != 1
+            || bandOffsets[3] != 0)
+        {
+            return false;
+        }
+
+        final byte [] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        final int scanlineStride = sampleModel.getScanlineStride();
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        int rowOffset = raster.getDataBuffer().getOffset()
+            - raster.getSampleModelTranslateY() * scanlineStride
+            - raster.getSampleModelTranslateX() * 4;
+        for (int y = 0; y < height && !collector.isComplete(); y++)
+        {
+            final int rowEnd = rowOffset + width * 4;
+            for (int i = rowOffset; i < rowEnd; i += 4)
+            {
+                collector.add(data[i] & 0xff, (data[i + 3] & 0xff) << 16
+                    | (data[i + 2] & 0xff) << 8 | (data[i + 1] & 0xff));
+            }
+            rowOffset += scanlineStride;
+        }
+        return true;
+    }
+
+    /**
+     * Accumulates the statistics pixel by pixel.
+     */
+    private static final class Collector
+    {
+        final boolean translucent;
+        final int colorLimit;
+        final IntHashSet colors = new IntHashSet();
+
+        boolean hasTransparency;
+        boolean hasPartialTransparency;
+
+        Collector(boolean translucent, int colorLimit)
+        {
+            this.translucent = translucent;
+            this.colorLimit = colorLimit;
+        }
+
+        void add(int alpha, int rgb)
+        {
+            if (alpha != 255 && translucent)
+            {
+                hasTransparency = true;
+                if (alpha != 0)
+                {
+                    hasPartialTransparency = true;
+                }
+            }
+
+            // Count only colors for which alpha is not fully transparent
+            if (alpha != 0 && colors.size() <= colorLimit)
+            {
+                colors.add(rgb & 0x00ffffff);
+            }
+        }
+
+        /**
+         * Returns <code>true</code> if further pixels cannot change the statistics.
+         */
+        boolean isComplete()
+        {
+            return colors.size() > colorLimit
+                && (hasPartialTransparency || !translucent);
+        }
+    }
+
+    /**
+     * A minimal open addressing hash set of non-negative <code>int</code>s.
+     */
+    static final class IntHashSet
+    {
+        private static final int EMPTY = -1;
+
+        private int [] keys = newTable(64);
+
+        private int size;
+
+        boolean add(int key)
+        {
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (keys[slot] != EMPTY)
+            {
+                if (keys[slot] == key)
+                {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            keys[slot] = key;
+            if (++size > keys.length >> 1)
+            {
+                rehash();
+            }
+            return true;
+        }
+
+        int size()
+        {
+            return size;
+        }
+
+        private void rehash()
+        {
+            final int [] oldKeys = keys;
+            keys = newTable(oldKeys.length << 1);
+            final int mask = keys.length - 1;
+            for (int key : oldKeys)
+            {
+                if (key != EMPTY)
+                {
+                    int slot = hash(key) & mask;
+                    while (keys[slot] != EMPTY)
+                    {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = key;
+                }
+            }
+        }
+
+        private static int hash(int key)
+        {
+            final int h = key * 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+
+        private static int [] newTable(int length)
+        {
+            final int [] table = new int [length];
+            java.util.Arrays.fill(table, EMPTY);
+            return table;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.carrot2.util;
+
+import java.util.Arrays;
+
+/**
+ * High quality quantization, slower than the other quantizers. The palette found by
+ * {@link MedianCutQuantizer} is refined with k-means iterations: each color is assigned
+ * to the nearest palette color and the palette colors are moved to the means of their
+ * assigned colors, until the assignments do not change.
+ */
+public class KMeansQuantizer extends MedianCutQuantizer
+{
+    /** The maximum number of k-means iterations */
+    private static final int MAX_ITERATIONS = 16;
+
+    @Override
+    int [] reduce(ColorHistogram histogram, int maxColors, int [] assignments)
+    {
+        final int [] palette = super.reduce(histogram, maxColors, assignments);
+        final int colors = histogram.size();
+        final long [] sums = new long [palette.length * 4];
+
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++)
+        {
+            // Assign colors to the nearest palette colors
+            boolean changed = false;
+            for (int i = 0; i < colors; i++)
+            {
+                final int nearest = nearest(palette, histogram.color(i), assignments[i]);
+                if (nearest != assignments[i])
+                {
+                    assignments[i] = nearest;
+                    changed = true;
+                }
+            }
+            if (!changed)
+            {
+                break;
+            }
+
+            // Move palette colors to the means of their colors. Palette colors with no
+            // assigned colors stay where they are.
+            Arrays.fill(sums, 0);
+            for (int i = 0; i < colors; i++)
+            {
+                final int color = histogram.color(i);
+                final int count = histogram.count(i);
+                final int s = assignments[i] * 4;
+                sums[s] += (long) ((color >> 16) & 0xff) * count;
+                sums[s + 1] += (long) ((color >> 8) & 0xff) * count;
+                sums[s + 2] += (long) (color & 0xff) * count;
+                sums[s + 3] += count;
+            }
+            for (int p = 0; p < palette.length; p++)
+            {
+                final int s = p * 4;
+                if (sums[s + 3] > 0)
+                {
+                    palette[p] = rgb(sums[s], sums[s + 1], sums[s + 2], sums[s + 3]);
+                }
+            }
+        }
+
+        return palette;
+    }
+
+    /**
+     * Returns the index of the palette color nearest to the provided color, preferring
+     * the current one in case of ties.
+     */
+    private static int nearest(int [] palette, int color, int current)
+    {
+        final int red = (color >> 16) & 0xff;
+        final int green = (color >> 8) & 0xff;
+        final int blue = color & 0xff;
+
+        int nearest = current;
+        int nearestDistance = distance(palette[current], red, green, blue);
+        for (int p = 0; p < palette.length && nearestDistance > 0; p++)
+        {
+            final int distance = distance(palette[p], red, green, blue);
+            if (distance < nearestDistance)
+            {
+                nearest = p;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+
+    private static int distance(int color, int red, int green, int blue)
+    {
+        final int dr = ((color >> 16) & 0xff) - red;
+        final int dg = ((color >> 8) & 0xff) - green;
+        final int db = (color & 0xff) - blue;
+        return dr * dr + dg * dg + db * db;
+    }
+}
@@ -0,0 +1,197 @@
+package org.carrot2.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Median cut quantization, fast but of lower quality, suitable e.g. for draft builds.
+ * The color space is split into boxes at the median of the widest color component until
+ * there are enough boxes, each box becomes one palette color. Images with few enough
+ * colors are not changed.
+ */
+public class MedianCutQuantizer implements Quantizer
+{
+    public int [] quantize(int [] pixels, int offset, int width, int height, int stride,
+        int maxColors)
+    {
+        final ColorHistogram histogram = new ColorHistogram(pixels, offset, width,
+            height, stride);
+        final int [] assignments = new int [histogram.size()];
+        final int [] palette;
+        if (histogram.size() <= maxColors)
+        {
+            palette = new int [histogram.size()];
+            for (int i = 0; i < palette.length; i++)
+            {
+                palette[i] = 0xff000000 | histogram.color(i);
+                assignments[i] = i;
+            }
+        }
+        else
+        {
+            palette = reduce(histogram, maxColors, assignments);
+        }
+
+        histogram.assign(pixels, offset, width, height, stride, assignments);
+        return palette;
+    }
+
+    /**
+     * Reduces the colors of a histogram with more than <code>maxColors</code> colors.
+     *
+     * @param assignments filled with palette indices by color number
+     * @return the palette
+     */
+    int [] reduce(ColorHistogram histogram, int maxColors, int [] assignments)
+    {
+        final int [] order = new int [histogram.size()];
+        for (int i = 0; i < order.length; i++)
+        {
+            order[i] = i;
+        }
+
+        final List<Box> boxes = Lists.newArrayList();
+        boxes.add(new Box(histogram, order, 0, order.length));
+        while (boxes.size() < maxColors)
+        {
+            // Split the box with the widest, most populated range of colors
+            int widest = -1;
+            for (int b = 0; b < boxes.size(); b++)
+            {
+                final Box box = boxes.get(b);
+                if (box.to - box.from > 1
+                    && (widest < 0 || box.getScore() > boxes.get(widest).getScore()))
+                {
+                    widest = b;
+                }
+            }
+            if (widest < 0)
+            {
+                break;
+            }
+
+            final int median = boxes.get(widest).sortAndGetMedian(histogram, order);
+            final Box box = boxes.get(widest);
+            boxes.set(widest, new Box(histogram, order, box.from, median));
+            boxes.add(new Box(histogram, order, median, box.to));
+        }
+
+        final int [] palette = new int [boxes.size()];
+        for (int b = 0; b < palette.length; b++)
+        {
+            final Box box = boxes.get(b);
+            long red = 0, green = 0, blue = 0;
+            for (int i = box.from; i < box.to; i++)
+            {
+                final int color = histogram.color(order[i]);
+                final int count = histogram.count(order[i]);
+                red += (long) ((color >> 16) & 0xff) * count;
+                green += (long) ((color >> 8) & 0xff) * count;
+                blue += (long) (color & 0xff) * count;
+                assignments[order[i]] = b;
+            }
+            palette[b] = rgb(red, green, blue, box.population);
+        }
+        return palette;
+    }
+
+    /**
+     * Returns the opaque color with the rounded mean components.
+     */
+    static int rgb(long red, long green, long blue, long population)
+    {
+        final long half = population / 2;
+        return 0xff000000 | (int) ((red + half) / population) << 16
+            | (int) ((green + half) / population) << 8
+            | (int) ((blue + half) / population);
+    }
+
+    /**
+     * A range of colors in the color order, with the bounds of their components.
+     */
+    private static final class Box
+    {
+        final int from;
+        final int to;
+
+        long population;
+
+        /** Shift of the widest component in RGB values */
+        int shift;
+
+        /** Range of the widest component */
+        int range = -1;
+
+        Box(ColorHistogram histogram, int [] order, int from, int to)
+        {
+            this.from = from;
+            this.to = to;
+
+            final int [] min = new int []
+            {
+                255, 255, 255
+            };
+            final int [] max = new int [3];
+            for (int i = from; i < to; i++)
+            {
+                final int color = histogram.color(order[i]);
+                for (int c = 0; c < 3; c++)
+                {
+                    final int value = (color >> (c * 8)) & 0xff;
+                    min[c] = Math.min(min[c], value);
+                    max[c] = Math.max(max[c], value);
+                }
+                population += histogram.count(order[i]);
+            }
+
+            for (int c = 0; c < 3; c++)
+            {
+                if (max[c] - min[c] >= range)
+                {
+                    range = max[c] - min[c];
+                    shift = c * 8;
+                }
+            }
+        }
+
+        double getScore()
+        {
+            return (double) range * population;
+        }
+
+        /**
+         * Sorts the colors of this box by the widest component and returns the index
+         * of the median pixel's color, leaving at least one color below it.
+         */
+        int sortAndGetMedian(ColorHistogram histogram, int [] order)
+        {
+            // Keep the color numbers in low bits of the sort keys
+            final long [] keys = new long [to - from];
+            for (int i = from; i < to; i++)
+            {
+                keys[i - from] = (long) ((histogram.color(order[i]) >> shift) & 0xff) << 32
+                    | order[i];
+            }
+            Arrays.sort(keys);
+            for (int i = from; i < to; i++)
+            {
+                order[i] = (int) keys[i - from];
+            }
+
+            long count = 0;
+            int median = from + 1;
+            for (int i = from; i < to - 1; i++)
+            {
+                count += histogram.count(order[i]);
+                median = i + 1;
+                if (count * 2 >= population)
+                {
+                    break;
+                }
+            }
+            return median;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.carrot2.util;
+
+import java.util.concurrent.ForkJoinPool;
+
+import amd.Quantize;
+
+/**
+ * Octree quantization based on the {@link Quantize} class, a balance between speed and
+ * quality. Large images are quantized on multiple threads.
+ */
+public class OctreeQuantizer implements Quantizer
+{
+    /** The pool to quantize on, <code>null</code> to quantize on the calling thread */
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a quantizer that uses one thread per available processor.
+     */
+    public OctreeQuantizer()
+    {
+        this(WorkerPool.POOL);
+    }
+
+    /**
+     * @param pool the pool to quantize large images on, <code>null</code> to quantize on
+     *            the calling thread
+     */
+    public OctreeQuantizer(ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    public int [] quantize(int [] pixels, int offset, int width, int height, int stride,
+        int maxColors)
+    {
+        return Quantize.quantizeImage(pixels, offset, width, height, stride, maxColors,
+            pool);
+    }
+}
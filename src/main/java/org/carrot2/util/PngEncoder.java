@@ -0,0 +1,1113 @@
+package org.carrot2.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Writes images in the PNG format with a configurable deflate level and row filter.
+ * Images with an {@link IndexColorModel} of up to 256 colors are written in indexed
+ * color, with the smallest bit depth that fits the palette. Other images are written as
+ * 8-bit RGBA, or RGB if they have no alpha channel or are fully opaque. Rows are
+ * read directly from the image's raster where its layout allows.
+ */
+public final class PngEncoder
+{
+    /**
+     * Defines the row filters. Each row of an image is filtered before compression,
+     * which makes the data of many images more compressible.
+     */
+    public enum Filter
+    {
+        /** Rows are compressed as they are */
+        NONE(0),
+
+        /** Each byte is stored as the difference from the byte of the pixel to the left */
+        SUB(1),
+
+        /** Each byte is stored as the difference from the byte of the pixel above */
+        UP(2),
+
+        /** Each byte is stored as the difference from the mean of the left and above */
+        AVERAGE(3),
+
+        /** Each byte is stored as the difference from the Paeth predictor */
+        PAETH(4),
+
+        /**
+         * The filter is chosen for each row as the one with the lowest sum of absolute
+         * differences. Indexed color images are not filtered, as recommended by the PNG
+         * specification.
+         */
+        ADAPTIVE(-1);
+
+        /** The PNG filter type, -1 if chosen for each row */
+        final int type;
+
+        private Filter(int type)
+        {
+            this.type = type;
+        }
+    }
+
+    /**
+     * Defines the orders of the palette entries of indexed color images. Palette order
+     * does not change the pixels, but it changes the indices and therefore the size of
+     * the compressed data.
+     */
+    public enum PaletteOrder
+    {
+        /** The palette of the image as it is */
+        ORIGINAL,
+
+        /**
+         * The most frequent colors first. Unused colors are removed, which may allow a
+         * smaller bit depth.
+         */
+        FREQUENCY,
+
+        /**
+         * The darkest colors first. Unused colors are removed, which may allow a smaller
+         * bit depth.
+         */
+        LUMINANCE
+    }
+
+    /** The deflate level that balances speed and compression */
+    public static final int DEFAULT_COMPRESSION = Deflater.DEFAULT_COMPRESSION;
+
+    private static final byte [] SIGNATURE = new byte []
+    {
+        (byte) 137, 80, 78, 71, 13, 10, 26, 10
+    };
+
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_INDEXED = 3;
+    private static final int COLOR_TYPE_RGBA = 6;
+
+    /**
+     * The number of filtered bytes deflated as one block in parallel mode, rounded to
+     * whole rows. The block size does not depend on the number of threads, so neither
+     * does the output.
+     */
+    static final int BLOCK_SIZE = 128 * 1024;
+
+    /** The size of the deflate window, the longest dictionary that helps compression */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /** The largest number of compressed bytes written in one IDAT chunk */
+    static final int IDAT_CHUNK_SIZE = 64 * 1024;
+
+    private final int compressionLevel;
+    private final Filter filter;
+
+    /** The deflate strategy, see {@link Deflater#setStrategy(int)} */
+    private final int strategy;
+
+    private final PaletteOrder paletteOrder;
+
+    /** The pool to deflate blocks on, <code>null</code> to deflate as one stream */
+    private final ForkJoinPool pool;
+
+    /**
+     * @param compressionLevel the deflate level, from 0 (no compression) to 9 (best
+     *            compression), or {@link #DEFAULT_COMPRESSION}
+     * @param filter the row filter
+     */
+    public PngEncoder(int compressionLevel, Filter filter)
+    {
+        this(compressionLevel, filter, false);
+    }
+
+    /**
+     * @param compressionLevel the deflate level, from 0 (no compression) to 9 (best
+     *            compression), or {@link #DEFAULT_COMPRESSION}
+     * @param filter the row filter
+     * @param parallel if <code>true</code>, rows of large images are filtered and
+     *            deflated in blocks on multiple threads. Each block is deflated with
+     *            the end of the previous block as a preset dictionary and ends with a
+     *            sync flush, so that the blocks concatenate into one stream. The
+     *            output is usually within 1% of the size of the output deflated as one
+     *            stream.
+     */
+    public PngEncoder(int compressionLevel, Filter filter, boolean parallel)
+    {
+        this(compressionLevel, filter, parallel ? WorkerPool.POOL : null);
+    }
+
+    /**
+     * @param compressionLevel the deflate level, from 0 (no compression) to 9 (best
+     *            compression), or {@link #DEFAULT_COMPRESSION}
+     * @param filter the row filter
+     * @param pool the pool to filter and deflate rows of large images on, as described
+     *            in {@link #PngEncoder(int, Filter, boolean)}, <code>null</code> to
+     *            deflate as one stream on the calling thread
+     */
+    public PngEncoder(int compressionLevel, Filter filter, ForkJoinPool pool)
+    {
+        this(compressionLevel, filter, pool, Deflater.DEFAULT_STRATEGY,
+            PaletteOrder.ORIGINAL);
+    }
+
+    /**
+     * @param strategy the deflate strategy, see {@link Deflater#setStrategy(int)}
+     * @param paletteOrder the order of the palette entries of indexed color images
+     */
+    PngEncoder(int compressionLevel, Filter filter, ForkJoinPool pool, int strategy,
+        PaletteOrder paletteOrder)
+    {
+        if (compressionLevel != DEFAULT_COMPRESSION
+            && (compressionLevel < Deflater.NO_COMPRESSION
+                || compressionLevel > Deflater.BEST_COMPRESSION))
+        {
+            throw new IllegalArgumentException("Unsupported compression level: "
+                + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+        this.filter = filter;
+        this.pool = pool;
+        this.strategy = strategy;
+        this.paletteOrder = paletteOrder;
+    }
+
+    /**
+     * Writes the image to the provided stream. The stream is not closed.
+     */
+    public void write(BufferedImage image, OutputStream outputStream) throws IOException
+    {
+        write(image, null, outputStream);
+    }
+
+    /**
+     * Writes the image to the provided stream, reusing the palette entry counts of an
+     * indexed color image, see {@link #getPaletteCounts(BufferedImage)}. The stream is
+     * not closed.
+     *
+     * @param paletteCounts the palette entry counts, <code>null</code> to count them if
+     *            needed
+     */
+    void write(BufferedImage image, long [] paletteCounts, OutputStream outputStream)
+        throws IOException
+    {
+        final Scanlines scanlines = Scanlines.of(image, paletteOrder, paletteCounts);
+        final DataOutputStream output = new DataOutputStream(outputStream);
+        output.write(SIGNATURE);
+
+        final ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        final DataOutputStream headerOutput = new DataOutputStream(header);
+        headerOutput.writeInt(image.getWidth());
+        headerOutput.writeInt(image.getHeight());
+        headerOutput.writeByte(scanlines.bitDepth);
+        headerOutput.writeByte(scanlines.colorType);
+        headerOutput.writeByte(0); // deflate
+        headerOutput.writeByte(0); // adaptive filtering
+        headerOutput.writeByte(0); // no interlace
+        writeChunk(output, "IHDR", header.toByteArray());
+
+        if (scanlines instanceof IndexedScanlines)
+        {
+            final int [] colors = ((IndexedScanlines) scanlines).colors;
+            final int size = colors.length;
+            final byte [] palette = new byte [size * 3];
+            final byte [] alphas = new byte [size];
+            int alphasLength = 0;
+            for (int i = 0; i < size; i++)
+            {
+                palette[i * 3] = (byte) (colors[i] >> 16);
+                palette[i * 3 + 1] = (byte) (colors[i] >> 8);
+                palette[i * 3 + 2] = (byte) colors[i];
+                alphas[i] = (byte) (colors[i] >>> 24);
+                if (alphas[i] != (byte) 0xff)
+                {
+                    alphasLength = i + 1;
+                }
+            }
+            writeChunk(output, "PLTE", palette);
+            if (alphasLength > 0)
+            {
+                final byte [] transparency = new byte [alphasLength];
+                System.arraycopy(alphas, 0, transparency, 0, alphasLength);
+                writeChunk(output, "tRNS", transparency);
+            }
+        }
+
+        final int filterType = filter == Filter.ADAPTIVE && !scanlines.adaptive
+            ? Filter.NONE.type : filter.type;
+        final int rowsPerBlock = Math.max(1, BLOCK_SIZE / (scanlines.rowLength + 1));
+        final IdatOutputStream idat = new IdatOutputStream(output);
+        if (pool != null && image.getHeight() > rowsPerBlock)
+        {
+            compressBlocks(scanlines, image.getHeight(), filterType, rowsPerBlock, idat);
+        }
+        else
+        {
+            compress(scanlines, image.getHeight(), filterType, idat);
+        }
+        idat.finish();
+        writeChunk(output, "IEND", new byte [0]);
+        output.flush();
+    }
+
+    /**
+     * Returns the image in the PNG format.
+     */
+    public byte [] encode(BufferedImage image) throws IOException
+    {
+        return encode(image, null);
+    }
+
+    /**
+     * Returns the image in the PNG format, see
+     * {@link #write(BufferedImage, long[], OutputStream)}.
+     */
+    byte [] encode(BufferedImage image, long [] paletteCounts) throws IOException
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        write(image, paletteCounts, output);
+        return output.toByteArray();
+    }
+
+    /**
+     * Filters and compresses the rows of the image to the provided stream.
+     */
+    private void compress(Scanlines scanlines, int height, int filterType,
+        OutputStream output) throws IOException
+    {
+        final int rowLength = scanlines.rowLength;
+        final Deflater deflater = new Deflater(compressionLevel);
+        deflater.setStrategy(strategy);
+        try
+        {
+            final DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(output,
+                deflater, 1 << 16);
+
+            final RowFilter rowFilter = new RowFilter(scanlines, filterType);
+            for (int y = 0; y < height; y++)
+            {
+                deflaterOutput.write(rowFilter.filter(y), 0, rowLength + 1);
+            }
+
+            deflaterOutput.finish();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Filters and deflates blocks of rows on the pool, the blocks are written to the
+     * provided stream as one zlib stream. Each block is written as soon as it and all
+     * preceding blocks are deflated, and at most a few blocks per thread are in
+     * progress at a time, so the compressed image is never held in memory as a whole.
+     */
+    private void compressBlocks(final Scanlines scanlines, final int height,
+        final int filterType, final int rowsPerBlock, OutputStream output)
+        throws IOException
+    {
+        final int blocks = (height + rowsPerBlock - 1) / rowsPerBlock;
+        final int blockLength = rowsPerBlock * (scanlines.rowLength + 1);
+        final int window = pool.getParallelism() * 2;
+
+        final int header = 0x7800 | getLevelFlags() << 6;
+        output.write(header >> 8);
+        output.write((header & 0xff) + (31 - header % 31) % 31);
+
+        final List<ForkJoinTask<byte [][]>> tasks = Lists.newArrayList();
+        final Adler32 adler32 = new Adler32();
+        try
+        {
+            for (int b = 0; b < blocks; b++)
+            {
+                while (tasks.size() < blocks && tasks.size() <= b + window)
+                {
+                    final int block = tasks.size();
+                    tasks.add(pool.submit(new Callable<byte [][]>()
+                    {
+                        public byte [][] call()
+                        {
+                            // Rows of the previous block are filtered again for the
+                            // dictionary, so that blocks do not wait for each other
+                            final int yFrom = block * rowsPerBlock;
+                            final int yTo = Math.min(height, yFrom + rowsPerBlock);
+                            final byte [] previous = block > 0 ? filterRows(scanlines,
+                                filterType, Math.max(yFrom - rowsPerBlock, yFrom
+                                    - (DICTIONARY_SIZE + scanlines.rowLength)
+                                    / (scanlines.rowLength + 1)), yFrom) : null;
+                            final byte [] filtered = filterRows(scanlines, filterType,
+                                yFrom, yTo);
+                            return new byte [][]
+                            {
+                                filtered,
+                                deflateBlock(previous, filtered, block == blocks - 1,
+                                    blockLength)
+                            };
+                        }
+                    }));
+                }
+
+                final byte [][] filteredAndCompressed = tasks.get(b).join();
+                tasks.set(b, null);
+                adler32.update(filteredAndCompressed[0]);
+                output.write(filteredAndCompressed[1]);
+            }
+        }
+        finally
+        {
+            // Blocks in progress are not needed if writing failed
+            for (ForkJoinTask<byte [][]> task : tasks)
+            {
+                if (task != null)
+                {
+                    task.cancel(false);
+                }
+            }
+        }
+
+        final int checksum = (int) adler32.getValue();
+        output.write(checksum >>> 24);
+        output.write(checksum >>> 16);
+        output.write(checksum >>> 8);
+        output.write(checksum);
+    }
+
+    /**
+     * Returns the filter types and filtered bytes of the provided rows.
+     */
+    private static byte [] filterRows(Scanlines scanlines, int filterType, int yFrom,
+        int yTo)
+    {
+        final int length = scanlines.rowLength + 1;
+        final byte [] data = new byte [(yTo - yFrom) * length];
+        final RowFilter rowFilter = new RowFilter(scanlines, filterType);
+        if (yFrom > 0)
+        {
+            rowFilter.readPrior(yFrom - 1);
+        }
+        for (int y = yFrom; y < yTo; y++)
+        {
+            System.arraycopy(rowFilter.filter(y), 0, data, (y - yFrom) * length, length);
+        }
+        return data;
+    }
+
+    /**
+     * Deflates one block to raw deflate data, ending with a sync flush unless it is the
+     * last block.
+     */
+    private byte [] deflateBlock(byte [] previous, byte [] data, boolean last,
+        int blockLength)
+    {
+        final Deflater deflater = new Deflater(compressionLevel, true);
+        deflater.setStrategy(strategy);
+        try
+        {
+            if (previous != null)
+            {
+                final int length = Math.min(DICTIONARY_SIZE, previous.length);
+                deflater.setDictionary(previous, previous.length - length, length);
+            }
+            deflater.setInput(data);
+
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(
+                blockLength / 2);
+            final byte [] buffer = new byte [1 << 16];
+            if (last)
+            {
+                deflater.finish();
+                while (!deflater.finished())
+                {
+                    output.write(buffer, 0, deflater.deflate(buffer));
+                }
+            }
+            else
+            {
+                int length;
+                do
+                {
+                    length = deflater.deflate(buffer, 0, buffer.length,
+                        Deflater.SYNC_FLUSH);
+                    output.write(buffer, 0, length);
+                }
+                while (length == buffer.length);
+            }
+            return output.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the compression level flags of the zlib header, as set by zlib.
+     */
+    private int getLevelFlags()
+    {
+        if (compressionLevel == DEFAULT_COMPRESSION || compressionLevel == 6)
+        {
+            return 2;
+        }
+        else if (compressionLevel < 2)
+        {
+            return 0;
+        }
+        else if (compressionLevel < 6)
+        {
+            return 1;
+        }
+        else
+        {
+            return 3;
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the image is written in indexed color.
+     */
+    static boolean isIndexed(BufferedImage image)
+    {
+        final Raster raster = image.getRaster();
+        return image.getColorModel() instanceof IndexColorModel
+            && raster.getNumBands() == 1
+            && raster.getSampleModel().getSampleSize(0) <= 8;
+    }
+
+    /**
+     * Returns the number of pixels of each palette entry of an indexed color image. The
+     * counts do not depend on the encoder, so they can be shared by encoders writing the
+     * same image in different palette orders.
+     */
+    static long [] getPaletteCounts(BufferedImage image)
+    {
+        final Raster raster = image.getRaster();
+        final long [] counts = new long [((IndexColorModel) image.getColorModel())
+            .getMapSize()];
+        final int [] samples = new int [raster.getWidth()];
+        for (int y = 0; y < raster.getHeight(); y++)
+        {
+            raster.getSamples(raster.getMinX(), raster.getMinY() + y, samples.length, 1,
+                0, samples);
+            for (int sample : samples)
+            {
+                counts[sample]++;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Filters the row with all filters, returns the type of the filter with the lowest
+     * sum of absolute differences.
+     */
+    static int filterAdaptive(byte [] row, byte [] prior, int bytesPerPixel,
+        byte [][] filtered)
+    {
+        int best = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (int type = 0; type < filtered.length; type++)
+        {
+            filter(type, row, prior, bytesPerPixel, filtered[type]);
+            long sum = 0;
+            final byte [] bytes = filtered[type];
+            for (int i = 1; i < bytes.length; i++)
+            {
+                sum += Math.abs(bytes[i]);
+            }
+            if (sum < bestSum)
+            {
+                best = type;
+                bestSum = sum;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Filters the row with the provided PNG filter type. The first byte of the output
+     * is the filter type, followed by the filtered bytes of the row.
+     */
+    static void filter(int type, byte [] row, byte [] prior, int bytesPerPixel,
+        byte [] output)
+    {
+        output[0] = (byte) type;
+        final int length = row.length;
+        switch (type)
+        {
+            case 0:
+                System.arraycopy(row, 0, output, 1, length);
+                break;
+
+            case 1:
+                for (int i = 0; i < length; i++)
+                {
+                    final int left = i >= bytesPerPixel ? row[i - bytesPerPixel] : 0;
+                    output[i + 1] = (byte) (row[i] - left);
+                }
+                break;
+
+            case 2:
+                for (int i = 0; i < length; i++)
+                {
+                    output[i + 1] = (byte) (row[i] - prior[i]);
+                }
+                break;
+
+            case 3:
+                for (int i = 0; i < length; i++)
+                {
+                    final int left = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xff
+                        : 0;
+                    output[i + 1] = (byte) (row[i] - ((left + (prior[i] & 0xff)) >>> 1));
+                }
+                break;
+
+            case 4:
+                for (int i = 0; i < length; i++)
+                {
+                    final int left;
+                    final int upperLeft;
+                    if (i >= bytesPerPixel)
+                    {
+                        left = row[i - bytesPerPixel] & 0xff;
+                        upperLeft = prior[i - bytesPerPixel] & 0xff;
+                    }
+                    else
+                    {
+                        left = 0;
+                        upperLeft = 0;
+                    }
+                    output[i + 1] = (byte) (row[i] - paeth(left, prior[i] & 0xff,
+                        upperLeft));
+                }
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unsupported filter type: " + type);
+        }
+    }
+
+    /**
+     * Returns the one of the left, above and upper left bytes closest to their linear
+     * prediction.
+     */
+    private static int paeth(int left, int above, int upperLeft)
+    {
+        final int estimate = left + above - upperLeft;
+        final int leftDistance = Math.abs(estimate - left);
+        final int aboveDistance = Math.abs(estimate - above);
+        final int upperLeftDistance = Math.abs(estimate - upperLeft);
+        if (leftDistance <= aboveDistance && leftDistance <= upperLeftDistance)
+        {
+            return left;
+        }
+        else if (aboveDistance <= upperLeftDistance)
+        {
+            return above;
+        }
+        else
+        {
+            return upperLeft;
+        }
+    }
+
+    private static void writeChunk(DataOutputStream output, String type, byte [] data)
+        throws IOException
+    {
+        writeChunk(output, type, data, data.length);
+    }
+
+    /**
+     * Writes a chunk with the first <code>length</code> bytes of the provided data.
+     */
+    private static void writeChunk(DataOutputStream output, String type, byte [] data,
+        int length) throws IOException
+    {
+        final byte [] typeBytes = type.getBytes("US-ASCII");
+        final CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        output.writeInt(length);
+        output.write(typeBytes);
+        output.write(data, 0, length);
+        output.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Writes the compressed image data as IDAT chunks of up to {@link #IDAT_CHUNK_SIZE}
+     * bytes, as soon as each chunk is full.
+     */
+    private static final class IdatOutputStream extends OutputStream
+    {
+        private final DataOutputStream output;
+        private final byte [] chunk = new byte [IDAT_CHUNK_SIZE];
+        private int length;
+
+        IdatOutputStream(DataOutputStream output)
+        {
+            this.output = output;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            chunk[length++] = (byte) b;
+            if (length == chunk.length)
+            {
+                writeChunk(output, "IDAT", chunk, length);
+                length = 0;
+            }
+        }
+
+        @Override
+        public void write(byte [] b, int offset, int len) throws IOException
+        {
+            while (len > 0)
+            {
+                final int count = Math.min(len, chunk.length - length);
+                System.arraycopy(b, offset, chunk, length, count);
+                length += count;
+                offset += count;
+                len -= count;
+                if (length == chunk.length)
+                {
+                    writeChunk(output, "IDAT", chunk, length);
+                    length = 0;
+                }
+            }
+        }
+
+        /**
+         * Writes the last chunk. The underlying stream is not closed.
+         */
+        void finish() throws IOException
+        {
+            if (length > 0)
+            {
+                writeChunk(output, "IDAT", chunk, length);
+                length = 0;
+            }
+        }
+    }
+
+    /**
+     * Filters consecutive rows of an image.
+     */
+    private static final class RowFilter
+    {
+        private final Scanlines scanlines;
+        private final int filterType;
+        private final int [] buffer;
+        private final byte [][] filtered;
+        private byte [] row;
+        private byte [] prior;
+
+        RowFilter(Scanlines scanlines, int filterType)
+        {
+            this.scanlines = scanlines;
+            this.filterType = filterType;
+            this.buffer = new int [scanlines.width];
+            this.filtered = new byte [5][scanlines.rowLength + 1];
+            this.row = new byte [scanlines.rowLength];
+            this.prior = new byte [scanlines.rowLength];
+        }
+
+        /**
+         * Reads the row preceding the first row to filter.
+         */
+        void readPrior(int y)
+        {
+            scanlines.read(y, prior, buffer);
+        }
+
+        /**
+         * Returns the filter type followed by the filtered bytes of the row. The
+         * returned array is reused for the next rows.
+         */
+        byte [] filter(int y)
+        {
+            scanlines.read(y, row, buffer);
+            final byte [] best;
+            if (filterType >= 0)
+            {
+                best = filtered[filterType];
+                PngEncoder.filter(filterType, row, prior, scanlines.bytesPerPixel, best);
+            }
+            else
+            {
+                best = filtered[filterAdaptive(row, prior, scanlines.bytesPerPixel,
+                    filtered)];
+            }
+
+            final byte [] swap = prior;
+            prior = row;
+            row = swap;
+            return best;
+        }
+    }
+
+    /**
+     * Provides the unfiltered rows of an image in a PNG pixel format.
+     */
+    private static abstract class Scanlines
+    {
+        final int width;
+        final int colorType;
+        final int bitDepth;
+
+        /** Bytes per complete pixel, rounded up to one, as used by the filters */
+        final int bytesPerPixel;
+
+        /** Bytes per row, not including the filter type */
+        final int rowLength;
+
+        /** <code>true</code> if adaptive filtering should be applied to the rows */
+        final boolean adaptive;
+
+        Scanlines(int width, int colorType, int bitDepth, int channels, boolean adaptive)
+        {
+            this.width = width;
+            this.colorType = colorType;
+            this.bitDepth = bitDepth;
+            this.bytesPerPixel = Math.max(1, channels * bitDepth / 8);
+            this.rowLength = (int) (((long) width * channels * bitDepth + 7) / 8);
+            this.adaptive = adaptive;
+        }
+
+        /**
+         * Reads the row into the provided array of {@link #rowLength} bytes.
+         *
+         * @param buffer an array of the image's width to read the pixels to, if needed
+         */
+        abstract void read(int y, byte [] row, int [] buffer);
+
+        /**
+         * @param paletteCounts the palette entry counts of an indexed color image,
+         *            <code>null</code> to count them if needed
+         */
+        static Scanlines of(BufferedImage image, PaletteOrder paletteOrder,
+            long [] paletteCounts)
+        {
+            if (isIndexed(image))
+            {
+                return new IndexedScanlines(image, paletteOrder, paletteCounts);
+            }
+
+            final byte [] abgr = getAbgrData(image);
+            if (abgr != null)
+            {
+                return new AbgrScanlines(image, abgr);
+            }
+
+            return new RgbScanlines(image);
+        }
+
+        /**
+         * Returns the data of a {@link BufferedImage#TYPE_4BYTE_ABGR} image whose rows
+         * are stored one after another, <code>null</code> for other images.
+         */
+        private static byte [] getAbgrData(BufferedImage image)
+        {
+            final Raster raster = image.getRaster();
+            if (image.getType() != BufferedImage.TYPE_4BYTE_ABGR
+                || !(raster.getSampleModel() instanceof PixelInterleavedSampleModel)
+                || !(raster.getDataBuffer() instanceof DataBufferByte)
+                || raster.getDataBuffer().getNumBanks() != 1
+                || raster.getDataBuffer().getOffset() != 0
+                || raster.getSampleModelTranslateX() != 0
+                || raster.getSampleModelTranslateY() != 0)
+            {
+                return null;
+            }
+
+            final PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) raster
+                .getSampleModel();
+            final int [] bandOffsets = sampleModel.getBandOffsets();
+            if (sampleModel.getPixelStride() != 4
+                || sampleModel.getScanlineStride() != image.getWidth() * 4
+                || bandOffsets.length != 4 || bandOffsets[0] != 3 || bandOffsets[1] != 2
+                || bandOffsets[2] != 1 || bandOffsets[3] != 0)
+            {
+                return null;
+            }
+
+            return ((DataBufferByte) raster.getDataBuffer()).getData();
+        }
+
+        /**
+         * Returns <code>true</code> if all pixels of a {@link BufferedImage#TYPE_4BYTE_ABGR}
+         * image are opaque.
+         */
+        static boolean isOpaque(byte [] abgr)
+        {
+            for (int i = 0; i < abgr.length; i += 4)
+            {
+                if (abgr[i] != (byte) 0xff)
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Rows of palette indices, packed to the smallest bit depth that fits the palette.
+     */
+    private static final class IndexedScanlines extends Scanlines
+    {
+        private final Raster raster;
+
+        /** The ARGB colors of the palette to write */
+        final int [] colors;
+
+        /**
+         * Palette indices to write by index in the image, <code>null</code> if the
+         * palette is written as it is.
+         */
+        private final int [] indexMap;
+
+        IndexedScanlines(BufferedImage image, PaletteOrder paletteOrder,
+            long [] paletteCounts)
+        {
+            this(image, getOrder(image, paletteOrder, paletteCounts));
+        }
+
+        /**
+         * @param order indices of the image's palette entries in the order to write,
+         *            <code>null</code> to write the palette as it is
+         */
+        private IndexedScanlines(BufferedImage image, int [] order)
+        {
+            super(image.getWidth(), COLOR_TYPE_INDEXED, getBitDepth(order != null
+                ? order.length : ((IndexColorModel) image.getColorModel()).getMapSize()),
+                1, false);
+            this.raster = image.getRaster();
+
+            final IndexColorModel colorModel = (IndexColorModel) image.getColorModel();
+            if (order == null)
+            {
+                this.colors = new int [colorModel.getMapSize()];
+                colorModel.getRGBs(colors);
+                this.indexMap = null;
+            }
+            else
+            {
+                this.colors = new int [order.length];
+                this.indexMap = new int [colorModel.getMapSize()];
+                for (int i = 0; i < order.length; i++)
+                {
+                    colors[i] = colorModel.getRGB(order[i]);
+                    indexMap[order[i]] = i;
+                }
+            }
+        }
+
+        @Override
+        void read(int y, byte [] row, int [] samples)
+        {
+            raster.getSamples(raster.getMinX(), raster.getMinY() + y, samples.length,
+                1, 0, samples);
+            if (indexMap != null)
+            {
+                for (int x = 0; x < samples.length; x++)
+                {
+                    samples[x] = indexMap[samples[x]];
+                }
+            }
+
+            if (bitDepth == 8)
+            {
+                for (int x = 0; x < samples.length; x++)
+                {
+                    row[x] = (byte) samples[x];
+                }
+            }
+            else
+            {
+                final int pixelsPerByte = 8 / bitDepth;
+                for (int i = 0, x = 0; i < row.length; i++)
+                {
+                    int packed = 0;
+                    for (int p = 0; p < pixelsPerByte; p++, x++)
+                    {
+                        packed <<= bitDepth;
+                        if (x < samples.length)
+                        {
+                            packed |= samples[x];
+                        }
+                    }
+                    row[i] = (byte) packed;
+                }
+            }
+        }
+
+        /**
+         * Returns the indices of the used palette entries in the provided order, with
+         * translucent entries first so that the transparency chunk is as short as
+         * possible. Returns <code>null</code> for the original order.
+         *
+         * @param counts the palette entry counts, <code>null</code> to count them
+         */
+        private static int [] getOrder(BufferedImage image, PaletteOrder paletteOrder,
+            long [] counts)
+        {
+            if (paletteOrder == PaletteOrder.ORIGINAL)
+            {
+                return null;
+            }
+
+            final IndexColorModel colorModel = (IndexColorModel) image.getColorModel();
+            if (counts == null)
+            {
+                counts = getPaletteCounts(image);
+            }
+
+            // Sort keys: translucency, then frequency or luminance, then the index
+            final List<Long> keys = Lists.newArrayList();
+            for (int i = 0; i < counts.length; i++)
+            {
+                if (counts[i] == 0)
+                {
+                    continue;
+                }
+
+                final long key;
+                if (paletteOrder == PaletteOrder.FREQUENCY)
+                {
+                    key = Integer.MAX_VALUE - Math.min(counts[i], Integer.MAX_VALUE);
+                }
+                else
+                {
+                    key = 299 * colorModel.getRed(i) + 587 * colorModel.getGreen(i)
+                        + 114 * colorModel.getBlue(i);
+                }
+                keys.add((colorModel.getAlpha(i) == 0xff ? 1L << 62 : 0) | key << 8 | i);
+            }
+            Collections.sort(keys);
+
+            final int [] order = new int [keys.size()];
+            for (int i = 0; i < order.length; i++)
+            {
+                order[i] = (int) (keys.get(i) & 0xff);
+            }
+            return order;
+        }
+
+        private static int getBitDepth(int size)
+        {
+            if (size <= 2)
+            {
+                return 1;
+            }
+            else if (size <= 4)
+            {
+                return 2;
+            }
+            else if (size <= 16)
+            {
+                return 4;
+            }
+            else
+            {
+                return 8;
+            }
+        }
+    }
+
+    /**
+     * Rows of a {@link BufferedImage#TYPE_4BYTE_ABGR} image, read directly from its data
+     * buffer.
+     */
+    private static final class AbgrScanlines extends Scanlines
+    {
+        private final byte [] abgr;
+
+        AbgrScanlines(BufferedImage image, byte [] abgr)
+        {
+            this(image, abgr, isOpaque(abgr));
+        }
+
+        private AbgrScanlines(BufferedImage image, byte [] abgr, boolean opaque)
+        {
+            super(image.getWidth(), opaque ? COLOR_TYPE_RGB : COLOR_TYPE_RGBA, 8,
+                opaque ? 3 : 4, true);
+            this.abgr = abgr;
+        }
+
+        @Override
+        void read(int y, byte [] row, int [] buffer)
+        {
+            int i = y * width * 4;
+            if (colorType == COLOR_TYPE_RGBA)
+            {
+                for (int r = 0; r < row.length; r += 4, i += 4)
+                {
+                    row[r] = abgr[i + 3];
+                    row[r + 1] = abgr[i + 2];
+                    row[r + 2] = abgr[i + 1];
+                    row[r + 3] = abgr[i];
+                }
+            }
+            else
+            {
+                for (int r = 0; r < row.length; r += 3, i += 4)
+                {
+                    row[r] = abgr[i + 3];
+                    row[r + 1] = abgr[i + 2];
+                    row[r + 2] = abgr[i + 1];
+                }
+            }
+        }
+    }
+
+    /**
+     * Rows of any other image, read as non-premultiplied ARGB values.
+     */
+    private static final class RgbScanlines extends Scanlines
+    {
+        private final BufferedImage image;
+
+        RgbScanlines(BufferedImage image)
+        {
+            super(image.getWidth(), image.getColorModel().hasAlpha() ? COLOR_TYPE_RGBA
+                : COLOR_TYPE_RGB, 8, image.getColorModel().hasAlpha() ? 4 : 3, true);
+            this.image = image;
+        }
+
+        @Override
+        void read(int y, byte [] row, int [] pixels)
+        {
+            image.getRGB(0, y, pixels.length, 1, pixels, 0, pixels.length);
+            for (int x = 0, r = 0; x < pixels.length; x++)
+            {
+                final int pixel = pixels[x];
+                row[r++] = (byte) (pixel >> 16);
+                row[r++] = (byte) (pixel >> 8);
+                row[r++] = (byte) pixel;
+                if (colorType == COLOR_TYPE_RGBA)
+                {
+                    row[r++] = (byte) (pixel >>> 24);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package org.carrot2.util;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+
+import org.carrot2.util.PngEncoder.Filter;
+import org.carrot2.util.PngEncoder.PaletteOrder;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Writes the smallest of a number of lossless PNG encodings of an image, similarly to
+ * <a href="http://optipng.sourceforge.net/">OptiPNG</a>. The encodings, called trials,
+ * differ in row filters, palette orders, deflate strategies and levels. Trials are
+ * encoded in parallel, but the written image does not depend on the number of threads.
+ * Higher optimization levels run more trials:
+ * <ul>
+ * <li>1: no and adaptive row filters, default and filtered deflate strategies, the
+ * original and frequency palette orders,</li>
+ * <li>2: all row filters and palette orders,</li>
+ * <li>3: also the Huffman-only deflate strategy and deflate levels 6 to 9.</li>
+ * </ul>
+ */
+public final class PngOptimizer
+{
+    /** The highest optimization level */
+    public static final int MAX_LEVEL = 3;
+
+    private final int level;
+
+    /** The pool to run the trials on, <code>null</code> to run them one by one */
+    private final ForkJoinPool pool;
+
+    /**
+     * @param level the optimization level, from 1 to {@link #MAX_LEVEL}
+     */
+    public PngOptimizer(int level)
+    {
+        this(level, WorkerPool.POOL);
+    }
+
+    /**
+     * @param level the optimization level, from 1 to {@link #MAX_LEVEL}
+     * @param pool the pool to run the trials on, <code>null</code> to run them one by one
+     *            on the calling thread
+     */
+    public PngOptimizer(int level, ForkJoinPool pool)
+    {
+        if (level < 1 || level > MAX_LEVEL)
+        {
+            throw new IllegalArgumentException("Unsupported optimization level: "
+                + level);
+        }
+        this.level = level;
+        this.pool = pool;
+    }
+
+    /**
+     * Writes the smallest encoding of the image to the provided stream. The stream is
+     * not closed.
+     */
+    public void write(BufferedImage image, OutputStream outputStream) throws IOException
+    {
+        outputStream.write(encode(image));
+    }
+
+    /**
+     * Returns the smallest encoding of the image.
+     */
+    public byte [] encode(final BufferedImage image) throws IOException
+    {
+        final boolean indexed = PngEncoder.isIndexed(image);
+        final List<PngEncoder> trials = getTrials(indexed);
+
+        // Palette orders are computed from the same counts in all trials
+        final long [] paletteCounts = indexed ? PngEncoder.getPaletteCounts(image) : null;
+
+        // Only the smallest encoding so far is kept, not the output of every trial
+        final AtomicReference<Encoding> smallest = new AtomicReference<Encoding>();
+        final List<RecursiveAction> tasks = Lists.newArrayList();
+        for (int t = 0; t < trials.size(); t++)
+        {
+            final int trial = t;
+            tasks.add(new RecursiveAction()
+            {
+                @Override
+                protected void compute()
+                {
+                    try
+                    {
+                        final Encoding encoding = new Encoding(trial, trials.get(
+                            trial).encode(image, paletteCounts));
+                        Encoding current;
+                        do
+                        {
+                            current = smallest.get();
+                            if (current != null && !encoding.isSmallerThan(current))
+                            {
+                                break;
+                            }
+                        }
+                        while (!smallest.compareAndSet(current, encoding));
+                    }
+                    catch (IOException e)
+                    {
+                        // Should not happen because we're writing to memory
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+
+        if (pool != null)
+        {
+            pool.invoke(new RecursiveAction()
+            {
+                @Override
+                protected void compute()
+                {
+                    invokeAll(tasks);
+                }
+            });
+        }
+        else
+        {
+            for (RecursiveAction task : tasks)
+            {
+                task.invoke();
+            }
+        }
+
+        return smallest.get().bytes;
+    }
+
+    /**
+     * Returns the encoders of the trials of this optimization level.
+     */
+    List<PngEncoder> getTrials(boolean indexed)
+    {
+        final List<Filter> filters = Lists.newArrayList();
+        if (level == 1)
+        {
+            filters.add(Filter.NONE);
+            filters.add(Filter.ADAPTIVE);
+        }
+        else
+        {
+            filters.addAll(Lists.newArrayList(Filter.values()));
+        }
+        if (indexed)
+        {
+            // Indexed color images are not filtered adaptively, same as no filter
+            filters.remove(Filter.ADAPTIVE);
+        }
+
+        final List<PaletteOrder> paletteOrders = Lists
+            .newArrayList(PaletteOrder.ORIGINAL);
+        if (indexed)
+        {
+            paletteOrders.add(PaletteOrder.FREQUENCY);
+            if (level > 1)
+            {
+                paletteOrders.add(PaletteOrder.LUMINANCE);
+            }
+        }
+
+        final List<Integer> strategies = Lists.newArrayList(Deflater.DEFAULT_STRATEGY,
+            Deflater.FILTERED);
+        final List<Integer> compressionLevels = Lists
+            .newArrayList(Deflater.BEST_COMPRESSION);
+        if (level > 2)
+        {
+            strategies.add(Deflater.HUFFMAN_ONLY);
+            for (int compressionLevel = 8; compressionLevel >= 6; compressionLevel--)
+            {
+                compressionLevels.add(compressionLevel);
+            }
+        }
+
+        final List<PngEncoder> trials = Lists.newArrayList();
+        for (PaletteOrder paletteOrder : paletteOrders)
+        {
+            for (Filter filter : filters)
+            {
+                for (int strategy : strategies)
+                {
+                    for (int compressionLevel : compressionLevels)
+                    {
+                        // Deflate levels do not matter for Huffman-only coding
+                        if (strategy != Deflater.HUFFMAN_ONLY
+                            || compressionLevel == Deflater.BEST_COMPRESSION)
+                        {
+                            trials.add(new PngEncoder(compressionLevel, filter, null,
+                                strategy, paletteOrder));
+                        }
+                    }
+                }
+            }
+        }
+        return trials;
+    }
+
+    /**
+     * The output of one trial.
+     */
+    private static final class Encoding
+    {
+        final int trial;
+        final byte [] bytes;
+
+        Encoding(int trial, byte [] bytes)
+        {
+            this.trial = trial;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Of encodings of the same length, the one of the earliest trial is smaller, so
+         * that the result does not depend on the order of completion.
+         */
+        boolean isSmallerThan(Encoding encoding)
+        {
+            return bytes.length < encoding.bytes.length
+                || (bytes.length == encoding.bytes.length && trial < encoding.trial);
+        }
+    }
+}
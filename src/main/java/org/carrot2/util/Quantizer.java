@@ -0,0 +1,18 @@
+package org.carrot2.util;
+
+/**
+ * Reduces the colors of an image to a limited palette.
+ */
+public interface Quantizer
+{
+    /**
+     * Reduces the pixels to at most <code>maxColors</code> colors. The RGB values of the
+     * pixels are stored row by row, the pixel at (x, y) being at
+     * <code>offset + y * stride + x</code>, their alpha is ignored. The pixels are
+     * replaced in place by indices into the returned palette.
+     *
+     * @return the palette, opaque RGB values
+     */
+    int [] quantize(int [] pixels, int offset, int width, int height, int stride,
+        int maxColors);
+}
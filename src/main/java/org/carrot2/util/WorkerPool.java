@@ -0,0 +1,18 @@
+package org.carrot2.util;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Holds the default pool for processing large images on multiple threads, created on
+ * first use, with one thread per available processor. Used when no other pool is
+ * provided; SmartSprites builds provide a pool sized to their number of threads. The
+ * pool's threads are daemon threads.
+ */
+final class WorkerPool
+{
+    static final ForkJoinPool POOL = new ForkJoinPool();
+
+    private WorkerPool()
+    {
+    }
+}
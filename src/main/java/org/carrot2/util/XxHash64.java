@@ -0,0 +1,189 @@
+package org.carrot2.util;
+
+import java.security.MessageDigest;
+
+/**
+ * The 64-bit <a href="https://cyan4973.github.io/xxHash/">xxHash</a> with seed 0, a fast
+ * non-cryptographic hash. Implemented as a {@link MessageDigest} so that it can be
+ * computed with the standard digest streams. The digest is the big-endian hash value.
+ */
+public final class XxHash64 extends MessageDigest
+{
+    /** The name of this digest's algorithm */
+    public static final String ALGORITHM = "XXH64";
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    /** Bytes in one stripe processed by the four accumulators */
+    private static final int STRIPE = 32;
+
+    private long v1, v2, v3, v4;
+
+    /** Bytes of the incomplete stripe */
+    private final byte [] buffer = new byte [STRIPE];
+    private int buffered;
+
+    private long length;
+
+    public XxHash64()
+    {
+        super(ALGORITHM);
+        engineReset();
+    }
+
+    @Override
+    protected int engineGetDigestLength()
+    {
+        return 8;
+    }
+
+    @Override
+    protected void engineUpdate(byte input)
+    {
+        buffer[buffered++] = input;
+        length++;
+        if (buffered == STRIPE)
+        {
+            processStripe(buffer, 0);
+            buffered = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte [] input, int offset, int len)
+    {
+        length += len;
+        final int end = offset + len;
+
+        if (buffered > 0)
+        {
+            final int count = Math.min(STRIPE - buffered, len);
+            System.arraycopy(input, offset, buffer, buffered, count);
+            buffered += count;
+            offset += count;
+            if (buffered < STRIPE)
+            {
+                return;
+            }
+            processStripe(buffer, 0);
+            buffered = 0;
+        }
+
+        for (; offset <= end - STRIPE; offset += STRIPE)
+        {
+            processStripe(input, offset);
+        }
+
+        buffered = end - offset;
+        System.arraycopy(input, offset, buffer, 0, buffered);
+    }
+
+    @Override
+    protected byte [] engineDigest()
+    {
+        final long hash = getValue();
+        engineReset();
+
+        final byte [] digest = new byte [8];
+        for (int i = 0; i < 8; i++)
+        {
+            digest[i] = (byte) (hash >>> (56 - i * 8));
+        }
+        return digest;
+    }
+
+    @Override
+    protected void engineReset()
+    {
+        v1 = PRIME1 + PRIME2;
+        v2 = PRIME2;
+        v3 = 0;
+        v4 = -PRIME1;
+        buffered = 0;
+        length = 0;
+    }
+
+    private long getValue()
+    {
+        long hash;
+        if (length >= STRIPE)
+        {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        }
+        else
+        {
+            hash = PRIME5;
+        }
+        hash += length;
+
+        int i = 0;
+        for (; i <= buffered - 8; i += 8)
+        {
+            hash ^= round(0, getLong(buffer, i));
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+        }
+        if (i <= buffered - 4)
+        {
+            hash ^= (getInt(buffer, i) & 0xffffffffL) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+            i += 4;
+        }
+        for (; i < buffered; i++)
+        {
+            hash ^= (buffer[i] & 0xff) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private void processStripe(byte [] input, int offset)
+    {
+        v1 = round(v1, getLong(input, offset));
+        v2 = round(v2, getLong(input, offset + 8));
+        v3 = round(v3, getLong(input, offset + 16));
+        v4 = round(v4, getLong(input, offset + 24));
+    }
+
+    private static long round(long accumulator, long input)
+    {
+        return Long.rotateLeft(accumulator + input * PRIME2, 31) * PRIME1;
+    }
+
+    private static long mergeRound(long hash, long accumulator)
+    {
+        return (hash ^ round(0, accumulator)) * PRIME1 + PRIME4;
+    }
+
+    /**
+     * Reads a little-endian long.
+     */
+    private static long getLong(byte [] bytes, int offset)
+    {
+        return (getInt(bytes, offset) & 0xffffffffL)
+            | (long) getInt(bytes, offset + 4) << 32;
+    }
+
+    /**
+     * Reads a little-endian int.
+     */
+    private static int getInt(byte [] bytes, int offset)
+    {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8
+            | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,86 @@
+package org.carrot2.labs.smartsprites;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+
+import org.carrot2.labs.smartsprites.SpriteImageBuilder.BufferedImageEqualsWrapper;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link BufferedImageEqualsWrapper}.
+ */
+public class BufferedImageEqualsWrapperTest
+{
+    @Test
+    public void testEqualImages()
+    {
+        final BufferedImageEqualsWrapper a = wrap(icon(0));
+        final BufferedImageEqualsWrapper b = wrap(icon(0));
+
+        assertTrue(a.equals(b));
+        assertEquals(a.hashCode(), b.hashCode());
+        assertEquals(a.fingerprint, b.fingerprint);
+    }
+
+    @Test
+    public void testFullyTransparentPixelsIgnored()
+    {
+        final BufferedImage image = icon(0);
+        image.setRGB(0, 0, 0x00ff0000);
+        final BufferedImage other = icon(0);
+        other.setRGB(0, 0, 0x0000ff00);
+
+        assertTrue(wrap(image).equals(wrap(other)));
+        assertEquals(wrap(image).fingerprint, wrap(other).fingerprint);
+    }
+
+    @Test
+    public void testDifferentDetail()
+    {
+        // Pixels off the 4 x 4 grid the previous hash code was sampling
+        final BufferedImage image = icon(0);
+        final BufferedImage other = icon(0);
+        other.setRGB(5, 7, 0xff123456);
+        final BufferedImage partiallyTransparent = icon(0);
+        partiallyTransparent.setRGB(5, 7,
+            0x01000000 | (image.getRGB(5, 7) & 0xffffff));
+
+        assertFalse(wrap(image).equals(wrap(other)));
+        assertFalse(wrap(image).fingerprint == wrap(other).fingerprint);
+        assertFalse(wrap(image).equals(wrap(partiallyTransparent)));
+    }
+
+    @Test
+    public void testDifferentDimensions()
+    {
+        final BufferedImage image = new BufferedImage(4, 8,
+            BufferedImage.TYPE_4BYTE_ABGR);
+        final BufferedImage other = new BufferedImage(8, 4,
+            BufferedImage.TYPE_4BYTE_ABGR);
+
+        assertFalse(wrap(image).equals(wrap(other)));
+        assertFalse(wrap(image).fingerprint == wrap(other).fingerprint);
+    }
+
+    private static BufferedImage icon(int seed)
+    {
+        final BufferedImage image = new BufferedImage(16, 16,
+            BufferedImage.TYPE_4BYTE_ABGR);
+        for (int y = 0; y < image.getHeight(); y++)
+        {
+            for (int x = 0; x < image.getWidth(); x++)
+            {
+                image.setRGB(x, y, 0xff000000 | (x * 16 + seed) << 8 | y * 16);
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImageEqualsWrapper wrap(BufferedImage image)
+    {
+        return new BufferedImageEqualsWrapper(image);
+    }
+}
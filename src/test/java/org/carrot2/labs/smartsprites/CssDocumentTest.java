@@ -0,0 +1,58 @@
+package org.carrot2.labs.smartsprites;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Test cases for {@link CssDocument}.
+ */
+public class CssDocumentTest
+{
+    @Test
+    public void testSplitLinesMixedTerminators()
+    {
+        assertArrayEquals(new String []
+        {
+            "a", "b", "", "c", "d"
+        }, CssDocument.splitLines("a\nb\r\n\rc\rd"));
+    }
+
+    @Test
+    public void testSplitLinesTrailingTerminator()
+    {
+        assertArrayEquals(new String []
+        {
+            "a", ""
+        }, CssDocument.splitLines("a\n\r\n"));
+    }
+
+    @Test
+    public void testSplitLinesEmpty()
+    {
+        assertEquals(0, CssDocument.splitLines("").length);
+    }
+
+    @Test
+    public void testDirectiveIndexes()
+    {
+        final CssDocument document = new CssDocument("test.css",
+            "/** sprite: s1; sprite-image: url('s1.png') */\n" + ".a {\n"
+                + "  background-image: url('a.png'); /** sprite-ref: s1; */\n" + "}\n"
+                + ".b { background-image: url('b.png'); /** sprite-ref: s1; */ }");
+
+        assertEquals(5, document.getLineCount());
+
+        assertEquals(1, document.getSpriteImageDirectiveCount());
+        assertEquals(0, document.getSpriteImageDirectiveLine(0));
+        assertEquals("sprite: s1; sprite-image: url('s1.png')",
+            document.getSpriteImageDirective(0));
+
+        assertEquals(2, document.getSpriteReferenceDirectiveCount());
+        assertEquals(2, document.getSpriteReferenceDirectiveLine(0));
+        assertEquals("sprite-ref: s1;", document.getSpriteReferenceDirective(0));
+        assertEquals(4, document.getSpriteReferenceDirectiveLine(1));
+        assertEquals("sprite-ref: s1;", document.getSpriteReferenceDirective(1));
+    }
+}
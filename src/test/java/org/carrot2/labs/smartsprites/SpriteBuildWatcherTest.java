@@ -0,0 +1,213 @@
+package org.carrot2.labs.smartsprites;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.carrot2.labs.smartsprites.message.Message;
+import org.carrot2.labs.smartsprites.message.Message.MessageType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Test cases for {@link SpriteBuildWatcher}. The tests do not wait for file system
+ * events, they pass the changed files to the watcher directly.
+ */
+public class SpriteBuildWatcherTest extends TestWithMemoryMessageSink
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private File rootDir;
+
+    private SpriteBuildWatcher watcher;
+
+    @Before
+    public void setUpRootDir() throws IOException
+    {
+        System.setProperty("java.awt.headless", "true");
+
+        rootDir = java.nio.file.Files.createTempDirectory("smartsprites-watch").toFile();
+        FileUtils.copyDirectory(new File("test/multiple-css-files/img"), new File(
+            rootDir, "img"));
+        writeCss("a.css", "/** sprite: a; sprite-image: url('../img/a.png'); */",
+            ".logo {",
+            "  background-image: url(../img/logo.png); /** sprite-ref: a; */",
+            "}",
+            ".web {",
+            "  background-image: url(../img/web.gif); /** sprite-ref: a; */",
+            "}");
+        writeCss("b.css", "/** sprite: b; sprite-image: url('../img/b.png'); */",
+            ".pubmed {",
+            "  background-image: url(../img/pubmed.gif); /** sprite-ref: b; */",
+            "}");
+
+        watcher = new SpriteBuildWatcher(
+            new SmartSpritesParameters(rootDir.getPath()), messageLog);
+        watcher.buildSprites();
+        assertThat(spritesWritten()).containsExactly("a", "b");
+        assertThat(new File(rootDir, "css/a-sprite.css")).exists();
+        assertThat(new File(rootDir, "css/b-sprite.css")).exists();
+        messages.clear();
+    }
+
+    @After
+    public void deleteRootDir() throws IOException
+    {
+        FileUtils.deleteDirectory(rootDir);
+    }
+
+    @Test
+    public void testChangedImageRebuildsDependentSpriteOnly() throws IOException
+    {
+        final File pubmed = new File(rootDir, "img/pubmed.gif");
+        FileUtils.copyFile(new File(rootDir, "img/web.gif"), pubmed);
+
+        watcher.rebuildSprites(changed(pubmed));
+
+        assertThat(spritesWritten()).containsExactly("b");
+        assertThat(cssFilesWritten()).containsExactly(
+            new File(rootDir, "css/b-sprite.css").getPath());
+        assertThat(imagesRead()).containsExactly(pubmed.getPath());
+    }
+
+    @Test
+    public void testChangedCssRebuildsItsSpritesOnly() throws IOException
+    {
+        writeCss("a.css", "/** sprite: a; sprite-image: url('../img/a.png'); */",
+            ".logo {",
+            "  background-image: url(../img/logo.png); /** sprite-ref: a; */",
+            "}");
+
+        watcher.rebuildSprites(changed(new File(rootDir, "css/a.css")));
+
+        assertThat(spritesWritten()).containsExactly("a");
+        assertThat(cssFilesWritten()).containsExactly(
+            new File(rootDir, "css/a-sprite.css").getPath());
+
+        // The remaining image is still decoded in memory
+        assertThat(imagesRead()).isEmpty();
+    }
+
+    @Test
+    public void testImagesComposedOneAtATimeNotKeptInMemory() throws IOException
+    {
+        // About 1.4 MB when decoded, above the 1 MB sprite memory limit
+        SpriteBuilderTest.writeGradientImage(new File(rootDir, "img/large.png"), 600,
+            600);
+        final String [] lines =
+        {
+            "/** sprite: c; sprite-image: url('../img/c.png'); */", ".large {",
+            "  background-image: url(../img/large.png); /** sprite-ref: c; */", "}"
+        };
+        final File c = writeCss("c.css", lines);
+        final SmartSpritesParameters parameters = new SmartSpritesParameters(rootDir
+            .getPath());
+        parameters.setSpriteMemoryLimit(1);
+        watcher = new SpriteBuildWatcher(parameters, messageLog);
+        watcher.buildSprites();
+        messages.clear();
+
+        writeCss("c.css", lines);
+        watcher.rebuildSprites(changed(c));
+
+        assertThat(spritesWritten()).containsExactly("c");
+        assertThat(imagesRead()).containsExactly(
+            new File(rootDir, "img/large.png").getPath());
+    }
+
+    @Test
+    public void testNewCssFileIsProcessed() throws IOException
+    {
+        final File c = writeCss("c.css", ".c { color: red; }",
+            ".pubmed {",
+            "  background-image: url(../img/pubmed.gif); /** sprite-ref: b; */",
+            "}");
+
+        watcher.rebuildSprites(changed(c));
+
+        assertThat(spritesWritten()).containsExactly("b");
+        assertThat(cssFilesWritten()).containsOnly(
+            new File(rootDir, "css/b-sprite.css").getPath(),
+            new File(rootDir, "css/c-sprite.css").getPath());
+    }
+
+    @Test
+    public void testUnrelatedAndGeneratedFilesIgnored() throws IOException
+    {
+        final File unrelated = new File(rootDir, "img/unrelated.png");
+        FileUtils.copyFile(new File(rootDir, "img/logo.png"), unrelated);
+
+        watcher.rebuildSprites(changed(unrelated, new File(rootDir, "img/a.png"),
+            new File(rootDir, "css/a-sprite.css")));
+
+        assertThat(messages).isEmpty();
+    }
+
+    private File writeCss(String name, String... lines) throws IOException
+    {
+        final File file = new File(rootDir, "css/" + name);
+        final StringBuilder content = new StringBuilder();
+        for (String line : lines)
+        {
+            content.append(line).append('\n');
+        }
+        FileUtils.write(file, content, UTF_8);
+        return file;
+    }
+
+    private static List<Path> changed(File... files)
+    {
+        final List<Path> paths = Lists.newArrayList();
+        for (File file : files)
+        {
+            paths.add(file.toPath());
+        }
+        return paths;
+    }
+
+    private List<String> spritesWritten()
+    {
+        final List<String> spriteIds = Lists.newArrayList();
+        for (Message message : messages)
+        {
+            if (message.type == MessageType.WRITING_SPRITE_IMAGE)
+            {
+                spriteIds.add((String) message.arguments[2]);
+            }
+        }
+        Collections.sort(spriteIds);
+        return spriteIds;
+    }
+
+    private List<Object> cssFilesWritten()
+    {
+        return arguments(MessageType.WRITING_CSS);
+    }
+
+    private List<Object> imagesRead()
+    {
+        return arguments(MessageType.READING_IMAGE);
+    }
+
+    private List<Object> arguments(MessageType type)
+    {
+        final List<Object> arguments = Lists.newArrayList();
+        for (Message message : messages)
+        {
+            if (message.type == type)
+            {
+                arguments.add(message.arguments[0]);
+            }
+        }
+        return arguments;
+    }
+}
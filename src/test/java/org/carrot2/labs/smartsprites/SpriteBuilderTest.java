@@ -15,6 +15,7 @@ import org.carrot2.labs.smartsprites.SmartSpritesParameters.PngDepth;
 import org.carrot2.labs.smartsprites.message.Message;
 import org.carrot2.labs.smartsprites.message.Message.MessageLevel;
 import org.carrot2.labs.smartsprites.message.Message.MessageType;
+import org.carrot2.labs.smartsprites.resource.InMemoryResourceHandler;
 import org.junit.*;
 
 import com.google.common.collect.Lists;
@@ -82,6 +83,46 @@ public class SpriteBuilderTest extends TestWithMemoryMessageSink
         assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
     }
 
+    @Test
+    public void testSimpleHorizontalSpriteInMemory() throws IOException
+    {
+        final File testDir = testDir("simple-horizontal-sprite");
+        final InMemoryResourceHandler resourceHandler = new InMemoryResourceHandler(
+            null, SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING, messageLog);
+        for (String path : new String []
+        {
+            "css/style.css", "img/logo.png", "img/pubmed.gif", "img/web.gif"
+        })
+        {
+            resourceHandler.putResource("virtual/" + path, FileUtils
+                .readFileToByteArray(new File(testDir, path)));
+        }
+
+        final SmartSpritesParameters parameters = new SmartSpritesParameters("virtual",
+            null, null, null, SmartSpritesParameters.DEFAULT_LOGGING_LEVEL,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_SUFFIX,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_DEPTH,
+            SmartSpritesParameters.DEFAULT_SPRITE_PNG_IE6,
+            SmartSpritesParameters.DEFAULT_CSS_FILE_ENCODING);
+        spriteBuilder = new SpriteBuilder(parameters, messageLog, resourceHandler);
+        final SpriteBuildResult result = spriteBuilder.buildSpritesInMemory(Lists
+            .newArrayList("virtual/css/style.css"));
+
+        assertThat(new File("virtual")).doesNotExist();
+        assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
+        assertThat(result.processedCss.get("virtual/css/style.css")).isEqualTo(
+            FileUtils.readFileToString(new File(testDir, "css/style-expected.css"),
+                "UTF-8"));
+        assertThat(result.spriteImages.keySet()).containsExactly(
+            "virtual/img/sprite.png");
+        assertThat(
+            ImageIO.read(new ByteArrayInputStream(result.spriteImages
+                .get("virtual/img/sprite.png")))).hasSize(
+            new Dimension(17 + 15 + 48, 47));
+        assertThat(result.spriteReferenceReplacements.get("virtual/css/style.css"))
+            .hasSize(3);
+    }
+
     @Test
     public void testSimpleHorizontalSpriteImportant() throws FileNotFoundException,
         IOException
@@ -144,6 +185,278 @@ public class SpriteBuilderTest extends TestWithMemoryMessageSink
         assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
     }
 
+    @Test
+    public void testConcurrentSpriteBuilding() throws FileNotFoundException, IOException
+    {
+        final File testDir = testDir("large-repeat");
+        final SmartSpritesParameters parameters = new SmartSpritesParameters(testDir
+            .getPath());
+        parameters.setThreads(4);
+
+        checkSameAsSerialBuild(parameters, "img/sprite-horizontal.png",
+            "img/sprite-vertical.png");
+    }
+
+    @Test
+    public void testConcurrentImageDecoding() throws FileNotFoundException, IOException
+    {
+        final File testDir = testDir("missing-images");
+        final SmartSpritesParameters parameters = new SmartSpritesParameters(testDir
+            .getPath());
+        parameters.setImageDecodeThreads(4);
+        parameters.setInFlightDecodeMemoryLimit(1);
+
+        checkSameAsSerialBuild(parameters, "img/sprite.png");
+    }
+
+    @Test
+    public void testIncrementalBuild() throws FileNotFoundException, IOException
+    {
+        final File testDir = testDir("simple-horizontal-sprite");
+        final File manifest = new File(testDir, SpriteBuildManifest.FILE_NAME);
+        final File sprite = new File(testDir, "img/sprite.png");
+        final SmartSpritesParameters parameters = new SmartSpritesParameters(testDir
+            .getPath());
+        parameters.setIncremental(true);
+
+        try
+        {
+            buildSprites(parameters);
+            assertThat(manifest).exists();
+            assertThat(countMessages(MessageType.REUSING_SPRITE_IMAGE)).isEqualTo(0);
+            final byte [] built = FileUtils.readFileToByteArray(sprite);
+
+            // Nothing changed, the sprite should be reused
+            setUpMessageLogWithMemoryMessageSink();
+            buildSprites(parameters);
+            assertThat(processedCss()).hasSameContentAs(expectedCss());
+            assertThat(countMessages(MessageType.REUSING_SPRITE_IMAGE)).isEqualTo(1);
+            assertThat(countMessages(MessageType.WRITING_SPRITE_IMAGE)).isEqualTo(0);
+            org.junit.Assert.assertArrayEquals(built, FileUtils.readFileToByteArray(sprite));
+
+            // The sprite image is gone, it should be built again
+            org.carrot2.util.FileUtils.deleteThrowingExceptions(sprite);
+            setUpMessageLogWithMemoryMessageSink();
+            buildSprites(parameters);
+            assertThat(processedCss()).hasSameContentAs(expectedCss());
+            assertThat(countMessages(MessageType.REUSING_SPRITE_IMAGE)).isEqualTo(0);
+            org.junit.Assert.assertArrayEquals(built, FileUtils.readFileToByteArray(sprite));
+            assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
+        }
+        finally
+        {
+            org.carrot2.util.FileUtils.deleteThrowingExceptions(manifest);
+        }
+    }
+
+    @Test
+    public void testWriteIfChanged() throws FileNotFoundException, IOException
+    {
+        final File testDir = testDir("simple-horizontal-sprite");
+        final File sprite = new File(testDir, "img/sprite.png");
+        final SmartSpritesParameters parameters = new SmartSpritesParameters(testDir
+            .getPath());
+        parameters.setWriteIfChanged(true);
+
+        buildSprites(parameters);
+        assertThat(unchangedFilesNotWritten()).isEqualTo(0);
+        final byte [] built = FileUtils.readFileToByteArray(sprite);
+
+        // Nothing changed, neither the sprite nor the CSS should be touched
+        assertThat(sprite.setLastModified(10000)).isTrue();
+        assertThat(processedCss().setLastModified(10000)).isTrue();
+        setUpMessageLogWithMemoryMessageSink();
+        buildSprites(parameters);
+        assertThat(processedCss()).hasSameContentAs(expectedCss());
+        assertThat(unchangedFilesNotWritten()).isEqualTo(2);
+        assertThat(sprite.lastModified()).isEqualTo(10000L);
+        assertThat(processedCss().lastModified()).isEqualTo(10000L);
+        org.junit.Assert.assertArrayEquals(built, FileUtils.readFileToByteArray(sprite));
+
+        // Changed content must be written
+        FileUtils.writeStringToFile(processedCss(), "changed", "UTF-8");
+        setUpMessageLogWithMemoryMessageSink();
+        buildSprites(parameters);
+        assertThat(processedCss()).hasSameContentAs(expectedCss());
+        assertThat(unchangedFilesNotWritten()).isEqualTo(1);
+    }
+
+    @Test
+    public void testOptimizeLevel() throws FileNotFoundException, IOException
+    {
+        final File testDir = testDir("simple-horizontal-sprite");
+        final File sprite = new File(testDir, "img/sprite.png");
+        final SmartSpritesParameters parameters = new SmartSpritesParameters(testDir
+            .getPath());
+        buildSprites(parameters);
+        final long builtLength = sprite.length();
+        final int [] builtPixels = org.carrot2.util.BufferedImageUtils
+            .getRgbPixels(ImageIO.read(sprite));
+
+        // Optimized sprites are no larger and have exactly the same pixels
+        setUpMessageLogWithMemoryMessageSink();
+        parameters.setOptimizeLevel(2);
+        buildSprites(parameters);
+        assertThat(processedCss()).hasSameContentAs(expectedCss());
+        assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
+        assertThat(sprite.length()).isLessThanOrEqualTo(builtLength);
+        org.junit.Assert.assertArrayEquals(builtPixels, org.carrot2.util.BufferedImageUtils
+            .getRgbPixels(ImageIO.read(sprite)));
+    }
+
+    @Test
+    public void testPlanMatchesBuiltSprites() throws FileNotFoundException, IOException
+    {
+        checkPlanMatchesBuiltSprite("simple-horizontal-sprite", "test",
+            "img/sprite.png");
+        checkPlanMatchesBuiltSprite("layout-properties-from-sprite-image-directive",
+            "test", "img/sprite.png");
+        checkPlanMatchesBuiltSprite("large-repeat", "vertical",
+            "img/sprite-vertical.png");
+        checkPlanMatchesBuiltSprite("large-repeat", "horizontal",
+            "img/sprite-horizontal.png");
+    }
+
+    @Test
+    public void testPlanIsUpperBoundForIdenticalImageFiles() throws IOException
+    {
+        // Repeated references to the same file are planned once, but the plan
+        // does not know that web-margin.png has the same content as web.png rendered
+        // with margins.
+        final File testDir = testDir("repeated-image-references");
+        final SmartSpritesParameters parameters = new SmartSpritesParameters(testDir
+            .getPath());
+        parameters.setPlan(true);
+        buildSprites(parameters);
+        assertThat(getPlanMessage("test").arguments[1]).isEqualTo(17 + 19 + 19);
+        assertThat(getPlanMessage("test").arguments[3]).isEqualTo(3);
+    }
+
+    @Test
+    public void testComposingOneImageAtATime() throws IOException
+    {
+        final File testDir = java.nio.file.Files.createTempDirectory(
+            "smartsprites-compose").toFile();
+        try
+        {
+            // Two images taking about 1.4 MB each when decoded
+            writeGradientImage(new File(testDir, "img/a.png"), 600, 600);
+            writeGradientImage(new File(testDir, "img/b.png"), 400, 900);
+            FileUtils.write(new File(testDir, "css/style.css"),
+                "/** sprite: test; sprite-image: url('../img/sprite.png'); */\n"
+                    + ".a {\n  background-image: url(../img/a.png); /** sprite-ref: test; */\n}\n"
+                    + ".b {\n  background-image: url(../img/b.png); /** sprite-ref: test; */\n}\n"
+                    + ".a-again {\n  background-image: url(../img/a.png); /** sprite-ref: test; */\n}\n",
+                "UTF-8");
+            final File sprite = new File(testDir, "img/sprite.png");
+            final File processedCss = new File(testDir, "css/style-sprite.css");
+
+            final SmartSpritesParameters parameters = new SmartSpritesParameters(testDir
+                .getPath());
+            buildSprites(parameters);
+            final byte [] builtSprite = FileUtils.readFileToByteArray(sprite);
+            final String builtCss = FileUtils.readFileToString(processedCss, "UTF-8");
+            assertThat(countMessages(MessageType.COMPOSING_SPRITE_IMAGE_ONE_IMAGE_AT_A_TIME))
+                .isEqualTo(0);
+
+            // Below the limit, images are decoded up front as usual
+            setUpMessageLogWithMemoryMessageSink();
+            parameters.setSpriteMemoryLimit(4);
+            buildSprites(parameters);
+            assertThat(countMessages(MessageType.COMPOSING_SPRITE_IMAGE_ONE_IMAGE_AT_A_TIME))
+                .isEqualTo(0);
+
+            // Above the limit, the sprite must be the same
+            setUpMessageLogWithMemoryMessageSink();
+            parameters.setSpriteMemoryLimit(2);
+            buildSprites(parameters);
+            assertThat(countMessages(MessageType.COMPOSING_SPRITE_IMAGE_ONE_IMAGE_AT_A_TIME))
+                .isEqualTo(1);
+            assertThat(countMessages(MessageType.READING_IMAGE)).isEqualTo(2);
+            assertThat(messages).doesNotHaveMessagesOfLevel(MessageLevel.WARN);
+            org.junit.Assert.assertArrayEquals(builtSprite, FileUtils
+                .readFileToByteArray(sprite));
+            assertThat(FileUtils.readFileToString(processedCss, "UTF-8")).isEqualTo(
+                builtCss);
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(testDir);
+        }
+    }
+
+    @Test
+    public void testComposedSpriteWithUndecodableImageNotReused() throws IOException
+    {
+        final File testDir = java.nio.file.Files.createTempDirectory(
+            "smartsprites-compose").toFile();
+        try
+        {
+            // The header of b.png can be read, but its content is cut off
+            writeGradientImage(new File(testDir, "img/a.png"), 600, 600);
+            final File truncated = new File(testDir, "img/b.png");
+            writeGradientImage(truncated, 400, 900);
+            final byte [] content = FileUtils.readFileToByteArray(truncated);
+            FileUtils.writeByteArrayToFile(truncated, java.util.Arrays.copyOf(content,
+                content.length / 2));
+            FileUtils.write(new File(testDir, "css/style.css"),
+                "/** sprite: test; sprite-image: url('../img/sprite.png'); */\n"
+                    + ".a {\n  background-image: url(../img/a.png); /** sprite-ref: test; */\n}\n"
+                    + ".b {\n  background-image: url(../img/b.png); /** sprite-ref: test; */\n}\n",
+                "UTF-8");
+
+            final SmartSpritesParameters parameters = new SmartSpritesParameters(testDir
+                .getPath());
+            parameters.setIncremental(true);
+            parameters.setSpriteMemoryLimit(2);
+            buildSprites(parameters);
+            assertThat(countMessages(MessageType.COMPOSING_SPRITE_IMAGE_ONE_IMAGE_AT_A_TIME))
+                .isEqualTo(1);
+            assertThat(countMessages(MessageType.CANNOT_NOT_LOAD_IMAGE)).isEqualTo(1);
+
+            // The incomplete sprite must be built again
+            setUpMessageLogWithMemoryMessageSink();
+            buildSprites(parameters);
+            assertThat(countMessages(MessageType.REUSING_SPRITE_IMAGE)).isEqualTo(0);
+            assertThat(countMessages(MessageType.CANNOT_NOT_LOAD_IMAGE)).isEqualTo(1);
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(testDir);
+        }
+    }
+
+    @Test
+    public void testImageAddedBetweenBuilds() throws IOException
+    {
+        final File testDir = java.nio.file.Files.createTempDirectory(
+            "smartsprites-rebuild").toFile();
+        try
+        {
+            writeGradientImage(new File(testDir, "img/a.png"), 10, 10);
+            FileUtils.write(new File(testDir, "css/style.css"),
+                "/** sprite: test; sprite-image: url('../img/sprite.png'); */\n"
+                    + ".a {\n  background-image: url(../img/a.png); /** sprite-ref: test; */\n}\n"
+                    + ".b {\n  background-image: url(../img/b.png); /** sprite-ref: test; */\n}\n",
+                "UTF-8");
+            final File sprite = new File(testDir, "img/sprite.png");
+
+            // The same builder must see the image added after the first build
+            final SpriteBuilder builder = new SpriteBuilder(new SmartSpritesParameters(
+                testDir.getPath()), messageLog);
+            builder.buildSprites();
+            assertThat(ImageIO.read(sprite).getHeight()).isEqualTo(10);
+
+            writeGradientImage(new File(testDir, "img/b.png"), 10, 20);
+            builder.buildSprites();
+            assertThat(ImageIO.read(sprite).getHeight()).isEqualTo(30);
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(testDir);
+        }
+    }
+
     @Test
     public void testMissingImages() throws FileNotFoundException, IOException
     {
@@ -864,6 +1177,118 @@ public class SpriteBuilderTest extends TestWithMemoryMessageSink
           }));
     }
 
+    /**
+     * Builds sprites serially and then with the provided parameters, checks that the
+     * CSS, sprite images and messages are the same in both cases.
+     */
+    private void checkSameAsSerialBuild(SmartSpritesParameters parameters,
+        String... spritePaths) throws IOException
+    {
+        final File testDir = new File(parameters.getRootDir());
+        buildSprites(testDir);
+        final List<byte []> serialSprites = Lists.newArrayList();
+        for (String spritePath : spritePaths)
+        {
+            serialSprites.add(FileUtils.readFileToByteArray(new File(testDir, spritePath)));
+        }
+        final List<Message> serialMessages = Lists.newArrayList(messages);
+        cleanUp();
+        setUpMessageLogWithMemoryMessageSink();
+
+        buildSprites(parameters);
+
+        assertThat(processedCss()).hasSameContentAs(expectedCss());
+        for (int i = 0; i < spritePaths.length; i++)
+        {
+            org.junit.Assert.assertArrayEquals(serialSprites.get(i), FileUtils
+                .readFileToByteArray(new File(testDir, spritePaths[i])));
+        }
+
+        // All messages, except for the final status, must be the same and in order
+        assertThat(messages.subList(0, messages.size() - 1)).isEquivalentTo(
+            serialMessages.subList(0, serialMessages.size() - 1));
+    }
+
+    private void checkPlanMatchesBuiltSprite(String dir, String spriteId,
+        String spritePath) throws IOException
+    {
+        final File testDir = testDir(dir);
+        final SmartSpritesParameters parameters = new SmartSpritesParameters(testDir
+            .getPath());
+        parameters.setPlan(true);
+
+        setUpMessageLogWithMemoryMessageSink();
+        buildSprites(parameters);
+        assertThat(new File(testDir, spritePath)).doesNotExist();
+        assertThat(processedCss()).doesNotExist();
+        assertThat(countMessages(MessageType.READING_IMAGE)).isEqualTo(0);
+        assertThat(countMessages(MessageType.SPRITE_IMAGE_PLAN_SUMMARY)).isEqualTo(1);
+
+        final Message plan = getPlanMessage(spriteId);
+
+        setUpMessageLogWithMemoryMessageSink();
+        buildSprites(testDir);
+        final BufferedImage sprite = sprite(testDir, spritePath);
+        assertThat(plan.arguments[1]).isEqualTo(sprite.getWidth());
+        assertThat(plan.arguments[2]).isEqualTo(sprite.getHeight());
+        cleanUp();
+    }
+
+    private Message getPlanMessage(String spriteId)
+    {
+        for (Message message : messages)
+        {
+            if (message.type == MessageType.SPRITE_IMAGE_PLAN
+                && spriteId.equals(message.arguments[0]))
+            {
+                return message;
+            }
+        }
+        throw new AssertionError("No plan for sprite " + spriteId);
+    }
+
+    private Object unchangedFilesNotWritten()
+    {
+        for (Message message : messages)
+        {
+            if (message.type == MessageType.UNCHANGED_FILES_NOT_WRITTEN)
+            {
+                return message.arguments[0];
+            }
+        }
+        return null;
+    }
+
+    static void writeGradientImage(File file, int width, int height)
+        throws IOException
+    {
+        final BufferedImage image = new BufferedImage(width, height,
+            BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                image.setRGB(x, y, ((x + y) & 0xff) << 24 | (x & 0xff) << 16
+                    | (y & 0xff) << 8 | (width & 0xff));
+            }
+        }
+        file.getParentFile().mkdirs();
+        ImageIO.write(image, "png", file);
+    }
+
+    private int countMessages(MessageType type)
+    {
+        int count = 0;
+        for (Message message : messages)
+        {
+            if (message.type == type)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
     private File testDir(String test)
     {
         return new File("test/" + test);
@@ -7,6 +7,8 @@ import static org.junit.Assert.assertNull;
 
 import java.awt.Color;
 
+import org.carrot2.labs.smartsprites.SmartSpritesParameters.SpritePngFilter;
+import org.carrot2.labs.smartsprites.SmartSpritesParameters.SpriteQuantizer;
 import org.carrot2.labs.smartsprites.SpriteImageDirective.Ie6Mode;
 import org.carrot2.labs.smartsprites.SpriteImageDirective.SpriteUidType;
 import org.carrot2.labs.smartsprites.SpriteLayoutProperties.SpriteAlignment;
@@ -70,6 +72,45 @@ public class SpriteImageDirectiveTest extends TestWithMemoryMessageSink
         checkImagePathVariableCorrect("../${sprite}-${md5}.png?${date}");
     }
 
+    @Test
+    public void variablesContentHashesCorrectSyntax()
+    {
+        checkImagePathVariableCorrect("../${sprite}-${hash:8}.png?${xxhash}${md5:12}");
+    }
+
+    @Test
+    public void variablesTruncatedDate()
+    {
+        checkImagePathUnsupportedVariable("date:8");
+    }
+
+    @Test
+    public void variablesZeroLengthHash()
+    {
+        checkImagePathUnsupportedVariable("hash:0");
+    }
+
+    @Test
+    public void testContentHashResolved()
+    {
+        assertEquals("img/0123456789abcdef/0123-0123456789abcdef.png?${date}",
+            SpriteUidType.XXHASH.resolve(
+                "img/${xxhash}/${xxhash:4}-${xxhash:20}.png?${date}", "0123456789abcdef"));
+        assertEquals("img/${xxhash}-01.png", SpriteUidType.HASH.resolve(
+            "img/${xxhash}-${hash:2}.png", "0123456789abcdef"));
+    }
+
+    @Test
+    public void testContentHashFormatted()
+    {
+        final byte [] digest = new byte [8];
+        digest[7] = 0x2a;
+        assertEquals("000000000000002a", SpriteUidType.XXHASH.toHex(digest));
+
+        // MD5 UIDs have always been formatted without leading zeros
+        assertEquals("2a", SpriteUidType.MD5.toHex(digest));
+    }
+
     @Test
     public void variablesUnbalancedBrackets()
     {
@@ -138,6 +179,94 @@ public class SpriteImageDirectiveTest extends TestWithMemoryMessageSink
         assertThat(messages).isEmpty();
     }
 
+    @Test
+    public void testQuantizer()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: sprite; sprite-image: url('../sprite.png'); sprite-quantizer: kmeans",
+            messageLog);
+
+        assertNotNull(directive);
+        assertEquals(SpriteQuantizer.KMEANS, directive.quantizer);
+        assertThat(messages).isEmpty();
+    }
+
+    @Test
+    public void testNoQuantizer()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: sprite; sprite-image: url('../sprite.png')", messageLog);
+
+        assertNotNull(directive);
+        assertNull(directive.quantizer);
+    }
+
+    @Test
+    public void testUnsupportedQuantizer()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: sprite; sprite-image: url('../sprite.png'); sprite-quantizer: other",
+            messageLog);
+
+        assertNotNull(directive);
+        assertNull(directive.quantizer);
+        assertThat(messages).isEquivalentTo(
+            new Message(Message.MessageLevel.WARN,
+                Message.MessageType.UNSUPPORTED_QUANTIZER, null, 0, "other"));
+    }
+
+    @Test
+    public void testPngCompressionAndFilter()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: sprite; sprite-image: url('../sprite.png'); "
+                + "sprite-png-compression: 9; sprite-png-filter: paeth", messageLog);
+
+        assertNotNull(directive);
+        assertEquals(Integer.valueOf(9), directive.pngCompression);
+        assertEquals(SpritePngFilter.PAETH, directive.pngFilter);
+        assertThat(messages).isEmpty();
+    }
+
+    @Test
+    public void testNoPngCompressionAndFilter()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: sprite; sprite-image: url('../sprite.png')", messageLog);
+
+        assertNotNull(directive);
+        assertNull(directive.pngCompression);
+        assertNull(directive.pngFilter);
+    }
+
+    @Test
+    public void testUnsupportedPngCompression()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: sprite; sprite-image: url('../sprite.png'); sprite-png-compression: 10",
+            messageLog);
+
+        assertNotNull(directive);
+        assertNull(directive.pngCompression);
+        assertThat(messages).isEquivalentTo(
+            new Message(Message.MessageLevel.WARN,
+                Message.MessageType.UNSUPPORTED_PNG_COMPRESSION, null, 0, "10"));
+    }
+
+    @Test
+    public void testUnsupportedPngFilter()
+    {
+        final SpriteImageDirective directive = SpriteImageDirective.parse(
+            "sprite: sprite; sprite-image: url('../sprite.png'); sprite-png-filter: other",
+            messageLog);
+
+        assertNotNull(directive);
+        assertNull(directive.pngFilter);
+        assertThat(messages).isEquivalentTo(
+            new Message(Message.MessageLevel.WARN,
+                Message.MessageType.UNSUPPORTED_PNG_FILTER, null, 0, "other"));
+    }
+
     @Test
     public void testUidNone()
     {
@@ -163,6 +292,15 @@ public class SpriteImageDirectiveTest extends TestWithMemoryMessageSink
                 MessageType.DEPRECATED_SPRITE_IMAGE_UID, null, 0, "md5"));
     }
 
+    @Test
+    public void testUidXxHash()
+    {
+        checkUidType("sprite-image-uid: xxhash", SpriteUidType.XXHASH);
+        assertThat(messages).contains(
+            new Message(MessageLevel.DEPRECATION,
+                MessageType.DEPRECATED_SPRITE_IMAGE_UID, null, 0, "xxhash"));
+    }
+
     @Test
     public void testUidUnknown()
     {
@@ -0,0 +1,228 @@
+package org.carrot2.labs.smartsprites.resource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.carrot2.labs.smartsprites.message.MessageLog;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Test cases for {@link CachingResourceHandler}.
+ */
+public class CachingResourceHandlerTest
+{
+    private CountingResourceHandler delegate;
+
+    private CachingResourceHandler handler;
+
+    @Before
+    public void setUpHandler()
+    {
+        delegate = new CountingResourceHandler();
+        handler = new CachingResourceHandler(delegate);
+    }
+
+    @Test
+    public void testResourcePathResolvedOnce()
+    {
+        assertThat(handler.getResourcePath("css/style.css", "../img/a.png")).isEqualTo(
+            "css/../img/a.png");
+        assertThat(handler.getResourcePath("css/style.css", "../img/a.png")).isEqualTo(
+            "css/../img/a.png");
+        assertThat(handler.getResourcePath("css/other.css", "../img/a.png")).isEqualTo(
+            "css/../img/a.png");
+        assertThat(delegate.resolveCount).isEqualTo(2);
+    }
+
+    @Test
+    public void testUnresolvedPathNotRemembered()
+    {
+        assertThat(handler.getResourcePath("css/style.css", "/img/a.png")).isEqualTo("");
+        assertThat(handler.getResourcePath("css/style.css", "/img/a.png")).isEqualTo("");
+        assertThat(delegate.resolveCount).isEqualTo(2);
+    }
+
+    @Test
+    public void testMissingResourceOpenedOnce() throws IOException
+    {
+        assertThat(exists("img/a.png")).isFalse();
+        assertThat(exists("img/a.png")).isFalse();
+        assertThat(delegate.openCount).isEqualTo(1);
+    }
+
+    @Test
+    public void testWrittenResourceInvalidated() throws IOException
+    {
+        assertThat(exists("img/a.png")).isFalse();
+
+        final OutputStream os = handler.getResourceAsOutputStream("img/a.png");
+        os.write(1);
+        os.close();
+
+        assertThat(exists("img/a.png")).isTrue();
+        assertThat(delegate.openCount).isEqualTo(2);
+    }
+
+    @Test
+    public void testExplicitInvalidation() throws IOException
+    {
+        assertThat(exists("img/a.png")).isFalse();
+        delegate.resources.put("img/a.png", new byte [1]);
+        assertThat(exists("img/a.png")).isFalse();
+
+        handler.invalidate("img/a.png");
+        assertThat(exists("img/a.png")).isTrue();
+
+        delegate.resources.remove("img/a.png");
+        handler.invalidateAll();
+        assertThat(exists("img/a.png")).isFalse();
+    }
+
+    @Test
+    public void testFileSystemPathsCanonicalizedOnce() throws IOException
+    {
+        final File dir = java.nio.file.Files.createTempDirectory("smartsprites")
+            .toFile();
+        try
+        {
+            final String path = new File(dir, "img/a.png").getPath();
+            final String missingPath = new File(dir, "img/b.png").getPath();
+            final FileSystemResourceHandler fileSystemHandler =
+                new FileSystemResourceHandler(null, "UTF-8", new MessageLog());
+            final CountingPathCanonicalizer canonicalizer = new CountingPathCanonicalizer();
+            fileSystemHandler.setPathCanonicalizer(canonicalizer);
+            final CachingResourceHandler handler = new CachingResourceHandler(
+                fileSystemHandler);
+
+            final OutputStream os = handler.getResourceAsOutputStream(path);
+            os.write(1);
+            os.close();
+            for (int i = 0; i < 3; i++)
+            {
+                handler.getResourceAsInputStream(path).close();
+                try
+                {
+                    handler.getResourceAsInputStream(missingPath);
+                    org.junit.Assert.fail();
+                }
+                catch (FileNotFoundException e)
+                {
+                    // expected
+                }
+            }
+            assertThat(canonicalizer.paths).containsExactly(path, missingPath);
+
+            // Canonical paths are forgotten before the next build
+            handler.invalidateAll();
+            handler.getResourceAsInputStream(path).close();
+            assertThat(canonicalizer.paths).containsExactly(path, missingPath, path);
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    private boolean exists(String path) throws IOException
+    {
+        try
+        {
+            handler.getResourceAsInputStream(path).close();
+            return true;
+        }
+        catch (FileNotFoundException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Records the canonicalized paths.
+     */
+    private static class CountingPathCanonicalizer implements PathCanonicalizer
+    {
+        final List<String> paths = Collections.synchronizedList(Lists
+            .<String> newArrayList());
+
+        public File getCanonicalFile(String path)
+        {
+            paths.add(path);
+            return PathCanonicalizer.FILE_SYSTEM.getCanonicalFile(path);
+        }
+    }
+
+    /**
+     * Keeps resources in memory and counts path resolutions and resource openings.
+     */
+    private static class CountingResourceHandler implements ResourceHandler
+    {
+        final Map<String, byte []> resources = Maps.newHashMap();
+
+        int resolveCount;
+
+        int openCount;
+
+        public InputStream getResourceAsInputStream(String path) throws IOException
+        {
+            openCount++;
+            final byte [] content = resources.get(path);
+            if (content == null)
+            {
+                throw new FileNotFoundException(path);
+            }
+            return new ByteArrayInputStream(content);
+        }
+
+        public Reader getResourceAsReader(String path) throws IOException
+        {
+            return new InputStreamReader(getResourceAsInputStream(path), "UTF-8");
+        }
+
+        public OutputStream getResourceAsOutputStream(final String path)
+        {
+            return new ByteArrayOutputStream()
+            {
+                @Override
+                public void close()
+                {
+                    resources.put(path, toByteArray());
+                }
+            };
+        }
+
+        public Writer getResourceAsWriter(String path) throws IOException
+        {
+            return new OutputStreamWriter(getResourceAsOutputStream(path), "UTF-8");
+        }
+
+        public String getResourcePath(String cssFilePath, String cssRelativePath)
+        {
+            resolveCount++;
+            if (cssRelativePath.startsWith("/"))
+            {
+                return "";
+            }
+            return cssFilePath.substring(0, cssFilePath.lastIndexOf('/') + 1)
+                + cssRelativePath;
+        }
+    }
+}
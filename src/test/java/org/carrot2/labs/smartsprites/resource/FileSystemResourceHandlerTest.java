@@ -0,0 +1,92 @@
+package org.carrot2.labs.smartsprites.resource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.carrot2.labs.smartsprites.message.MessageLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link FileSystemResourceHandler}.
+ */
+public class FileSystemResourceHandlerTest
+{
+    private File dir;
+
+    @Before
+    public void setUpDir() throws IOException
+    {
+        dir = Files.createTempDirectory("smartsprites").toFile();
+    }
+
+    @After
+    public void deleteDir() throws IOException
+    {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testTemporaryFileMoved() throws IOException
+    {
+        final FileSystemResourceHandler handler = handler(false);
+        final String path = new File(dir, "img/sprite.png").getPath();
+        final File temporaryFile = handler.createTemporaryFile(path);
+        assertThat(temporaryFile.getParentFile()).isEqualTo(
+            new File(path).getParentFile().getCanonicalFile());
+
+        FileUtils.writeStringToFile(temporaryFile, "sprite", "UTF-8");
+        handler.moveFile(temporaryFile, path);
+        assertThat(temporaryFile).doesNotExist();
+        assertThat(FileUtils.readFileToString(new File(path), "UTF-8")).isEqualTo(
+            "sprite");
+
+        // Existing files are replaced, also in directories that do not exist yet
+        final String otherPath = new File(dir, "img/hash/sprite.png").getPath();
+        for (String content : new String []
+        {
+            "first", "second"
+        })
+        {
+            final File file = handler.createTemporaryFile(path);
+            FileUtils.writeStringToFile(file, content, "UTF-8");
+            handler.moveFile(file, otherPath);
+        }
+        assertThat(FileUtils.readFileToString(new File(otherPath), "UTF-8")).isEqualTo(
+            "second");
+        assertThat(new File(dir, "img").list().length).isEqualTo(2);
+    }
+
+    @Test
+    public void testUnchangedFileNotReplaced() throws IOException
+    {
+        final FileSystemResourceHandler handler = handler(true);
+        final File file = new File(dir, "sprite.png");
+        FileUtils.writeStringToFile(file, "sprite", "UTF-8");
+        assertThat(file.setLastModified(10000)).isTrue();
+
+        final File unchanged = handler.createTemporaryFile(file.getPath());
+        FileUtils.writeStringToFile(unchanged, "sprite", "UTF-8");
+        handler.moveFile(unchanged, file.getPath());
+        assertThat(unchanged).doesNotExist();
+        assertThat(file.lastModified()).isEqualTo(10000L);
+        assertThat(handler.getUnchangedFileCount()).isEqualTo(1);
+
+        final File changed = handler.createTemporaryFile(file.getPath());
+        FileUtils.writeStringToFile(changed, "changed", "UTF-8");
+        handler.moveFile(changed, file.getPath());
+        assertThat(FileUtils.readFileToString(file, "UTF-8")).isEqualTo("changed");
+        assertThat(handler.getUnchangedFileCount()).isEqualTo(1);
+    }
+
+    private static FileSystemResourceHandler handler(boolean writeIfChanged)
+    {
+        return new FileSystemResourceHandler(null, "UTF-8", writeIfChanged,
+            new MessageLog());
+    }
+}
@@ -3,8 +3,13 @@ package org.carrot2.util;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
+import java.awt.CompositeContext;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
 
 import org.junit.Test;
@@ -90,4 +95,143 @@ public class BufferedImageUtilsTest extends BufferedImageTestBase
             BufferedImageUtils
                 .countDistictColors(image("many-colors.png")));
     }
+
+    @Test
+    public void testGetRgbPixels() throws IOException
+    {
+        final BufferedImage image = image("many-colors.png");
+        final int [] pixels = BufferedImageUtils.getRgbPixels(image);
+        final int [][] rgb = BufferedImageUtils.getRgb(image);
+        assertEquals(image.getWidth() * image.getHeight(), pixels.length);
+        for (int y = 0; y < image.getHeight(); y++)
+        {
+            for (int x = 0; x < image.getWidth(); x++)
+            {
+                assertEquals(image.getRGB(x, y), pixels[y * image.getWidth() + x]);
+                assertEquals(image.getRGB(x, y), rgb[x][y]);
+            }
+        }
+    }
+
+    @Test
+    public void testMatteSameAsComposite()
+    {
+        // All combinations of alpha and color component values
+        final BufferedImage source = new BufferedImage(256, 256,
+            BufferedImage.TYPE_4BYTE_ABGR);
+        for (int alpha = 0; alpha < 256; alpha++)
+        {
+            for (int c = 0; c < 256; c++)
+            {
+                source.setRGB(c, alpha, alpha << 24 | c << 16 | (255 - c) << 8 | c / 3);
+            }
+        }
+
+        for (Color matteColor : new Color []
+        {
+            Color.WHITE, Color.BLACK, new Color(0x12, 0x80, 0xfe),
+            new Color(0x40, 0xc0, 0x20, 0x80), new Color(0xff, 0xff, 0xff, 0)
+        })
+        {
+            final int [] expected = composite(source, matteColor).getRGB(0, 0, 256,
+                256, null, 0, 256);
+            assertArrayEquals(expected, BufferedImageUtils.matte(source, matteColor)
+                .getRGB(0, 0, 256, 256, null, 0, 256));
+
+            final int [] pixels = BufferedImageUtils.getRgbPixels(source);
+            BufferedImageUtils.matte(pixels, 0, 256, 256, 256, matteColor);
+            assertArrayEquals(expected, pixels);
+        }
+    }
+
+    @Test
+    public void testDrawImageSameType() throws IOException
+    {
+        for (int type : new int []
+        {
+            BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_3BYTE_BGR,
+            BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB,
+            BufferedImage.TYPE_INT_BGR
+        })
+        {
+            final BufferedImage image = convert(image("full-alpha.png"), type);
+            checkDrawImage(image, type);
+            assertTrue(BufferedImageUtils.copyRaster(image, new BufferedImage(image
+                .getWidth(), image.getHeight(), type), 0, 0));
+        }
+    }
+
+    @Test
+    public void testDrawImageSubimage() throws IOException
+    {
+        final BufferedImage image = convert(image("many-colors.png"),
+            BufferedImage.TYPE_4BYTE_ABGR);
+        final BufferedImage subimage = image.getSubimage(3, 5, image.getWidth() - 7,
+            image.getHeight() - 9);
+        checkDrawImage(subimage, BufferedImage.TYPE_4BYTE_ABGR);
+        assertTrue(BufferedImageUtils.copyRaster(subimage, image, 1, 1));
+    }
+
+    @Test
+    public void testDrawImageDifferentType() throws IOException
+    {
+        checkDrawImage(image("bit-alpha.png"), BufferedImage.TYPE_4BYTE_ABGR);
+        checkDrawImage(convert(image("full-alpha.png"), BufferedImage.TYPE_INT_ARGB),
+            BufferedImage.TYPE_4BYTE_ABGR);
+    }
+
+    /**
+     * Checks that drawing the image gives the same result as copying the pixels through
+     * their RGB values.
+     */
+    private static void checkDrawImage(BufferedImage image, int canvasType)
+    {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final BufferedImage expected = new BufferedImage(width + 10, height + 20,
+            canvasType);
+        expected.setRGB(2, 4, width, height, image.getRGB(0, 0, width, height, null, 0,
+            width), 0, width);
+
+        final BufferedImage actual = new BufferedImage(width + 10, height + 20,
+            canvasType);
+        BufferedImageUtils.drawImage(image, actual, 2, 4);
+
+        assertArrayEquals(expected.getRGB(0, 0, width + 10, height + 20, null, 0,
+            width + 10), actual.getRGB(0, 0, width + 10, height + 20, null, 0,
+            width + 10));
+    }
+
+    /**
+     * Mattes the image by compositing it with a matte image.
+     */
+    private static BufferedImage composite(BufferedImage source, Color matteColor)
+    {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final BufferedImage matte = new BufferedImage(width, height,
+            BufferedImage.TYPE_4BYTE_ABGR);
+        final Graphics2D graphics = matte.createGraphics();
+        graphics.setComposite(AlphaComposite.Src);
+        graphics.setColor(matteColor);
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+
+        final BufferedImage matted = new BufferedImage(width, height,
+            BufferedImage.TYPE_4BYTE_ABGR);
+        final CompositeContext context = AlphaComposite.DstOver.createContext(matte
+            .getColorModel(), source.getColorModel(), null);
+        context.compose(matte.getRaster(), source.getRaster(), matted.getRaster());
+        return matted;
+    }
+
+    private static BufferedImage convert(BufferedImage image, int type)
+    {
+        final BufferedImage converted = new BufferedImage(image.getWidth(), image
+            .getHeight(), type);
+        converted.setRGB(0, 0, image.getWidth(), image.getHeight(), image.getRGB(0, 0,
+            image.getWidth(), image.getHeight(), null, 0, image.getWidth()), 0, image
+            .getWidth());
+        return converted;
+    }
 }
@@ -1,9 +1,12 @@
 package org.carrot2.util;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
 
@@ -78,6 +81,96 @@ public class ColorQuantizerTest extends BufferedImageTestBase
         // Current quantizer is far from perfect
     }
 
+    @Test
+    public void testQuantizeImageWithStride() throws IOException
+    {
+        final BufferedImage image = image("many-colors.png");
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int [][] rgb = BufferedImageUtils.getRgb(image);
+
+        // Place the pixels in the middle of a wider buffer
+        final int offset = 7;
+        final int stride = width + 3;
+        final int [] pixels = new int [offset + height * stride];
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                pixels[offset + y * stride + x] = rgb[x][y];
+            }
+        }
+
+        assertArrayEquals(Quantize.quantizeImage(rgb, 32), Quantize.quantizeImage(
+            pixels, offset, width, height, stride, 32));
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                assertEquals(rgb[x][y], pixels[offset + y * stride + x]);
+            }
+        }
+    }
+
+    @Test
+    public void testParallelQuantizationSameAsSerial()
+    {
+        final int width = 700;
+        final int height = 500;
+        final int [] pixels = new int [width * height];
+        final Random random = new Random(0x5eed);
+        for (int i = 0; i < pixels.length; i++)
+        {
+            // Mostly smooth gradients with some noise
+            final int x = i % width;
+            final int y = i / width;
+            pixels[i] = 0xff000000 | (x * 255 / width) << 16 | (y * 255 / height) << 8
+                | random.nextInt(64);
+        }
+        final int [] serialPixels = pixels.clone();
+
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try
+        {
+            assertArrayEquals(Quantize.quantizeImage(serialPixels, 0, width, height,
+                width, ColorQuantizer.MAX_INDEXED_COLORS), Quantize.quantizeImage(pixels,
+                0, width, height, width, ColorQuantizer.MAX_INDEXED_COLORS, pool));
+            assertArrayEquals(serialPixels, pixels);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testQuantizationRepeatable()
+    {
+        final int width = 700;
+        final int height = 500;
+        final int [] pixels = new int [width * height];
+        final Random random = new Random(0x5eed);
+        for (int i = 0; i < pixels.length; i++)
+        {
+            pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+
+        // Deep trees get pruned during classification, the trees built afterwards
+        // reuse the arenas of the earlier ones.
+        for (int maxColors : new int []
+        {
+            1 << 16, ColorQuantizer.MAX_INDEXED_COLORS, 1 << 16
+        })
+        {
+            final int [] first = pixels.clone();
+            final int [] second = pixels.clone();
+            assertArrayEquals(Quantize.quantizeImage(first, 0, width, height, width,
+                maxColors), Quantize.quantizeImage(second, 0, width, height, width,
+                maxColors));
+            assertArrayEquals(first, second);
+        }
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testManyColorsReduce() throws IOException
     {
@@ -85,6 +178,15 @@ public class ColorQuantizerTest extends BufferedImageTestBase
         ColorQuantizer.reduce(image(fileName));
     }
 
+    @Test
+    public void testReducePreservesPixels() throws IOException
+    {
+        checkReducePreservesPixels("bit-alpha.png");
+        checkReducePreservesPixels("exact-colors.png");
+        checkReducePreservesPixels("no-alpha.png");
+        checkReducePreservesPixels("one-color.png");
+    }
+
     @Test
     public void testCanReduceWithoutDataLoss() throws IOException
     {
@@ -102,4 +204,19 @@ public class ColorQuantizerTest extends BufferedImageTestBase
             ColorQuantizer.getColorReductionInfo(image(path))
                 .canReduceWithoutQualityLoss());
     }
+
+    private void checkReducePreservesPixels(String path) throws IOException
+    {
+        final BufferedImage source = image(path);
+        final BufferedImage reduced = ColorQuantizer.reduce(source);
+        for (int y = 0; y < source.getHeight(); y++)
+        {
+            for (int x = 0; x < source.getWidth(); x++)
+            {
+                final int pixel = source.getRGB(x, y);
+                assertEquals(path + " at " + x + "," + y,
+                    (pixel & 0xff000000) != 0 ? pixel : 0, reduced.getRGB(x, y));
+            }
+        }
+    }
 }
@@ -0,0 +1,103 @@
+package org.carrot2.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Test cases for {@link ImageColorStats}.
+ */
+public class ImageColorStatsTest extends BufferedImageTestBase
+{
+    private static final String [] IMAGES = new String []
+    {
+        "full-alpha.png", "bit-alpha.png", "no-alpha.png", "many-colors.png",
+        "exact-colors.png", "one-color.png"
+    };
+
+    @Test
+    public void testPartialTransparency() throws IOException
+    {
+        final ImageColorStats stats = ImageColorStats.compute(image("full-alpha.png"));
+        assertTrue(stats.hasTransparency);
+        assertTrue(stats.hasPartialTransparency);
+        assertEquals(1, stats.distinctColors);
+        assertTrue(stats.distinctColorsExact);
+    }
+
+    @Test
+    public void testBitmaskTransparency() throws IOException
+    {
+        final ImageColorStats stats = ImageColorStats.compute(image("bit-alpha.png"));
+        assertTrue(stats.hasTransparency);
+        assertFalse(stats.hasPartialTransparency);
+    }
+
+    @Test
+    public void testNoTransparency() throws IOException
+    {
+        final ImageColorStats stats = ImageColorStats.compute(image("no-alpha.png"));
+        assertFalse(stats.hasTransparency);
+        assertFalse(stats.hasPartialTransparency);
+    }
+
+    @Test
+    public void testManyColors() throws IOException
+    {
+        final ImageColorStats stats = ImageColorStats.compute(image("many-colors.png"));
+        assertEquals(1021, stats.distinctColors);
+        assertTrue(stats.distinctColorsExact);
+    }
+
+    @Test
+    public void testColorLimit() throws IOException
+    {
+        final ImageColorStats stats = ImageColorStats.compute(image("many-colors.png"),
+            ColorQuantizer.MAX_INDEXED_COLORS);
+        assertEquals(ColorQuantizer.MAX_INDEXED_COLORS + 1, stats.distinctColors);
+        assertFalse(stats.distinctColorsExact);
+    }
+
+    @Test
+    public void testColorLimitNotReached() throws IOException
+    {
+        final ImageColorStats stats = ImageColorStats.compute(image("exact-colors.png"),
+            ColorQuantizer.MAX_INDEXED_COLORS);
+        assertEquals(ColorQuantizer.MAX_INDEXED_COLORS, stats.distinctColors);
+        assertTrue(stats.distinctColorsExact);
+    }
+
+    @Test
+    public void testSameAsBufferedImageUtils() throws IOException
+    {
+        for (String fileName : IMAGES)
+        {
+            final BufferedImage image = image(fileName);
+            checkSameAsBufferedImageUtils(image);
+            checkSameAsBufferedImageUtils(abgr(image));
+        }
+    }
+
+    private static void checkSameAsBufferedImageUtils(BufferedImage image)
+    {
+        final ImageColorStats stats = ImageColorStats.compute(image);
+        assertEquals(BufferedImageUtils.hasTransparency(image), stats.hasTransparency);
+        assertEquals(BufferedImageUtils.hasPartialTransparency(image),
+            stats.hasPartialTransparency);
+        assertEquals(BufferedImageUtils.getDistictColors(image).length,
+            stats.distinctColors);
+    }
+
+    private static BufferedImage abgr(BufferedImage image)
+    {
+        final BufferedImage result = new BufferedImage(image.getWidth(), image
+            .getHeight(), BufferedImage.TYPE_4BYTE_ABGR);
+        result.getGraphics().drawImage(image, 0, 0, null);
+        return result;
+    }
+}
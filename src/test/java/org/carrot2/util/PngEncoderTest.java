@@ -0,0 +1,288 @@
+package org.carrot2.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.imageio.ImageIO;
+
+import org.carrot2.util.PngEncoder.Filter;
+import org.carrot2.util.PngEncoder.PaletteOrder;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Test cases for {@link PngEncoder}.
+ */
+public class PngEncoderTest extends BufferedImageTestBase
+{
+    private static final String [] IMAGES = new String []
+    {
+        "bit-alpha.png", "full-alpha.png", "many-colors.png", "no-alpha.png",
+        "one-color.png"
+    };
+
+    @Test
+    public void testDirectColorRoundTrip() throws IOException
+    {
+        for (String fileName : IMAGES)
+        {
+            final BufferedImage image = image(fileName);
+            checkRoundTrip(toType(image, BufferedImage.TYPE_4BYTE_ABGR));
+            checkRoundTrip(toType(image, BufferedImage.TYPE_INT_RGB));
+        }
+    }
+
+    @Test
+    public void testIndexedColorRoundTrip() throws IOException
+    {
+        for (String fileName : IMAGES)
+        {
+            checkRoundTrip(ColorQuantizer.quantize(image(fileName), Color.WHITE));
+        }
+        checkRoundTrip(ColorQuantizer.reduce(image("no-alpha.png")));
+    }
+
+    @Test
+    public void testOpaqueImageWrittenWithoutAlpha() throws IOException
+    {
+        final BufferedImage image = toType(image("no-alpha.png"),
+            BufferedImage.TYPE_4BYTE_ABGR);
+        final BufferedImage decoded = decode(encode(image, 6, Filter.ADAPTIVE));
+        assertFalse(decoded.getColorModel().hasAlpha());
+    }
+
+    @Test
+    public void testCompressionLevels() throws IOException
+    {
+        final BufferedImage image = toType(image("many-colors.png"),
+            BufferedImage.TYPE_4BYTE_ABGR);
+        assertTrue(encode(image, 9, Filter.ADAPTIVE).length < encode(image, 0,
+            Filter.ADAPTIVE).length);
+    }
+
+    @Test
+    public void testParallelDeflate() throws IOException
+    {
+        final BufferedImage image = largeImage();
+        final BufferedImage indexed = ColorQuantizer.quantize(image, Color.WHITE);
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        final ForkJoinPool singleThreadPool = new ForkJoinPool(1);
+        try
+        {
+            for (BufferedImage input : new BufferedImage []
+            {
+                image, indexed
+            })
+            {
+                for (Filter filter : Filter.values())
+                {
+                    final byte [] serial = new PngEncoder(9, filter, null).encode(input);
+                    final byte [] parallel = new PngEncoder(9, filter, pool).encode(input);
+
+                    // The output does not depend on the number of threads
+                    assertArrayEquals(parallel, new PngEncoder(9, filter,
+                        singleThreadPool).encode(input));
+                    assertTrue(parallel.length <= serial.length * 1.01);
+
+                    // One zlib stream with valid header and checksum
+                    assertArrayEquals(inflate(getIdat(serial)), inflate(getIdat(parallel)));
+
+                    // Written in IDAT chunks of limited size
+                    for (byte [] png : new byte [][]
+                    {
+                        serial, parallel
+                    })
+                    {
+                        final List<byte []> chunks = getIdatChunks(png);
+                        for (int i = 0; i < chunks.size() - 1; i++)
+                        {
+                            assertEquals(PngEncoder.IDAT_CHUNK_SIZE,
+                                chunks.get(i).length);
+                        }
+                        assertTrue(chunks.get(chunks.size() - 1).length <= PngEncoder
+                            .IDAT_CHUNK_SIZE);
+                    }
+                    assertArrayEquals(BufferedImageUtils.getRgbPixels(input),
+                        BufferedImageUtils.getRgbPixels(decode(parallel)));
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+            singleThreadPool.shutdown();
+        }
+    }
+
+    @Test
+    public void testPaletteOrdersAndStrategies() throws IOException
+    {
+        for (String fileName : IMAGES)
+        {
+            final BufferedImage image = ColorQuantizer.quantize(image(fileName),
+                Color.WHITE);
+            for (PaletteOrder paletteOrder : PaletteOrder.values())
+            {
+                for (int strategy : new int []
+                {
+                    Deflater.DEFAULT_STRATEGY, Deflater.FILTERED, Deflater.HUFFMAN_ONLY
+                })
+                {
+                    final BufferedImage decoded = decode(new PngEncoder(9, Filter.NONE,
+                        null, strategy, paletteOrder).encode(image));
+                    assertArrayEquals(BufferedImageUtils.getRgbPixels(image),
+                        BufferedImageUtils.getRgbPixels(decoded));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnusedPaletteEntriesRemoved() throws IOException
+    {
+        final BufferedImage image = ColorQuantizer.reduce(image("no-alpha.png"));
+        final int [] colors = new int [256];
+        ((IndexColorModel) image.getColorModel()).getRGBs(colors);
+        final BufferedImage padded = new BufferedImage(image.getWidth(), image
+            .getHeight(), BufferedImage.TYPE_BYTE_INDEXED, new IndexColorModel(8, 256,
+            colors, 0, true, -1, DataBuffer.TYPE_BYTE));
+        padded.getRaster().setRect(image.getRaster());
+
+        final byte [] original = new PngEncoder(9, Filter.NONE, null,
+            Deflater.DEFAULT_STRATEGY, PaletteOrder.ORIGINAL).encode(padded);
+        final byte [] reordered = new PngEncoder(9, Filter.NONE, null,
+            Deflater.DEFAULT_STRATEGY, PaletteOrder.FREQUENCY).encode(padded);
+        assertTrue(reordered.length < original.length);
+        assertArrayEquals(BufferedImageUtils.getRgbPixels(padded), BufferedImageUtils
+            .getRgbPixels(decode(reordered)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedCompressionLevel()
+    {
+        new PngEncoder(10, Filter.NONE);
+    }
+
+    private static void checkRoundTrip(BufferedImage image) throws IOException
+    {
+        for (Filter filter : Filter.values())
+        {
+            for (int level : new int []
+            {
+                0, PngEncoder.DEFAULT_COMPRESSION, 9
+            })
+            {
+                final BufferedImage decoded = decode(encode(image, level, filter));
+                assertEquals(image.getWidth(), decoded.getWidth());
+                assertEquals(image.getHeight(), decoded.getHeight());
+                assertArrayEquals(BufferedImageUtils.getRgbPixels(image),
+                    BufferedImageUtils.getRgbPixels(decoded));
+            }
+        }
+    }
+
+    private static byte [] encode(BufferedImage image, int level, Filter filter)
+        throws IOException
+    {
+        return new PngEncoder(level, filter).encode(image);
+    }
+
+    /**
+     * Returns the concatenated data of the IDAT chunks of the PNG file.
+     */
+    private static byte [] getIdat(byte [] png) throws IOException
+    {
+        final ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        for (byte [] chunk : getIdatChunks(png))
+        {
+            idat.write(chunk);
+        }
+        return idat.toByteArray();
+    }
+
+    /**
+     * Returns the data of each IDAT chunk of the PNG file.
+     */
+    private static List<byte []> getIdatChunks(byte [] png) throws IOException
+    {
+        final List<byte []> chunks = Lists.newArrayList();
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(png));
+        input.skipBytes(8);
+        while (true)
+        {
+            final byte [] data = new byte [input.readInt()];
+            final byte [] type = new byte [4];
+            input.readFully(type);
+            input.readFully(data);
+            input.readInt();
+            if ("IDAT".equals(new String(type, "US-ASCII")))
+            {
+                chunks.add(data);
+            }
+            else if ("IEND".equals(new String(type, "US-ASCII")))
+            {
+                return chunks;
+            }
+        }
+    }
+
+    private static byte [] inflate(byte [] data) throws IOException
+    {
+        return ByteStreams.toByteArray(new InflaterInputStream(new ByteArrayInputStream(
+            data)));
+    }
+
+    /**
+     * Returns an image large enough to be deflated in several blocks, with smooth
+     * gradients and some noise.
+     */
+    private static BufferedImage largeImage()
+    {
+        final int width = 700;
+        final int height = 500;
+        final BufferedImage image = new BufferedImage(width, height,
+            BufferedImage.TYPE_4BYTE_ABGR);
+        final Random random = new Random(0x5eed);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                image.setRGB(x, y, (x * 255 / width) << 24 | (y * 255 / height) << 16
+                    | (x * 255 / width) << 8 | random.nextInt(16));
+            }
+        }
+        return image;
+    }
+
+    static BufferedImage decode(byte [] bytes) throws IOException
+    {
+        return ImageIO.read(new ByteArrayInputStream(bytes));
+    }
+
+    static BufferedImage toType(BufferedImage image, int type)
+    {
+        final BufferedImage converted = new BufferedImage(image.getWidth(), image
+            .getHeight(), type);
+        converted.setRGB(0, 0, image.getWidth(), image.getHeight(), BufferedImageUtils
+            .getRgbPixels(image), 0, image.getWidth());
+        return converted;
+    }
+}
@@ -0,0 +1,78 @@
+package org.carrot2.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Test cases for {@link PngOptimizer}.
+ */
+public class PngOptimizerTest extends BufferedImageTestBase
+{
+    @Test
+    public void testSmallestLosslessEncoding() throws IOException
+    {
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        final ForkJoinPool singleThreadPool = new ForkJoinPool(1);
+        try
+        {
+            for (String fileName : new String []
+            {
+                "bit-alpha.png", "full-alpha.png", "many-colors.png"
+            })
+            {
+                final BufferedImage direct = PngEncoderTest.toType(image(fileName),
+                    BufferedImage.TYPE_4BYTE_ABGR);
+                final BufferedImage indexed = ColorQuantizer.quantize(direct,
+                    Color.WHITE);
+                for (BufferedImage image : new BufferedImage []
+                {
+                    direct, indexed
+                })
+                {
+                    int previousLength = Integer.MAX_VALUE;
+                    for (int level = 1; level <= PngOptimizer.MAX_LEVEL; level++)
+                    {
+                        final PngOptimizer optimizer = new PngOptimizer(level, pool);
+                        final byte [] optimized = optimizer.encode(image);
+                        assertArrayEquals(BufferedImageUtils.getRgbPixels(image),
+                            BufferedImageUtils.getRgbPixels(PngEncoderTest
+                                .decode(optimized)));
+
+                        // No trial is smaller, more trials are not worse
+                        for (PngEncoder trial : optimizer.getTrials(PngEncoder
+                            .isIndexed(image)))
+                        {
+                            assertTrue(optimized.length <= trial.encode(image).length);
+                        }
+                        assertTrue(optimized.length <= previousLength);
+                        previousLength = optimized.length;
+
+                        // The output does not depend on the number of threads
+                        assertArrayEquals(optimized, new PngOptimizer(level,
+                            singleThreadPool).encode(image));
+                        assertArrayEquals(optimized, new PngOptimizer(level, null)
+                            .encode(image));
+                    }
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+            singleThreadPool.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedLevel()
+    {
+        new PngOptimizer(PngOptimizer.MAX_LEVEL + 1);
+    }
+}
@@ -0,0 +1,102 @@
+package org.carrot2.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the {@link Quantizer} implementations.
+ */
+public class QuantizerTest extends BufferedImageTestBase
+{
+    private static final Quantizer [] QUANTIZERS = new Quantizer []
+    {
+        new MedianCutQuantizer(), new OctreeQuantizer(), new KMeansQuantizer()
+    };
+
+    @Test
+    public void testFewColorsPreserved() throws IOException
+    {
+        final BufferedImage image = image("no-alpha.png");
+        assertEquals(0, getError(new MedianCutQuantizer(), image, 4));
+        assertEquals(0, getError(new KMeansQuantizer(), image, 4));
+    }
+
+    @Test
+    public void testPaletteSize() throws IOException
+    {
+        final BufferedImage image = image("many-colors.png");
+        for (Quantizer quantizer : QUANTIZERS)
+        {
+            for (int maxColors : new int []
+            {
+                1, 16, 255
+            })
+            {
+                final int [] pixels = BufferedImageUtils.getRgbPixels(image);
+                final int [] palette = quantizer.quantize(pixels, 0, image.getWidth(),
+                    image.getHeight(), image.getWidth(), maxColors);
+                assertTrue(palette.length <= maxColors);
+                for (int index : pixels)
+                {
+                    assertTrue(index >= 0 && index < palette.length);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testKMeansNotWorseThanMedianCut() throws IOException
+    {
+        final BufferedImage image = image("many-colors.png");
+        for (int maxColors : new int []
+        {
+            4, 16, 64
+        })
+        {
+            assertTrue(getError(new KMeansQuantizer(), image, maxColors) <= getError(
+                new MedianCutQuantizer(), image, maxColors));
+        }
+    }
+
+    @Test
+    public void testQuantizeImage() throws IOException
+    {
+        for (Quantizer quantizer : QUANTIZERS)
+        {
+            final BufferedImage quantized = ColorQuantizer.quantize(
+                image("full-alpha.png"), Color.WHITE, ColorQuantizer.MAX_INDEXED_COLORS,
+                quantizer);
+            org.carrot2.labs.test.Assertions.assertThat(quantized).hasBitAlpha()
+                .isIndexedColor();
+        }
+    }
+
+    /**
+     * Returns the sum of squared differences between the original and quantized pixels.
+     */
+    private static long getError(Quantizer quantizer, BufferedImage image, int maxColors)
+    {
+        final int [] original = BufferedImageUtils.getRgbPixels(image);
+        final int [] pixels = original.clone();
+        final int [] palette = quantizer.quantize(pixels, 0, image.getWidth(), image
+            .getHeight(), image.getWidth(), maxColors);
+
+        long error = 0;
+        for (int i = 0; i < pixels.length; i++)
+        {
+            for (int shift = 0; shift < 24; shift += 8)
+            {
+                final int difference = ((original[i] >> shift) & 0xff)
+                    - ((palette[pixels[i]] >> shift) & 0xff);
+                error += difference * difference;
+            }
+        }
+        return error;
+    }
+}
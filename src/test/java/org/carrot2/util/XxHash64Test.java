@@ -0,0 +1,65 @@
+package org.carrot2.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test cases for {@link XxHash64}.
+ */
+public class XxHash64Test
+{
+    @Test
+    public void testReferenceValues()
+    {
+        assertEquals("ef46db3751d8e999", hash(""));
+        assertEquals("d24ec4f1a98c6e5b", hash("a"));
+        assertEquals("44bc2cf5ad770999", hash("abc"));
+        assertEquals("fbcea83c8a378bf1", hash("Nobody inspects the spammish repetition"));
+    }
+
+    @Test
+    public void testUpdatesInPieces()
+    {
+        final Random random = new Random(0x5eed);
+        final byte [] data = new byte [1000];
+        random.nextBytes(data);
+
+        for (int length : new int []
+        {
+            0, 1, 31, 32, 33, 100, 1000
+        })
+        {
+            final XxHash64 digest = new XxHash64();
+            digest.update(data, 0, length);
+            final byte [] expected = digest.digest();
+
+            for (int i = 0; i < length;)
+            {
+                final int piece = Math.min(random.nextInt(40), length - i);
+                if (piece == 1)
+                {
+                    digest.update(data[i]);
+                }
+                else
+                {
+                    digest.update(data, i, piece);
+                }
+                i += piece;
+            }
+            assertArrayEquals(expected, digest.digest());
+        }
+    }
+
+    private static String hash(String input)
+    {
+        final byte [] digest = new XxHash64().digest(input.getBytes(Charset
+            .forName("US-ASCII")));
+        return String.format("%016x", new BigInteger(1, digest));
+    }
+}